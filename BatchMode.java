@@ -0,0 +1,205 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs a CommandRunner script back-to-back: one command per line, read with a
+// BufferedReader, every result written in script order to one Writer.
+//
+// With more than one thread, independent commands are pipelined. Each mkdir, touch,
+// rm and mv is handed to the worker that owns the top-level directory it touches,
+// so commands on one subtree keep their order while different subtrees run side by
+// side. Everything else (cd, ls, find, tree, pwd, moves between subtrees, and
+// anything that removes the current directory) waits for all workers to finish.
+public class BatchMode {
+    private static final int MAX_PENDING = 4096; // Results buffered before writing the oldest
+
+    private final FileSystem fs;
+    private final int threads;
+    private long commands;
+    private final AtomicLong errors = new AtomicLong(); // Counted on the worker threads
+
+    public BatchMode(FileSystem fs, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        }
+        this.fs = fs;
+        this.threads = threads;
+    }
+
+    public long getCommandCount() {
+        return commands;
+    }
+
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    // Run every line of in; out is flushed once at the end
+    public void run(BufferedReader in, Writer out) throws IOException {
+        if (threads == 1) {
+            runSequential(in, out);
+        } else {
+            runPipelined(in, out);
+        }
+        out.flush();
+    }
+
+    private void runSequential(BufferedReader in, Writer out) throws IOException {
+        CommandRunner runner = new CommandRunner(new FileSystemSession(fs));
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (CommandRunner.split(line).length > 0) {
+                commands++;
+            }
+            if (!runner.execute(line, out)) {
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    private void runPipelined(BufferedReader in, Writer out) throws IOException {
+        ExecutorService[] workers = new ExecutorService[threads];
+        CommandRunner[] runners = new CommandRunner[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "batch-worker");
+                t.setDaemon(true);
+                return t;
+            });
+            runners[i] = new CommandRunner(new FileSystemSession(fs)); // Sessions stay at the root
+        }
+        CommandRunner barrierRunner = new CommandRunner(new FileSystemSession(fs));
+        ArrayDeque<Future<String>> pending = new ArrayDeque<>();
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] args = CommandRunner.split(line);
+                if (args.length == 0) {
+                    continue;
+                }
+                commands++;
+                String cwd = barrierRunner.getWorkingPath();
+                int worker = route(args, cwd);
+                if (worker < 0) {
+                    drain(pending, out);
+                    if (!barrierRunner.execute(line, out)) {
+                        errors.incrementAndGet();
+                    }
+                    continue;
+                }
+                CommandRunner runner = runners[worker];
+                String command = line;
+                pending.add(workers[worker].submit(() -> {
+                    // cd is a barrier, so the directory cannot change under a queued command
+                    if (!cwd.equals(runner.getWorkingPath())) {
+                        runner.getSession().changeDirectory(cwd);
+                    }
+                    StringBuilder result = new StringBuilder();
+                    if (!runner.execute(command, result)) {
+                        errors.incrementAndGet();
+                    }
+                    return result.toString();
+                }));
+                if (pending.size() > MAX_PENDING) {
+                    write(await(pending.poll()), out);
+                }
+            }
+            drain(pending, out);
+        } finally {
+            for (ExecutorService worker : workers) {
+                worker.shutdownNow();
+            }
+        }
+    }
+
+    // Worker for a mutation confined to one top-level directory, or -1 for a barrier
+    private int route(String[] args, String cwd) {
+        switch (args[0]) {
+            case "mkdir":
+            case "touch":
+                return args.length == 2 ? owner(normalize(cwd, args[1])) : -1;
+            case "rm":
+                if (args.length != 2 || contains(normalize(cwd, args[1]), cwd)) {
+                    return -1;
+                }
+                return owner(normalize(cwd, args[1]));
+            case "mv":
+                if (args.length != 3 || contains(normalize(cwd, args[1]), cwd)) {
+                    return -1;
+                }
+                String source = topLevelName(normalize(cwd, args[1]));
+                String target = topLevelName(normalize(cwd, args[2]));
+                if (source == null || !source.equals(target)) {
+                    return -1;
+                }
+                return Math.floorMod(source.hashCode(), threads);
+            default:
+                return -1;
+        }
+    }
+
+    private int owner(String path) {
+        String top = topLevelName(path);
+        return top == null ? -1 : Math.floorMod(top.hashCode(), threads);
+    }
+
+    // Whether path is dir or one of its ancestors
+    private static boolean contains(String path, String dir) {
+        return dir.equals(path) || path.equals("/") || dir.startsWith(path + "/");
+    }
+
+    // First component of an absolute path, or null for the root itself
+    private static String topLevelName(String path) {
+        if (path.length() <= 1) {
+            return null;
+        }
+        int slash = path.indexOf('/', 1);
+        return slash < 0 ? path.substring(1) : path.substring(1, slash);
+    }
+
+    // path made absolute against cwd, with "." and ".." folded away
+    static String normalize(String cwd, String path) {
+        ArrayDeque<String> parts = new ArrayDeque<>();
+        String full = path.startsWith("/") ? path : cwd + "/" + path;
+        for (String part : full.split("/")) {
+            if (part.isEmpty() || part.equals(".")) {
+                continue;
+            }
+            if (part.equals("..")) {
+                parts.pollLast();
+            } else {
+                parts.addLast(part);
+            }
+        }
+        return "/" + String.join("/", parts);
+    }
+
+    private static void drain(ArrayDeque<Future<String>> pending, Writer out) throws IOException {
+        while (!pending.isEmpty()) {
+            write(await(pending.poll()), out);
+        }
+    }
+
+    private static void write(String result, Writer out) throws IOException {
+        if (!result.isEmpty()) {
+            out.write(result);
+        }
+    }
+
+    private static String await(Future<String> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a batch command.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Batch command failed.", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Builds a Directory/File tree from a long list of paths in one pass, without
+// going through FileSystem.createFile/createDirectory for every entry. Missing
+// intermediate directories are created on the way, the duplicate check is the
+// child map insert itself, and entries without their own creation time share a
+// single Timestamp. The tree is private until build() wraps it in a FileSystem,
+// so nothing is locked or journaled while it is filled, and the subtree aggregates
+// are computed once at the end instead of per entry.
+//
+// Consecutive paths usually share a long prefix (any sorted listing or disk walk
+// does), so the directories of the previous path are kept on a stack and only the
+// part that differs is looked up again.
+//
+// Not thread safe; feed it from one thread.
+public class BulkLoader {
+    private final Directory root;
+    private final Timestamp loadTime = new Timestamp(System.currentTimeMillis());
+    private final List<Directory> openDirs = new ArrayList<>(); // Directories of the previous path, by depth
+    private long count;
+    private boolean built;
+
+    public BulkLoader() {
+        this("root");
+    }
+
+    public BulkLoader(String rootName) {
+        this.root = new Directory(rootName, null, loadTime);
+    }
+
+    // Add one path relative to the root ("/a/b/c.txt" or "a/b/c.txt"). A trailing
+    // '/' marks a directory; anything else is a file.
+    public void addPath(String path) {
+        boolean directory = path.endsWith("/");
+        add(path, directory, null);
+    }
+
+    public void addFile(String path, Timestamp dateCreated) {
+        add(path, false, dateCreated);
+    }
+
+    public void addDirectory(String path, Timestamp dateCreated) {
+        add(path, true, dateCreated);
+    }
+
+    // Add every path of the stream, in stream order
+    public void addAll(Stream<String> paths) {
+        paths.sequential().forEachOrdered(this::addPath);
+    }
+
+    // Walk a directory on disk (without following links) and load everything below
+    // it, keeping each entry's creation time. Directories are listed before their
+    // Directory is filled, so its child map is created at the right size.
+    public static BulkLoader fromDisk(Path start) throws IOException {
+        BulkLoader loader = new BulkLoader(start.getFileName() == null ? "root" : start.getFileName().toString());
+        ArrayDeque<Directory> pendingDirs = new ArrayDeque<>();
+        ArrayDeque<Path> pendingPaths = new ArrayDeque<>();
+        pendingDirs.push(loader.root);
+        pendingPaths.push(start);
+        while (!pendingDirs.isEmpty()) {
+            Directory dir = pendingDirs.pop();
+            Path path = pendingPaths.pop();
+            List<Path> entries = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+                for (Path entry : stream) {
+                    entries.add(entry);
+                }
+            }
+            dir.reserveChildren(entries.size());
+            for (Path entry : entries) {
+                BasicFileAttributes attrs = Files.readAttributes(entry, BasicFileAttributes.class,
+                        LinkOption.NOFOLLOW_LINKS);
+                String name = entry.getFileName().toString();
+                Timestamp created = new Timestamp(attrs.creationTime().toMillis());
+                if (attrs.isDirectory()) {
+                    Directory child = new Directory(name, dir, created);
+                    dir.putIfAbsentUnpublished(child);
+                    pendingDirs.push(child);
+                    pendingPaths.push(entry);
+                } else {
+                    File file = new File(name, dir, created);
+                    file.setSize(attrs.size());
+                    dir.putIfAbsentUnpublished(file);
+                }
+                loader.count++;
+            }
+        }
+        return loader;
+    }
+
+    // Like fromDisk, for callers that cannot handle the checked exception
+    public static BulkLoader fromDiskUnchecked(Path start) {
+        try {
+            return fromDisk(start);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Number of elements added so far, intermediate directories included
+    public long getCount() {
+        return count;
+    }
+
+    public Directory getRoot() {
+        return root;
+    }
+
+    // Wrap the loaded tree in a FileSystem (which indexes it) after computing the
+    // subtree aggregates in one pass. The loader cannot be used afterwards, since the
+    // tree is then shared.
+    public FileSystem build() {
+        checkOpen();
+        built = true;
+        Directory.recomputeStats(root);
+        return new FileSystem(root, count);
+    }
+
+    private void add(String path, boolean directory, Timestamp dateCreated) {
+        checkOpen();
+        Timestamp created = dateCreated != null ? dateCreated : loadTime;
+        int length = path.length();
+        while (length > 0 && path.charAt(length - 1) == '/') {
+            length--; // Trailing slashes
+        }
+        // Split into components with indexOf, walking the open directory stack
+        int depth = 0;
+        Directory parent = root;
+        int start = 0;
+        while (start < length) {
+            int slash = path.indexOf('/', start);
+            int end = slash < 0 || slash > length ? length : slash;
+            if (end == start || (end - start == 1 && path.charAt(start) == '.')) {
+                start = end + 1; // Empty or "." component
+                continue;
+            }
+            String name = path.substring(start, end);
+            if (name.equals("..")) {
+                throw new IllegalArgumentException("Invalid path: " + path);
+            }
+            if (end == length && !directory) {
+                File file = new File(name, parent, created);
+                if (parent.putIfAbsentUnpublished(file) != file) {
+                    throw new IllegalArgumentException("File already exists: " + path);
+                }
+                count++;
+                return;
+            }
+            parent = openDirectory(depth, parent, name, end == length ? created : loadTime, path);
+            depth++;
+            start = end + 1;
+        }
+        if (depth == 0 && !directory) {
+            throw new IllegalArgumentException("Invalid path: " + path);
+        }
+    }
+
+    // The directory called name at the given depth under parent: the one the previous
+    // path opened there if the names match, else an existing one, else a new one.
+    // Listing a directory that already exists is not an error, so explicit and
+    // implied directories may come in any order.
+    private Directory openDirectory(int depth, Directory parent, String name, Timestamp created, String path) {
+        if (depth < openDirs.size()) {
+            Directory open = openDirs.get(depth);
+            if (open.getName().equals(name)) {
+                return open;
+            }
+            // The path diverges here; forget the deeper part of the previous one
+            openDirs.subList(depth, openDirs.size()).clear();
+        }
+        Directory dir = new Directory(name, parent, created);
+        FileSystemElement existing = parent.putIfAbsentUnpublished(dir);
+        if (existing == dir) {
+            count++;
+        } else if (existing instanceof Directory) {
+            dir = (Directory) existing;
+        } else {
+            throw new IllegalArgumentException("File already exists: " + path);
+        }
+        openDirs.add(dir);
+        return dir;
+    }
+
+    private void checkOpen() {
+        if (built) {
+            throw new IllegalStateException("The tree has already been built.");
+        }
+    }
+}
@@ -0,0 +1,233 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// Children of one directory: a name -> node map plus a doubly linked list of the
+// nodes in listing order (insertion order, or date order after a reorder).
+//
+// The list exists so listings can be resumed. A Cursor remembers the node of the
+// last entry it returned; a removed node keeps its forward link, so a cursor whose
+// entry has since been deleted or moved still finds its way to the next live node.
+// Continuing a listing is O(1) however many entries came before it, and every entry
+// that stays in the directory for the whole listing is returned exactly once. Entries
+// added or removed meanwhile may or may not be seen, and a reorder while listing may
+// repeat or skip entries.
+//
+// Not thread safe on its own; Directory calls it under its lock.
+public class ChildList implements Iterable<FileSystemElement> {
+    private static final class Node {
+        FileSystemElement element;
+        Node prev;
+        Node next;
+        boolean removed;
+
+        Node(FileSystemElement element) {
+            this.element = element;
+        }
+    }
+
+    // Where a listing stopped: opaque, only valid for the directory that made it
+    public static final class Cursor {
+        private final ChildList list;
+        private final Node last; // Last entry returned
+
+        private Cursor(ChildList list, Node last) {
+            this.list = list;
+            this.last = last;
+        }
+    }
+
+    // One page of a listing and the cursor to continue from (null after the last page)
+    public static final class Page {
+        private final List<FileSystemElement> entries;
+        private final Cursor next;
+
+        private Page(List<FileSystemElement> entries, Cursor next) {
+            this.entries = entries;
+            this.next = next;
+        }
+
+        public List<FileSystemElement> getEntries() {
+            return entries;
+        }
+
+        public Cursor getNext() {
+            return next;
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+    }
+
+    private HashMap<String, Node> byName = new HashMap<>();
+    private Node head;
+    private Node tail;
+
+    public int size() {
+        return byName.size();
+    }
+
+    public boolean isEmpty() {
+        return byName.isEmpty();
+    }
+
+    public FileSystemElement get(String name) {
+        Node node = byName.get(name);
+        return node == null ? null : node.element;
+    }
+
+    // Add element at the end, or in place of the entry with the same name (which keeps
+    // its position, as in LinkedHashMap). Returns the replaced element or null.
+    public FileSystemElement put(FileSystemElement element) {
+        Node node = byName.get(element.getName());
+        if (node != null) {
+            FileSystemElement replaced = node.element;
+            node.element = element;
+            return replaced;
+        }
+        append(element);
+        return null;
+    }
+
+    // Add element at the end unless the name is taken; returns the existing element or null
+    public FileSystemElement putIfAbsent(FileSystemElement element) {
+        Node node = byName.get(element.getName());
+        if (node != null) {
+            return node.element;
+        }
+        append(element);
+        return null;
+    }
+
+    // Remove the entry for element's name if it holds exactly element
+    public boolean remove(FileSystemElement element) {
+        Node node = byName.get(element.getName());
+        if (node == null || node.element != element) {
+            return false;
+        }
+        byName.remove(element.getName());
+        unlink(node);
+        return true;
+    }
+
+    public void clear() {
+        for (Node node = head; node != null; node = node.next) {
+            node.removed = true; // Links stay, so parked cursors run off the end
+        }
+        byName = new HashMap<>();
+        head = null;
+        tail = null;
+    }
+
+    // Size the map for expected entries; only while the list is empty
+    public void reserve(int expected) {
+        if (byName.isEmpty() && expected > 12) {
+            byName = new HashMap<>((int) (expected / 0.75f) + 1);
+        }
+    }
+
+    // Relink the entries in the order of ordered, which must hold exactly the current entries
+    public void reorder(List<FileSystemElement> ordered) {
+        Node previous = null;
+        for (FileSystemElement element : ordered) {
+            Node node = byName.get(element.getName());
+            node.prev = previous;
+            if (previous == null) {
+                head = node;
+            } else {
+                previous.next = node;
+            }
+            previous = node;
+        }
+        if (previous != null) {
+            previous.next = null;
+        }
+        tail = previous;
+    }
+
+    // Up to limit entries in listing order after the cursor (null for the first page)
+    public Page page(Cursor after, int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+        if (after != null && after.list != this) {
+            throw new IllegalArgumentException("Cursor belongs to another directory.");
+        }
+        Node node = after == null ? head : nextLive(after.last);
+        if (node == null) {
+            return new Page(Collections.emptyList(), null);
+        }
+        List<FileSystemElement> entries = new ArrayList<>(Math.min(limit, 256));
+        Node last = null;
+        while (node != null && entries.size() < limit) {
+            entries.add(node.element);
+            last = node;
+            node = node.next; // Nodes reached from a live node are live
+        }
+        return new Page(entries, node == null ? null : new Cursor(this, last));
+    }
+
+    // Entries in listing order; only while no other thread modifies the list
+    @Override
+    public Iterator<FileSystemElement> iterator() {
+        return new Iterator<FileSystemElement>() {
+            private Node next = head;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public FileSystemElement next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                FileSystemElement element = next.element;
+                next = next.next;
+                return element;
+            }
+        };
+    }
+
+    // The live node following node, which may itself have been removed since
+    private static Node nextLive(Node node) {
+        Node next = node.next;
+        while (next != null && next.removed) {
+            next = next.next;
+        }
+        return next;
+    }
+
+    private void append(FileSystemElement element) {
+        Node node = new Node(element);
+        byName.put(element.getName(), node);
+        node.prev = tail;
+        if (tail == null) {
+            head = node;
+        } else {
+            tail.next = node;
+        }
+        tail = node;
+    }
+
+    // Take node out of the order; node.next is kept for cursors parked on it
+    private void unlink(Node node) {
+        node.removed = true;
+        if (node.prev == null) {
+            head = node.next;
+        } else {
+            node.prev.next = node.next;
+        }
+        if (node.next == null) {
+            tail = node.prev;
+        } else {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+    }
+}
@@ -0,0 +1,198 @@
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+// Interpreter for the compact text commands used by batch mode and the server:
+//
+//   mkdir <path>          create a directory (the parent must exist)
+//   touch <path>          create a file
+//   mv <path> <dir>       move a file or directory into dir
+//   cp [--cow] <path> <dir>  copy a file or directory into dir (--cow: copy-on-write)
+//   rm <path>             delete a file or directory and everything below it
+//   find <name|pattern>   print the path of every match ('*' and '?' make it a pattern)
+//   find --regex <regex>  print the path of every element whose name matches regex
+//   find --created <from> <to>  print the path of every element created on or after
+//                         day from and before day to (yyyy-mm-dd, "-" for no bound)
+//   cd <path>             change the current directory
+//   ls [path]             list a directory
+//   pwd                   print the current directory
+//   tree [path]           print the tree below a directory
+//
+// Paths are absolute ("/a/b") or relative to the session's current directory, and may
+// use "." and "..". Arguments are separated by whitespace, so names cannot contain it.
+// Failures are written as a single "error: ..." line and never stop the caller.
+public class CommandRunner {
+    static final int FIND_PATTERN_LIMIT = 10000; // Most matches printed for a pattern
+
+    private final FileSystemSession session;
+    private final FileSystem fs;
+
+    public CommandRunner(FileSystemSession session) {
+        this.session = session;
+        this.fs = session.getFileSystem();
+    }
+
+    public FileSystemSession getSession() {
+        return session;
+    }
+
+    // The session's current directory as an absolute "/a/b" path
+    public String getWorkingPath() {
+        return fs.getAbsolutePath(session.getCurrentDirectory());
+    }
+
+    // Run one command line, writing its output (if any) to out. Blank lines and lines
+    // starting with '#' are ignored. Returns false if the command failed.
+    public boolean execute(String line, Appendable out) throws IOException {
+        String[] args = split(line);
+        if (args.length == 0) {
+            return true;
+        }
+        try {
+            switch (args[0]) {
+                case "mkdir":
+                    fs.createDirectory(parentOf(arg(args, 1)), nameOf(args[1]), now());
+                    return true;
+                case "touch":
+                    fs.createFile(parentOf(arg(args, 1)), nameOf(args[1]), now());
+                    return true;
+                case "mv":
+                    fs.moveElement(element(arg(args, 1)), directory(arg(args, 2)));
+                    return true;
+                case "cp": {
+                    boolean copyOnWrite = args.length > 1 && args[1].equals("--cow");
+                    int first = copyOnWrite ? 2 : 1;
+                    fs.copyElement(element(arg(args, first)), directory(arg(args, first + 1)), copyOnWrite);
+                    return true;
+                }
+                case "rm":
+                    fs.deleteElement(element(arg(args, 1)));
+                    return true;
+                case "find":
+                    if (arg(args, 1).equals("--regex")) {
+                        print(fs.searchByRegex(arg(args, 2), FIND_PATTERN_LIMIT), out);
+                    } else if (args[1].equals("--created")) {
+                        print(fs.searchCreatedBetween(day(arg(args, 2)), day(arg(args, 3)), FIND_PATTERN_LIMIT), out);
+                    } else {
+                        find(args[1], out);
+                    }
+                    return true;
+                case "cd":
+                    if (!session.changeDirectory(arg(args, 1))) {
+                        throw new IllegalArgumentException("Directory not found: " + args[1]);
+                    }
+                    return true;
+                case "ls":
+                    for (FileSystemElement child : directory(args.length > 1 ? args[1] : ".").getChildren()) {
+                        out.append(child.getName()).append(child instanceof Directory ? "/\n" : "\n");
+                    }
+                    return true;
+                case "pwd":
+                    out.append(getWorkingPath()).append('\n');
+                    return true;
+                case "tree":
+                    fs.printWholeTree(out, directory(args.length > 1 ? args[1] : "."),
+                            session.getCurrentDirectory());
+                    return true;
+                default:
+                    out.append("error: unknown command: ").append(args[0]).append('\n');
+                    return false;
+            }
+        } catch (IllegalArgumentException e) {
+            out.append("error: ").append(e.getMessage()).append('\n');
+            return false;
+        }
+    }
+
+    // Whitespace separated words of a command line; none for blank and comment lines
+    static String[] split(String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.charAt(0) == '#') {
+            return new String[0];
+        }
+        return trimmed.split("\\s+");
+    }
+
+    private void find(String query, Appendable out) throws IOException {
+        boolean pattern = query.indexOf('*') >= 0 || query.indexOf('?') >= 0;
+        print(pattern ? fs.searchByGlob(query, FIND_PATTERN_LIMIT) : fs.searchAllFilesOrDirectories(query), out);
+    }
+
+    private static void print(List<String> paths, Appendable out) throws IOException {
+        for (String path : paths) {
+            out.append(path).append('\n');
+        }
+    }
+
+    // Start of a yyyy-mm-dd day in local time, or null for "-"
+    private static Timestamp day(String date) {
+        if (date.equals("-")) {
+            return null;
+        }
+        try {
+            return Timestamp.valueOf(LocalDate.parse(date).atStartOfDay());
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Not a yyyy-mm-dd date: " + date);
+        }
+    }
+
+    private static String arg(String[] args, int index) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing argument for " + args[0] + ".");
+        }
+        return args[index];
+    }
+
+    private Directory directory(String path) {
+        Directory dir = fs.changeDirectory(session.getCurrentDirectory(), path);
+        if (dir == null) {
+            throw new IllegalArgumentException("Directory not found: " + path);
+        }
+        return dir;
+    }
+
+    // Directory that would hold the last part of path
+    private Directory parentOf(String path) {
+        String trimmed = stripTrailingSlashes(path);
+        int slash = trimmed.lastIndexOf('/');
+        if (slash < 0) {
+            return session.getCurrentDirectory();
+        }
+        return directory(slash == 0 ? "/" : trimmed.substring(0, slash));
+    }
+
+    private static String nameOf(String path) {
+        String trimmed = stripTrailingSlashes(path);
+        String name = trimmed.substring(trimmed.lastIndexOf('/') + 1);
+        if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+            throw new IllegalArgumentException("Invalid name: " + path);
+        }
+        return name;
+    }
+
+    private FileSystemElement element(String path) {
+        String trimmed = stripTrailingSlashes(path);
+        if (trimmed.isEmpty() || trimmed.equals(".") || trimmed.endsWith("/.") || trimmed.endsWith("..")) {
+            return directory(path.isEmpty() ? "/" : path); // "/", "." and ".." name directories
+        }
+        FileSystemElement element = parentOf(trimmed).findElement(nameOf(trimmed));
+        if (element == null) {
+            throw new IllegalArgumentException("File or directory does not exist: " + path);
+        }
+        return element;
+    }
+
+    private static String stripTrailingSlashes(String path) {
+        int end = path.length();
+        while (end > 1 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(0, end);
+    }
+
+    private static Timestamp now() {
+        return new Timestamp(System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// FileSystem-style API on top of a CompactNodeStore. Elements are addressed by
+// absolute path ("/a/b") and exist only as ids in primitive arrays, so very large
+// trees fit in a fraction of the memory of Directory/File objects.
+//
+// A parallel engine with its own API, not a backing store behind FileSystem: Main,
+// batch mode, FileSystemServer and the journal do not use it. bench/EngineBenchmark
+// compares its speed and memory per node with FileSystem's ("make footprint").
+//
+// Not thread safe.
+public class CompactFileSystem {
+    private final CompactNodeStore store;
+
+    public CompactFileSystem() {
+        this(new CompactNodeStore(new NameArena(), "root", System.currentTimeMillis()));
+    }
+
+    public CompactFileSystem(CompactNodeStore store) {
+        this.store = store;
+    }
+
+    // Copy an existing Directory tree into a new compact file system
+    public static CompactFileSystem fromDirectory(Directory root) {
+        CompactNodeStore store = new CompactNodeStore(new NameArena(), root.getName(),
+                root.getDateCreated().getTime());
+        ArrayDeque<Directory> dirs = new ArrayDeque<>();
+        ArrayDeque<Integer> ids = new ArrayDeque<>();
+        dirs.push(root);
+        ids.push(store.root());
+        while (!dirs.isEmpty()) {
+            Directory dir = dirs.pop();
+            int id = ids.pop();
+            for (FileSystemElement child : dir.snapshotChildren()) {
+                boolean directory = child instanceof Directory;
+                int childId = store.add(id, child.getName(), directory, child.getDateCreated().getTime());
+                if (directory) {
+                    dirs.push((Directory) child);
+                    ids.push(childId);
+                }
+            }
+        }
+        return new CompactFileSystem(store);
+    }
+
+    public CompactNodeStore getStore() {
+        return store;
+    }
+
+    // Id of the element at an absolute path, or CompactNodeStore.NONE
+    public int resolvePath(String path) {
+        int current = store.root();
+        int partStart = 0;
+        int length = path.length();
+        while (partStart <= length && current != CompactNodeStore.NONE) {
+            int partEnd = path.indexOf('/', partStart);
+            if (partEnd < 0) {
+                partEnd = length;
+            }
+            if (partEnd > partStart) {
+                current = store.child(current, path.substring(partStart, partEnd));
+            }
+            partStart = partEnd + 1;
+        }
+        return current;
+    }
+
+    // Id of the directory at an absolute path, or CompactNodeStore.NONE
+    public int changeDirectory(String path) {
+        int id = resolvePath(path);
+        return id != CompactNodeStore.NONE && store.isDirectory(id) ? id : CompactNodeStore.NONE;
+    }
+
+    public int createFile(String parentPath, String name) {
+        return store.add(requireDirectory(parentPath), name, false, System.currentTimeMillis());
+    }
+
+    public int createDirectory(String parentPath, String name) {
+        return store.add(requireDirectory(parentPath), name, true, System.currentTimeMillis());
+    }
+
+    public void deleteFileOrDirectory(String path) {
+        int id = resolvePath(path);
+        if (id == CompactNodeStore.NONE) {
+            throw new IllegalArgumentException("File or directory does not exist.");
+        }
+        store.delete(id);
+    }
+
+    public void moveFileOrDirectory(String path, String newParentPath) {
+        int id = resolvePath(path);
+        if (id == CompactNodeStore.NONE || id == store.root()) {
+            throw new IllegalArgumentException("The file/directory to move does not exist.");
+        }
+        int newParent = requireDirectory(newParentPath);
+        // Prevent moving a directory into itself or its subdirectories
+        for (int up = newParent; up != CompactNodeStore.NONE; up = store.getParent(up)) {
+            if (up == id) {
+                throw new IllegalArgumentException("Cannot move a directory inside itself or its subdirectories.");
+            }
+        }
+        store.move(id, newParent);
+    }
+
+    public void sortContentsByDate(String path) {
+        store.sortChildrenByDate(requireDirectory(path));
+    }
+
+    // Names of the directory's children, directories with a trailing "/"
+    public List<String> listDirectoryContents(String path) {
+        List<String> contents = new ArrayList<>();
+        for (int c = store.getFirstChild(requireDirectory(path)); c != CompactNodeStore.NONE;
+                c = store.getNextSibling(c)) {
+            contents.add(store.getName(c) + (store.isDirectory(c) ? "/" : ""));
+        }
+        return contents;
+    }
+
+    // Path of the first element with the given name, or "" if there is none
+    public String searchFileOrDirectory(String name) {
+        List<String> found = search(name, 1);
+        return found.isEmpty() ? "" : found.get(0);
+    }
+
+    public List<String> searchAllFilesOrDirectories(String name) {
+        return search(name, Integer.MAX_VALUE);
+    }
+
+    // Sequential scan of the name id column, no pointer chasing and no allocation per node
+    private List<String> search(String name, int limit) {
+        List<String> found = new ArrayList<>();
+        int nid = store.getNames().find(name);
+        if (nid < 0) {
+            return found;
+        }
+        int highWater = store.getHighWater();
+        for (int id = 1; id < highWater && found.size() < limit; id++) {
+            if (store.getNameId(id) == nid && store.isAttached(id)) {
+                found.add(getAbsolutePath(id));
+            }
+        }
+        return found;
+    }
+
+    public String getAbsolutePath(int id) {
+        if (id == store.root()) {
+            return "/";
+        }
+        ArrayDeque<String> parts = new ArrayDeque<>();
+        for (int up = id; up != store.root(); up = store.getParent(up)) {
+            parts.push(store.getName(up));
+        }
+        StringBuilder path = new StringBuilder();
+        for (String part : parts) {
+            path.append('/').append(part);
+        }
+        return path.toString();
+    }
+
+    // Print the whole tree in the same layout as FileSystem.printWholeTree, following
+    // the sibling links directly, so no stack or iterator is allocated.
+    // Returns the number of nodes written.
+    public long printWholeTree(Appendable out) throws IOException {
+        int root = store.root();
+        out.append("* ").append(store.getName(root)).append("/\n");
+        long written = 1;
+        int depth = 1;
+        int current = store.getFirstChild(root);
+        while (current != CompactNodeStore.NONE) {
+            for (int i = 0; i < depth; i++) {
+                out.append("    ");
+            }
+            if (store.isDirectory(current)) {
+                out.append("* ").append(store.getName(current)).append("/\n");
+            } else {
+                out.append(store.getName(current)).append('\n');
+            }
+            written++;
+
+            int first = store.getFirstChild(current);
+            if (first != CompactNodeStore.NONE) {
+                current = first;
+                depth++;
+                continue;
+            }
+            // Next sibling, or climb until an ancestor has one
+            while (current != root && store.getNextSibling(current) == CompactNodeStore.NONE) {
+                current = store.getParent(current);
+                depth--;
+            }
+            current = current == root ? CompactNodeStore.NONE : store.getNextSibling(current);
+        }
+        return written;
+    }
+
+    // Nodes holding an id, including those of deleted subtrees that are not reclaimed
+    // yet (see CompactNodeStore.reclaim); counting only attached ones would need a walk
+    public int getAllocatedNodeCount() {
+        return store.getAllocatedCount();
+    }
+
+    private int requireDirectory(String path) {
+        int id = changeDirectory(path);
+        if (id == CompactNodeStore.NONE) {
+            throw new IllegalArgumentException("Directory not found.");
+        }
+        return id;
+    }
+}
@@ -0,0 +1,438 @@
+import java.util.Arrays;
+
+// Struct-of-arrays node storage. A node is just an int id; its fields live in
+// parallel primitive arrays split into fixed-size pages, so growing the store
+// never copies existing data and the GC sees a few large arrays instead of
+// hundreds of millions of small objects.
+//
+// Per node: parent, firstChild, nextSibling, prevSibling, nameId (into a shared
+// NameArena) and the creation time in epoch millis, about 28 bytes in total.
+// Children form a doubly linked list in insertion order; the first child's
+// prevSibling points at the last child so appends are O(1). A primitive hash
+// table of child ids keyed by (parent, nameId) makes child lookup O(1) as well;
+// it stores only the id and reads the key back from the node columns.
+//
+// Not thread safe.
+public class CompactNodeStore {
+    public static final int NONE = -1;
+    private static final int FILE = -2;  // firstChild of a file
+    private static final int FREED = -3; // parent of a freed id
+
+    private static final int PAGE_BITS = 16;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int RECLAIM_BATCH = 64; // Nodes freed per allocation that finds no free id
+
+    private final NameArena names;
+    private int[][] parent = new int[0][];
+    private int[][] firstChild = new int[0][];
+    private int[][] nextSibling = new int[0][];
+    private int[][] prevSibling = new int[0][];
+    private int[][] nameId = new int[0][];
+    private long[][] created = new long[0][];
+    private int highWater;       // Ids below this have been handed out at least once
+    private int freeHead = NONE; // Freed ids chained through nextSibling
+    private int allocatedCount;
+    // Deleted subtrees waiting to be freed: their tops chained through nextSibling, plus
+    // the position of the walk that is freeing the current one (see reclaim)
+    private int detachedHead = NONE;
+    private int reclaimTop = NONE;
+    private int reclaimCursor = NONE;
+
+    // Child ids hashed by (parent << 32 | nameId), open addressing with linear probing
+    private int[] childTable;
+    private int childCount;
+
+    public CompactNodeStore(NameArena names, String rootName, long rootCreated) {
+        this.names = names;
+        childTable = new int[1 << 10];
+        Arrays.fill(childTable, NONE);
+        int root = allocate();
+        set(parent, root, NONE);
+        set(firstChild, root, NONE);
+        set(nextSibling, root, NONE);
+        set(prevSibling, root, NONE);
+        set(nameId, root, names.intern(rootName));
+        setLong(created, root, rootCreated);
+    }
+
+    public int root() {
+        return 0;
+    }
+
+    public NameArena getNames() {
+        return names;
+    }
+
+    // Create a file or directory under parentId; returns its id
+    public int add(int parentId, String name, boolean directory, long dateCreated) {
+        if (!isDirectory(parentId)) {
+            throw new IllegalArgumentException("Directory not found.");
+        }
+        int nid = names.intern(name);
+        if (findChild(parentId, nid) != NONE) {
+            throw new IllegalArgumentException(directory ? "Directory already exists." : "File already exists.");
+        }
+        int id = allocate();
+        set(firstChild, id, directory ? NONE : FILE);
+        set(nameId, id, nid);
+        setLong(created, id, dateCreated);
+        link(id, parentId);
+        return id;
+    }
+
+    // Child of parentId with the given name, or NONE
+    public int child(int parentId, String name) {
+        int nid = names.find(name);
+        return nid < 0 ? NONE : findChild(parentId, nid);
+    }
+
+    public boolean isDirectory(int id) {
+        return get(firstChild, id) != FILE;
+    }
+
+    // True if id is allocated; nodes of a deleted subtree stay allocated until reclaimed
+    public boolean isLive(int id) {
+        return id >= 0 && id < highWater && get(parent, id) != FREED;
+    }
+
+    // True if id is allocated and still reachable from the root. O(depth).
+    public boolean isAttached(int id) {
+        if (!isLive(id)) {
+            return false;
+        }
+        int current = id;
+        while (current != root()) {
+            current = get(parent, current);
+            if (current == NONE) {
+                return false; // Top of a deleted subtree
+            }
+        }
+        return true;
+    }
+
+    public String getName(int id) {
+        return names.get(get(nameId, id));
+    }
+
+    public int getNameId(int id) {
+        return get(nameId, id);
+    }
+
+    public long getDateCreated(int id) {
+        return getLong(created, id);
+    }
+
+    public int getParent(int id) {
+        return get(parent, id);
+    }
+
+    // First child of a directory, NONE if it is empty or a file
+    public int getFirstChild(int id) {
+        int first = get(firstChild, id);
+        return first == FILE ? NONE : first;
+    }
+
+    public int getNextSibling(int id) {
+        return get(nextSibling, id);
+    }
+
+    // Upper bound (exclusive) of ids ever handed out, for full scans
+    public int getHighWater() {
+        return highWater;
+    }
+
+    // Allocated ids, including deleted subtrees that have not been reclaimed yet
+    public int getAllocatedCount() {
+        return allocatedCount;
+    }
+
+    // Move id under newParentId, keeping its name
+    public void move(int id, int newParentId) {
+        if (!isDirectory(newParentId)) {
+            throw new IllegalArgumentException("The new path for the file/directory does not exist.");
+        }
+        int existing = findChild(newParentId, get(nameId, id));
+        if (existing == id) {
+            return; // Already there
+        }
+        if (existing != NONE) {
+            throw new IllegalArgumentException("An element with the same name already exists in the target directory.");
+        }
+        unlink(id);
+        link(id, newParentId);
+    }
+
+    // Remove id and everything below it. Only the top is unlinked here, in O(1); the
+    // ids of the subtree are recycled later by reclaim(), which allocation also calls
+    // before it grows the store.
+    public void delete(int id) {
+        if (id == root()) {
+            throw new IllegalArgumentException("Cannot delete the root directory.");
+        }
+        unlink(id);
+        set(nextSibling, id, detachedHead);
+        detachedHead = id;
+    }
+
+    // Free up to budget nodes of deleted subtrees; returns how many were freed.
+    // The walk needs no stack: down through firstChild, then along siblings, climbing
+    // up through parent when a level is finished, so it can stop and resume anywhere.
+    public int reclaim(int budget) {
+        int freed = 0;
+        while (freed < budget) {
+            if (reclaimCursor == NONE) {
+                if (detachedHead == NONE) {
+                    break;
+                }
+                reclaimTop = detachedHead;
+                reclaimCursor = detachedHead;
+                detachedHead = get(nextSibling, detachedHead);
+                set(nextSibling, reclaimTop, NONE);
+            }
+            int current = reclaimCursor;
+            int first = getFirstChild(current);
+            if (first != NONE) {
+                reclaimCursor = first;
+                continue;
+            }
+            // current is a leaf: free it, then continue with its sibling or go up
+            int next = get(nextSibling, current);
+            int up = get(parent, current);
+            boolean top = current == reclaimTop;
+            if (!top) {
+                removeChildKey(up, get(nameId, current));
+            }
+            release(current);
+            freed++;
+            if (top) {
+                reclaimCursor = NONE;
+            } else if (next != NONE) {
+                reclaimCursor = next;
+            } else {
+                set(firstChild, up, NONE); // All children of up are freed
+                reclaimCursor = up;
+            }
+        }
+        return freed;
+    }
+
+    // Free every deleted subtree now
+    public void reclaimAll() {
+        while (reclaim(Integer.MAX_VALUE) > 0) {
+            // reclaim stops at the budget or when nothing is left
+        }
+    }
+
+    // Relink the children of dirId ordered by creation time (stable)
+    public void sortChildrenByDate(int dirId) {
+        int count = 0;
+        for (int c = getFirstChild(dirId); c != NONE; c = get(nextSibling, c)) {
+            count++;
+        }
+        Integer[] order = new Integer[count];
+        int i = 0;
+        for (int c = getFirstChild(dirId); c != NONE; c = get(nextSibling, c)) {
+            order[i++] = c;
+        }
+        // Object sort is stable, so equal creation times keep their current order
+        Arrays.sort(order, (a, b) -> Long.compare(getLong(created, a), getLong(created, b)));
+        set(firstChild, dirId, NONE);
+        for (Integer c : order) {
+            appendChild(c, dirId);
+        }
+    }
+
+    // Approximate heap used by the store (pages, child table and names)
+    public long memoryBytes() {
+        long pages = (long) parent.length * PAGE_SIZE * (5 * 4 + 8);
+        return pages + 4L * childTable.length + names.memoryBytes();
+    }
+
+    private void link(int id, int parentId) {
+        set(parent, id, parentId);
+        appendChild(id, parentId);
+        putChildKey(id);
+    }
+
+    private void appendChild(int id, int parentId) {
+        int head = get(firstChild, parentId);
+        set(nextSibling, id, NONE);
+        if (head == NONE) {
+            set(firstChild, parentId, id);
+            set(prevSibling, id, id); // Single child is its own tail
+        } else {
+            int tail = get(prevSibling, head);
+            set(nextSibling, tail, id);
+            set(prevSibling, id, tail);
+            set(prevSibling, head, id);
+        }
+    }
+
+    private void unlink(int id) {
+        int parentId = get(parent, id);
+        int head = get(firstChild, parentId);
+        int next = get(nextSibling, id);
+        int prev = get(prevSibling, id);
+        if (id == head) {
+            set(firstChild, parentId, next);
+            if (next != NONE) {
+                set(prevSibling, next, prev); // New head inherits the tail pointer
+            }
+        } else {
+            set(nextSibling, prev, next);
+            if (next != NONE) {
+                set(prevSibling, next, prev);
+            } else {
+                set(prevSibling, head, prev); // id was the tail
+            }
+        }
+        removeChildKey(parentId, get(nameId, id));
+        set(parent, id, NONE);
+    }
+
+    private int allocate() {
+        int id;
+        if (freeHead == NONE && (reclaimCursor != NONE || detachedHead != NONE)) {
+            reclaim(RECLAIM_BATCH); // Reuse ids of deleted nodes before growing
+        }
+        if (freeHead != NONE) {
+            id = freeHead;
+            freeHead = get(nextSibling, id);
+        } else {
+            if (highWater == Integer.MAX_VALUE) {
+                throw new IllegalStateException("Node store is full.");
+            }
+            id = highWater++;
+            if ((id >>> PAGE_BITS) >= parent.length) {
+                addPage();
+            }
+        }
+        allocatedCount++;
+        return id;
+    }
+
+    private void release(int id) {
+        set(parent, id, FREED);
+        set(firstChild, id, NONE);
+        set(nextSibling, id, freeHead);
+        freeHead = id;
+        allocatedCount--;
+    }
+
+    private void addPage() {
+        int pages = parent.length + 1;
+        parent = Arrays.copyOf(parent, pages);
+        firstChild = Arrays.copyOf(firstChild, pages);
+        nextSibling = Arrays.copyOf(nextSibling, pages);
+        prevSibling = Arrays.copyOf(prevSibling, pages);
+        nameId = Arrays.copyOf(nameId, pages);
+        created = Arrays.copyOf(created, pages);
+        parent[pages - 1] = new int[PAGE_SIZE];
+        firstChild[pages - 1] = new int[PAGE_SIZE];
+        nextSibling[pages - 1] = new int[PAGE_SIZE];
+        prevSibling[pages - 1] = new int[PAGE_SIZE];
+        nameId[pages - 1] = new int[PAGE_SIZE];
+        created[pages - 1] = new long[PAGE_SIZE];
+    }
+
+    private int findChild(int parentId, int nid) {
+        long key = childKey(parentId, nid);
+        int mask = childTable.length - 1;
+        int slot = mix(key) & mask;
+        while (childTable[slot] != NONE) {
+            if (keyOf(childTable[slot]) == key) {
+                return childTable[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NONE;
+    }
+
+    // Caller has already set the parent and name of id
+    private void putChildKey(int id) {
+        if ((childCount + 1) * 4 > childTable.length * 3) {
+            resizeChildTable(childTable.length * 2); // Load factor at most 3/4
+        }
+        int mask = childTable.length - 1;
+        int slot = mix(keyOf(id)) & mask;
+        while (childTable[slot] != NONE) {
+            slot = (slot + 1) & mask;
+        }
+        childTable[slot] = id;
+        childCount++;
+    }
+
+    // Linear probing delete with backward shift, so no tombstones pile up.
+    // Must run before the node's parent or name changes.
+    private void removeChildKey(int parentId, int nid) {
+        long key = childKey(parentId, nid);
+        int mask = childTable.length - 1;
+        int slot = mix(key) & mask;
+        while (childTable[slot] == NONE || keyOf(childTable[slot]) != key) {
+            if (childTable[slot] == NONE) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        childCount--;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (childTable[next] != NONE) {
+            int home = mix(keyOf(childTable[next])) & mask;
+            // Move the entry into the hole if the hole lies between its home slot and its slot
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                childTable[hole] = childTable[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        childTable[hole] = NONE;
+    }
+
+    private void resizeChildTable(int size) {
+        int[] old = childTable;
+        childTable = new int[size];
+        Arrays.fill(childTable, NONE);
+        int mask = size - 1;
+        for (int id : old) {
+            if (id != NONE) {
+                int slot = mix(keyOf(id)) & mask;
+                while (childTable[slot] != NONE) {
+                    slot = (slot + 1) & mask;
+                }
+                childTable[slot] = id;
+            }
+        }
+    }
+
+    // The table stores only node ids; the (parent, name) key is read back from the node
+    private long keyOf(int id) {
+        return childKey(get(parent, id), get(nameId, id));
+    }
+
+    private static long childKey(int parentId, int nid) {
+        return ((long) parentId << 32) | (nid & 0xffffffffL);
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int get(int[][] pages, int id) {
+        return pages[id >>> PAGE_BITS][id & PAGE_MASK];
+    }
+
+    private static void set(int[][] pages, int id, int value) {
+        pages[id >>> PAGE_BITS][id & PAGE_MASK] = value;
+    }
+
+    private static long getLong(long[][] pages, int id) {
+        return pages[id >>> PAGE_BITS][id & PAGE_MASK];
+    }
+
+    private static void setLong(long[][] pages, int id, long value) {
+        pages[id >>> PAGE_BITS][id & PAGE_MASK] = value;
+    }
+}
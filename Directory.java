@@ -1,28 +1,621 @@
-
-import java.util.LinkedList;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.sql.Timestamp;
 
 public class Directory extends FileSystemElement {
 
-    private LinkedList<FileSystemElement> children = new LinkedList<>();
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+    static final int LISTING_PAGE_SIZE = 256; // Entries read per lock hold by getChildren()
+
+    // Children keyed by name, in listing order (insertion order until reordered)
+    private final ChildList children = new ChildList();
+
+    // Guards children. Every method below locks it, FileSystem also holds it across
+    // check-then-act sequences. Locks of two directories are always taken in id order.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final long id = NEXT_ID.getAndIncrement();
+    private volatile PathCache.Entry cachedPath; // Absolute path, see PathCache
+    private volatile long pathStamp; // Epoch of the last move, delete or eviction of this directory
+    private volatile SortedChildViews sortedViews; // Built on first sorted listing, then kept up to date
+    // Non-null while the children are spilled to disk by a TieredStore (this is a stub)
+    volatile TieredStore.Spill spill;
+    boolean accessed; // CLOCK reference bit for TieredStore; racy on purpose
+    // Non-null while this is a copy-on-write copy whose children are not built yet
+    volatile SubtreeCopier.Share share;
+    // Non-null while copy-on-write copies read this directory's children
+    volatile SubtreeCopier.Copies copies;
+
+    // Aggregates over everything below this directory, kept current by addElement and
+    // removeElement (O(depth) per change) so reading them is O(1). Written under this
+    // directory's monitor, which also guards its linked flag. A change is carried up one
+    // ancestor at a time, holding one monitor at a time (taken after directory locks,
+    // never before one), so changes in different subtrees only meet for the moment they
+    // update a shared ancestor. The deltas commute, so concurrent walks may reach an
+    // ancestor in any order.
+    private volatile long fileCount;
+    private volatile long directoryCount;
+    private volatile long totalSize;
+    private volatile int height; // Levels below this directory, 0 when it is empty
+    private TreeMap<Integer, Integer> childHeights; // Height of each child -> how many; this monitor
 
     public Directory(String name, Directory parent, Timestamp dateCreated) {
         super(name, parent, dateCreated);
-        children = new LinkedList<>(); // Initialize the list of children
+    }
+
+    // Mark this directory as used and, if it is a stub, fault its children back in; if
+    // it is a copy-on-write copy, build its children. Called before taking the lock by
+    // everything that reads or changes the children.
+    private void ensureResident() {
+        if (!accessed) {
+            accessed = true;
+        }
+        TieredStore.Spill stub = spill;
+        if (stub != null) {
+            stub.faultIn(this);
+        }
+        SubtreeCopier.Share shared = share;
+        if (shared != null) {
+            shared.materialize(this);
+        }
+    }
+
+    // A copy-on-write copy that is not built yet, or a directory such copies read from
+    boolean sharesChildren() {
+        return share != null || copies != null;
     }
 
     public void addElement(FileSystemElement element) {
-        children.add(element);      // Add the element to the list of children
-        element.setParent(this); // Set the parent of the element to this directory
+        ensureResident();
+        lock.writeLock().lock();
+        try {
+            FileSystemElement replaced = children.put(element); // Add the element to the map of children
+            element.setParent(this); // Set the parent of the element to this directory
+            if (sortedViews != null) {
+                if (replaced != null) {
+                    sortedViews.remove(replaced);
+                }
+                sortedViews.add(element);
+            }
+            if (replaced != element) {
+                if (replaced != null) {
+                    unlinkStats(replaced);
+                }
+                linkStats(element);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     public void removeElement(FileSystemElement element) {
-        children.remove(element);
-        // Note: Setting the parent to null should be done in moveFileOrDirectory method
+        ensureResident();
+        lock.writeLock().lock();
+        try {
+            // Only remove the mapping if it still points at this exact element
+            if (children.remove(element)) {
+                if (sortedViews != null) {
+                    sortedViews.remove(element);
+                }
+                unlinkStats(element);
+            }
+            // Note: Setting the parent to null should be done in moveFileOrDirectory method
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Read-only view of the children in listing order. Nothing is copied: iterating
+    // reads LISTING_PAGE_SIZE entries at a time under the read lock (see listPage), so
+    // it is safe while other threads modify the directory and starts immediately even
+    // for a huge directory.
+    public Collection<FileSystemElement> getChildren() {
+        return new AbstractCollection<FileSystemElement>() {
+            @Override
+            public Iterator<FileSystemElement> iterator() {
+                return iterateChildren(LISTING_PAGE_SIZE);
+            }
+
+            @Override
+            public int size() {
+                return getChildCount();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof FileSystemElement && findElement(((FileSystemElement) o).getName()) == o;
+            }
+        };
+    }
+
+    // Copy of the children taken under the read lock, safe to use from any thread
+    public List<FileSystemElement> snapshotChildren() {
+        ensureResident();
+        lock.readLock().lock();
+        try {
+            List<FileSystemElement> copy = new ArrayList<>(children.size());
+            for (FileSystemElement child : children) {
+                copy.add(child);
+            }
+            return copy;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Up to limit children in listing order after the cursor (null for the first
+    // page), plus the cursor for the next page. O(limit) wherever the page starts.
+    public ChildList.Page listPage(ChildList.Cursor after, int limit) {
+        ensureResident();
+        lock.readLock().lock();
+        try {
+            return children.page(after, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Children in listing order, fetched pageSize at a time as the iterator advances
+    public Iterator<FileSystemElement> iterateChildren(int pageSize) {
+        return new Iterator<FileSystemElement>() {
+            private ChildList.Page page = listPage(null, pageSize);
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                if (index == page.getEntries().size() && page.hasNext()) {
+                    page = listPage(page.getNext(), pageSize);
+                    index = 0;
+                }
+                return index < page.getEntries().size();
+            }
+
+            @Override
+            public FileSystemElement next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.getEntries().get(index++);
+            }
+        };
+    }
+
+    // Children in listing order as a lazy Stream, fetched pageSize at a time
+    public Stream<FileSystemElement> streamChildren(int pageSize) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterateChildren(pageSize),
+                Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.DISTINCT), false);
+    }
+
+    // Number of direct children of this directory
+    public int getChildCount() {
+        ensureResident();
+        lock.readLock().lock();
+        try {
+            return children.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Reorder the children using the given comparator (used by sortContentsByDate)
+    public void sortChildren(Comparator<FileSystemElement> comparator) {
+        ensureResident();
+        lock.writeLock().lock();
+        try {
+            List<FileSystemElement> sorted = new ArrayList<>(children.size());
+            for (FileSystemElement child : children) {
+                sorted.add(child);
+            }
+            sorted.sort(comparator);
+            children.reorder(sorted);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Bulk loading only: replace the (still empty) child map with one sized for
+    // expected entries so it never rehashes while it is filled
+    void reserveChildren(int expected) {
+        lock.writeLock().lock();
+        try {
+            children.reserve(expected);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Bulk loading only: add element unless the name is taken and return whatever
+    // now holds the name. The directory must not be visible to other threads yet.
+    FileSystemElement putIfAbsentUnpublished(FileSystemElement element) {
+        FileSystemElement existing = children.putIfAbsent(element);
+        if (existing != null) {
+            return existing;
+        }
+        element.setParent(this);
+        return element;
+    }
+
+    // Put the children in creation-date order using the maintained date view (no sort)
+    public void reorderByDate() {
+        ensureResident();
+        lock.writeLock().lock();
+        try {
+            children.reorder(views().allByDate());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Up to limit children in the given order after the cursor (last element of the
+    // previous page, null for the first page). O(log n + limit).
+    public List<FileSystemElement> listSorted(SortedChildViews.Order order, FileSystemElement after, int limit) {
+        SortedChildViews views = views();
+        lock.readLock().lock();
+        try {
+            return views.page(order, after, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Up to limit children created in [from, to), oldest first, after the cursor
+    public List<FileSystemElement> listCreatedBetween(Timestamp from, Timestamp to, FileSystemElement after,
+            int limit) {
+        SortedChildViews views = views();
+        lock.readLock().lock();
+        try {
+            return views.createdBetween(from, to, after, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Up to limit children whose name starts with prefix, in name order. O(log n + limit).
+    public List<FileSystemElement> listByNamePrefix(String prefix, int limit) {
+        SortedChildViews views = views();
+        lock.readLock().lock();
+        try {
+            return views.withNamePrefix(prefix, limit);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // The sorted views, built from the current children the first time they are needed
+    private SortedChildViews views() {
+        ensureResident();
+        SortedChildViews views = sortedViews;
+        if (views == null) {
+            lock.writeLock().lock();
+            try {
+                if (sortedViews == null) {
+                    sortedViews = new SortedChildViews(children);
+                }
+                views = sortedViews;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return views;
+    }
+
+    // TieredStore only, with every mutation excluded: hand over the children and turn
+    // this directory into a stub. The aggregates are kept, so nothing above it changes.
+    List<FileSystemElement> spillChildren(TieredStore.Spill stub) {
+        lock.writeLock().lock();
+        try {
+            List<FileSystemElement> spilled = new ArrayList<>(children.size());
+            for (FileSystemElement child : children) {
+                spilled.add(child);
+            }
+            children.clear();
+            sortedViews = null; // Rebuilt on demand after the children come back
+            spill = stub;
+            return spilled;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // TieredStore only, under this directory's write lock: put back children read from
+    // the spill file (whose subtrees are already filled) and stop being a stub
+    void restoreChildren(List<FileSystemElement> restored) {
+        for (FileSystemElement child : restored) {
+            putIfAbsentUnpublished(child);
+        }
+        spill = null;
+        recomputeStats(this); // Links the new objects; the totals come out unchanged
+    }
+
+    // Remove every child and mark this directory as deleted so nothing new is added to it.
+    // Returns the removed children.
+    public List<FileSystemElement> detachAll() {
+        lock.writeLock().lock();
+        try {
+            deleted = true;
+            TieredStore.Spill spilled = spill;
+            if (spilled != null) {
+                spill = null;
+                spilled.release(this); // Deleted while on disk; nothing to read back
+            }
+            SubtreeCopier.Share shared = share;
+            if (shared != null) {
+                share = null;
+                shared.copier.release(shared.source, this); // Deleted before it was built
+            }
+            List<FileSystemElement> removed = new ArrayList<>(children.size());
+            for (FileSystemElement child : children) {
+                removed.add(child);
+            }
+            children.clear();
+            if (sortedViews != null) {
+                sortedViews.clear();
+            }
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Files anywhere below this directory
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    // Directories anywhere below this directory (not counting itself)
+    public long getDirectoryCount() {
+        return directoryCount;
+    }
+
+    // Sum of File.getSize() over every file below this directory
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    // Depth of the deepest element below this directory: 0 if empty, 1 if it only
+    // holds files or empty directories, and so on
+    public int getMaxDepth() {
+        return height;
+    }
+
+    // Batched propagation: recompute the aggregates of every directory below top in
+    // one post-order pass, then push top's change up to its ancestors once. For trees
+    // filled without addElement (bulk loads); nothing may add or remove children in the
+    // subtree meanwhile. Each directory is recomputed under its monitor and reads each
+    // child under the child's, so a concurrent File.setSize lands either in the sum or
+    // on top of it.
+    public static void recomputeStats(Directory top) {
+        ArrayList<Directory> order = new ArrayList<>(); // Pre-order; walked backwards it is post-order
+        order.add(top);
+        for (int i = 0; i < order.size(); i++) {
+            for (FileSystemElement child : order.get(i).children) {
+                if (child instanceof Directory && !((Directory) child).keepsStats()) {
+                    order.add((Directory) child);
+                }
+            }
+        }
+        long fileDelta = 0;
+        long dirDelta = 0;
+        long sizeDelta = 0;
+        int oldHeight = 0;
+        int newTopHeight = 0;
+        Directory parent = null; // Set if top is linked
+        for (int i = order.size() - 1; i >= 0; i--) {
+            Directory dir = order.get(i);
+            synchronized (dir) {
+                long files = 0;
+                long dirs = 0;
+                long size = 0;
+                dir.childHeights = null;
+                for (FileSystemElement child : dir.children) {
+                    synchronized (child) {
+                        child.linked = true;
+                        if (child instanceof Directory) {
+                            Directory sub = (Directory) child;
+                            files += sub.fileCount;
+                            dirs += sub.directoryCount + 1;
+                            size += sub.totalSize;
+                            dir.countChildHeight(sub.height, 1);
+                        } else {
+                            files++;
+                            size += ((File) child).getSize();
+                            dir.countChildHeight(0, 1);
+                        }
+                    }
+                }
+                int newHeight = dir.heightFromChildren();
+                if (dir == top) {
+                    fileDelta = files - dir.fileCount;
+                    dirDelta = dirs - dir.directoryCount;
+                    sizeDelta = size - dir.totalSize;
+                    oldHeight = dir.height;
+                    newTopHeight = newHeight;
+                    parent = dir.linked ? dir.getParent() : null;
+                }
+                dir.fileCount = files;
+                dir.directoryCount = dirs;
+                dir.totalSize = size;
+                dir.height = newHeight;
+            }
+        }
+        if (parent != null) {
+            parent.applyChange(fileDelta, dirDelta, sizeDelta, oldHeight, newTopHeight);
+        }
+    }
+
+    // A stub keeps the aggregates it was spilled with, an unbuilt copy-on-write copy
+    // those of its source; neither has the children to recompute them from
+    private boolean keepsStats() {
+        return spill != null || share != null;
+    }
+
+    // SubtreeCopier only, on a copy-on-write copy that is not in any directory yet
+    void copyStatsFrom(Directory source) {
+        synchronized (source) {
+            fileCount = source.fileCount;
+            directoryCount = source.directoryCount;
+            totalSize = source.totalSize;
+            height = source.height;
+        }
+    }
+
+    // Count element and its subtree into this directory and its ancestors. Flipping
+    // linked and reading what to add happen under element's monitor, so a change inside
+    // element either is in that reading or carries itself up past element afterwards.
+    private void linkStats(FileSystemElement element) {
+        long files;
+        long dirs;
+        long size;
+        int elementHeight;
+        synchronized (element) {
+            element.linked = true;
+            if (element instanceof Directory) {
+                Directory dir = (Directory) element;
+                files = dir.fileCount;
+                dirs = dir.directoryCount + 1;
+                size = dir.totalSize;
+                elementHeight = dir.height;
+            } else {
+                files = 1;
+                dirs = 0;
+                size = ((File) element).getSize();
+                elementHeight = 0;
+            }
+        }
+        applyChange(files, dirs, size, -1, elementHeight);
+    }
+
+    // Take element and its subtree out of this directory and its ancestors. As in
+    // linkStats, a change inside element is either in what is taken out or stops at element.
+    private void unlinkStats(FileSystemElement element) {
+        long files;
+        long dirs;
+        long size;
+        int elementHeight;
+        synchronized (element) {
+            element.linked = false;
+            if (element instanceof Directory) {
+                Directory dir = (Directory) element;
+                files = dir.fileCount;
+                dirs = dir.directoryCount + 1;
+                size = dir.totalSize;
+                elementHeight = dir.height;
+            } else {
+                files = 1;
+                dirs = 0;
+                size = ((File) element).getSize();
+                elementHeight = 0;
+            }
+        }
+        applyChange(-files, -dirs, -size, elementHeight, -1);
+    }
+
+    // Add the deltas here and in every ancestor
+    void addToTotals(long files, long dirs, long size) {
+        applyChange(files, dirs, size, -1, -1);
+    }
+
+    // Add the deltas here and in every ancestor, and let one child's height change from
+    // oldHeight to newHeight (-1 for "no child"), carrying the height change up while it
+    // lasts. Each directory is updated under its own monitor, released before the
+    // parent's is taken. The walk stops at a directory that is no longer linked into its
+    // parent, so changes inside a subtree that is being deleted never reach the
+    // directories it was removed from.
+    private void applyChange(long files, long dirs, long size, int oldHeight, int newHeight) {
+        Directory dir = this;
+        while (true) {
+            Directory parent;
+            synchronized (dir) {
+                dir.fileCount += files;
+                dir.directoryCount += dirs;
+                dir.totalSize += size;
+                if (oldHeight >= 0) {
+                    dir.countChildHeight(oldHeight, -1);
+                }
+                if (newHeight >= 0) {
+                    dir.countChildHeight(newHeight, 1);
+                }
+                int updated = dir.heightFromChildren();
+                if (updated == dir.height) {
+                    oldHeight = -1;
+                    newHeight = -1;
+                    if (files == 0 && dirs == 0 && size == 0) {
+                        return;
+                    }
+                } else {
+                    oldHeight = dir.height;
+                    newHeight = updated;
+                    dir.height = updated;
+                }
+                if (!dir.linked) {
+                    return;
+                }
+                parent = dir.getParent();
+            }
+            dir = parent;
+        }
+    }
+
+    // Caller holds this monitor. A count may dip below zero for a moment when a child's
+    // old height is taken out here before the change that put it in arrives.
+    private void countChildHeight(int childHeight, int delta) {
+        if (childHeights == null) {
+            childHeights = new TreeMap<>();
+        }
+        if (childHeights.merge(childHeight, delta, Integer::sum) == 0) {
+            childHeights.remove(childHeight);
+            if (childHeights.isEmpty()) {
+                childHeights = null;
+            }
+        }
+    }
+
+    // Caller holds this monitor. One more than the highest child height with a positive count.
+    private int heightFromChildren() {
+        if (childHeights == null) {
+            return 0;
+        }
+        Map.Entry<Integer, Integer> entry = childHeights.lastEntry();
+        while (entry != null && entry.getValue() <= 0) {
+            entry = childHeights.lowerEntry(entry.getKey());
+        }
+        return entry == null ? 0 : entry.getKey() + 1;
+    }
+
+    PathCache.Entry getCachedPath() {
+        return cachedPath;
+    }
+
+    void setCachedPath(PathCache.Entry cachedPath) {
+        this.cachedPath = cachedPath;
     }
 
-    public LinkedList<FileSystemElement> getChildren() {
-        return children; // Return the list of children
+    long getPathStamp() {
+        return pathStamp;
+    }
+
+    void setPathStamp(long pathStamp) {
+        this.pathStamp = pathStamp;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public ReentrantReadWriteLock getLock() {
+        return lock;
     }
 
     @Override
@@ -42,10 +635,9 @@ public class Directory extends FileSystemElement {
     }
 
     public Directory getSubdirectory(String name) {
-        for (FileSystemElement element : this.children) {
-            if (element instanceof Directory && element.getName().equals(name)) {
-                return (Directory) element; // Cast the element to Directory
-            }
+        FileSystemElement element = findElement(name);
+        if (element instanceof Directory) {
+            return (Directory) element; // Cast the element to Directory
         }
         return null; // Subdirectory not found
     }
@@ -53,12 +645,13 @@ public class Directory extends FileSystemElement {
     // Method to find an element by name within the current directory
 
     public FileSystemElement findElement(String name) {
-        for (FileSystemElement element : this.children) {
-            if (element.getName().equals(name)) {
-                return element; // Element found
-            }
+        ensureResident();
+        lock.readLock().lock();
+        try {
+            return children.get(name); // null if the element is not found
+        } finally {
+            lock.readLock().unlock();
         }
-        return null; // Element not found
     }
 
     public Directory getParent() {
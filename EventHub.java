@@ -0,0 +1,91 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The watches of one FileSystem. Mutations call the publish methods while still
+// holding their locks, so events come out in the same order as the changes (and
+// the journal). With no watches registered publishing is one volatile read.
+public class EventHub {
+    static final int DEFAULT_CAPACITY = 4096;
+    static final int DEFAULT_BATCH_SIZE = 256;
+
+    private static final WatchSubscription[] NONE = new WatchSubscription[0];
+
+    private volatile WatchSubscription[] subscriptions = NONE; // Copied on write
+    private final AtomicLong sequence = new AtomicLong();
+
+    public boolean hasSubscribers() {
+        return subscriptions.length > 0;
+    }
+
+    public int getSubscriberCount() {
+        return subscriptions.length;
+    }
+
+    synchronized WatchSubscription add(String path, boolean recursive, FileSystemListener listener,
+            WatchSubscription.Backpressure policy, int capacity, int batchSize) {
+        WatchSubscription subscription = new WatchSubscription(this, path, recursive, listener, policy,
+                capacity, batchSize);
+        WatchSubscription[] current = subscriptions;
+        WatchSubscription[] updated = Arrays.copyOf(current, current.length + 1);
+        updated[current.length] = subscription;
+        subscription.start();
+        subscriptions = updated;
+        return subscription;
+    }
+
+    synchronized void remove(WatchSubscription subscription) {
+        WatchSubscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == subscription) {
+                WatchSubscription[] updated = new WatchSubscription[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                subscriptions = updated;
+                return;
+            }
+        }
+    }
+
+    // Close every watch (e.g. when the file system is discarded)
+    public void closeAll() {
+        for (WatchSubscription subscription : subscriptions) {
+            subscription.close();
+        }
+    }
+
+    long currentSequence() {
+        return sequence.get();
+    }
+
+    public void publishCreate(String path, boolean directory) {
+        publish(FileSystemEvent.Type.CREATE, path, null, directory);
+    }
+
+    public void publishDelete(String path, boolean directory) {
+        publish(FileSystemEvent.Type.DELETE, path, null, directory);
+    }
+
+    public void publishMove(String oldPath, String newPath, boolean directory) {
+        publish(FileSystemEvent.Type.MOVE, newPath, oldPath, directory);
+    }
+
+    public void publishReorder(String path) {
+        publish(FileSystemEvent.Type.REORDER, path, null, true);
+    }
+
+    private void publish(FileSystemEvent.Type type, String path, String oldPath, boolean directory) {
+        WatchSubscription[] current = subscriptions;
+        if (current.length == 0) {
+            return;
+        }
+        FileSystemEvent event = null; // Shared by every watch it matches, built on the first match
+        for (WatchSubscription subscription : current) {
+            if (subscription.matches(path) || (oldPath != null && subscription.matches(oldPath))) {
+                if (event == null) {
+                    event = new FileSystemEvent(type, path, oldPath, directory, sequence.incrementAndGet());
+                }
+                subscription.publish(event);
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Bounded lock-free queue for many producers and one consumer. Every slot carries a
+// sequence number telling whose turn it is: producers claim a slot with one CAS on
+// the tail and publish it by advancing the slot's sequence, so offer never blocks
+// and never allocates.
+public final class EventRing<E> {
+    private final AtomicReferenceArray<E> slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(); // Next slot to claim
+    private volatile long head;                       // Next slot to read, written by the consumer only
+
+    // capacity is rounded up to a power of two
+    public EventRing(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i); // Slot i is free for the producer of position i
+        }
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    // Add element; returns false if the ring is full
+    public boolean offer(E element) {
+        while (true) {
+            long position = tail.get();
+            int slot = (int) position & mask;
+            long diff = sequences.get(slot) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots.lazySet(slot, element);
+                    sequences.set(slot, position + 1); // Visible to the consumer from here on
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false; // The consumer has not freed this slot yet
+            }
+            // Otherwise another producer claimed the position first; retry with the new tail
+        }
+    }
+
+    // Next element, or null if the ring is empty; consumer thread only
+    public E poll() {
+        int slot = (int) head & mask;
+        if (sequences.get(slot) != head + 1) {
+            return null; // Not published yet
+        }
+        E element = slots.get(slot);
+        slots.lazySet(slot, null);
+        sequences.set(slot, head + mask + 1); // Free for the producer one lap ahead
+        head++;
+        return element;
+    }
+
+    // Consumer thread only
+    public boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+
+    // Number of elements waiting; approximate while the ring is in use
+    public int size() {
+        return (int) Math.max(0, Math.min(tail.get() - head, capacity()));
+    }
+}
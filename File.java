@@ -2,11 +2,48 @@
 import java.sql.Timestamp;
 
 public class File extends FileSystemElement {
-    
+    private volatile long size; // Bytes; optional, 0 unless set; written under this monitor
+
     public File(String name, Directory parent, Timestamp dateCreated) {
         super(name, parent, dateCreated);
     }
 
+    public long getSize() {
+        return size;
+    }
+
+    // Change the size and adjust the total size of every directory above this file.
+    // Not journaled: files in a FileSystem are resized through FileSystem.setFileSize.
+    public void setSize(long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("File size cannot be negative.");
+        }
+        boolean attached;
+        synchronized (this) {
+            attached = linked; // Files being built (copies, fault-ins) have nothing to unshare
+        }
+        if (attached) {
+            SubtreeCopier.unshareFile(this); // Copy-on-write copies of it keep the old size
+        }
+        long delta;
+        Directory parent;
+        synchronized (this) {
+            delta = size - this.size;
+            this.size = size;
+            parent = linked ? getParent() : null;
+        }
+        if (parent != null && delta != 0) {
+            parent.addToTotals(0, 0, delta);
+        }
+    }
+
+    // A file with the same name, date and size, not in any directory yet
+    File copy() {
+        File copy = new File(name, null, dateCreated);
+        copy.size = size;
+        return copy;
+    }
+
     @Override
     public void display(String prefix, boolean isCurrent) {
         System.out.println(prefix + this.name);
@@ -1,13 +1,49 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 import java.sql.Timestamp;
 
-public class FileSystem {
+public class FileSystem implements Closeable {
     private Directory root;
-    private Directory currentDirectory;
+    private volatile Directory currentDirectory;
+    private NameIndex nameIndex;
+    private SubtreeReclaimer reclaimer; // Cleans up deleted subtrees in the background
+    private SubtreeCopier copier; // Full and copy-on-write copies of subtrees
+    private FileSystemMetrics metrics; // Counters and latencies of the public operations
+    private Journal journal; // null when mutations are not journaled
+
+    // Mutations hold the read side; directory moves, which rewrite every path below
+    // the moved directory, hold the write side. Keeps journaled paths consistent and
+    // makes the cycle check of a directory move race free.
+    private final ReentrantReadWriteLock namespaceLock = new ReentrantReadWriteLock();
+
+    // Absolute path <-> Directory cache; a directory move or delete invalidates the paths below it
+    private final PathCache pathCache = new PathCache(1 << 16);
+
+    // Parallel walks for searches the name index cannot answer (dates, regular expressions)
+    private final TreeSearch treeSearch = new TreeSearch();
+
+    // Watches on paths; mutations publish to it under the same locks as the journal
+    private final EventHub events = new EventHub();
+
+    // Spills cold subtrees to disk once enabled; null while everything stays in memory
+    private volatile TieredStore tiering;
+
+    // Immutable copy of the tree that tree dumps, listings and name searches read
+    // without locks (see enableSnapshotReads); null while snapshot reads are off
+    private volatile VersionedFileSystem versions;
 
     public Directory getRoot() {
         return root;
@@ -17,146 +53,395 @@ public class FileSystem {
     // tree.
     public void printTree() {
         System.out.println("Path to current directory from root:");
-        printDirectoryTree(root, "", currentDirectory);
+        printToStandardOutput(false);
     }
 
     public void printWholeTree() {
         System.out.println("Whole tree from root:");
-        printWholeTree(root, "", currentDirectory);
+        printToStandardOutput(true);
     }
 
-    private void printWholeTree(Directory dir, String prefix, Directory current) {
-        // Print the directory path
-        System.out.println(prefix + "* " + dir.getName() + (dir == current ? "/ (Current Directory)" : "/"));
+    // Stream the whole tree to any sink with optional depth and node limits.
+    // Returns the number of nodes written.
+    public long printWholeTree(Appendable out, int maxDepth, long maxNodes) throws IOException {
+        return printWholeTree(new TreeRenderer(out, maxDepth, maxNodes), root, currentDirectory);
+    }
 
-        // If this directory has children, recurse into them
-        for (FileSystemElement element : dir.getChildren()) {
-            if (element instanceof Directory) {
-                // Recursively call this method with updated prefix
-                printDirectoryTree((Directory) element, prefix + "    ", current);
-            } else {
-                // It's a file, print with the appropriate prefix
-                System.out.println(prefix + "    " + element.getName());
-            }
+    // Stream every directory and file below dir, marking current
+    public long printWholeTree(Appendable out, Directory dir, Directory current) throws IOException {
+        return printWholeTree(new TreeRenderer(out), dir, current);
+    }
+
+    private long printWholeTree(TreeRenderer renderer, Directory dir, Directory current) throws IOException {
+        TreeVersion snapshot = getSnapshot();
+        if (snapshot == null) {
+            return renderer.renderWholeTree(dir, current);
+        }
+        VersionedNode top = snapshot.lookup(getAbsolutePath(dir));
+        if (top == null) {
+            throw new IllegalArgumentException("Directory not found.");
         }
+        return renderer.renderWholeTree(top, snapshot.lookup(getAbsolutePath(current)));
     }
-    
-    private void printDirectoryTree(Directory dir, String prefix, Directory current) {
-        // Print the directory path
-        System.out.println(prefix + "* " + dir.getName() + (dir == current ? "/ (Current Directory)" : "/"));
-
-        // Only recurse into subdirectories if dir is not the current directory
-        if (dir != current) {
-            for (FileSystemElement element : dir.getChildren()) {
-                if (element instanceof Directory) {
-                    // Recursively call this method with updated prefix
-                    printDirectoryTree((Directory) element, prefix + "    ", current);
-                }
-            }
-        } else {
-            // If this is the current directory, print its contents (both files and
-            // subdirectories)
-            for (FileSystemElement element : dir.getChildren()) {
-                System.out.println(prefix + "    * " + element.getName() + (element instanceof Directory ? "/" : ""));
+
+    // Stream the directory tree (files shown only for the current directory) to any sink
+    public long printTree(Appendable out, int maxDepth, long maxNodes) throws IOException {
+        return new TreeRenderer(out, maxDepth, maxNodes).renderDirectoryTree(root, currentDirectory);
+    }
+
+    private void printToStandardOutput(boolean wholeTree) {
+        // Buffer the output so we do not pay for a synchronized println per node
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        try {
+            if (wholeTree) {
+                printWholeTree(out, TreeRenderer.UNLIMITED_DEPTH, TreeRenderer.UNLIMITED_NODES);
+            } else {
+                printTree(out, TreeRenderer.UNLIMITED_DEPTH, TreeRenderer.UNLIMITED_NODES);
             }
+            out.flush(); // Flush but do not close System.out
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
  
     public FileSystem() {
         this.root = new Directory("root", null, null);
         this.currentDirectory = root; // Start with the root as the current directory
+        this.nameIndex = new NameIndex();
+        this.metrics = new FileSystemMetrics(root);
+        this.reclaimer = new SubtreeReclaimer(nameIndex, metrics);
+        this.copier = new SubtreeCopier(nameIndex, namespaceLock);
+        nameIndex.add(root);
+    }
+
+    // Wrap an existing tree (e.g. one loaded from a snapshot) and index its names
+    public FileSystem(Directory root) {
+        this.root = root;
+        this.currentDirectory = root;
+        this.nameIndex = new NameIndex();
+        this.metrics = new FileSystemMetrics(root);
+        this.reclaimer = new SubtreeReclaimer(nameIndex, metrics);
+        this.copier = new SubtreeCopier(nameIndex, namespaceLock);
+        indexSubtree(root);
+    }
+
+    // Wrap a freshly built tree of about expectedElements elements (see BulkLoader)
+    FileSystem(Directory root, long expectedElements) {
+        this.root = root;
+        this.currentDirectory = root;
+        this.nameIndex = new NameIndex((int) Math.min(expectedElements + 1, 1 << 30));
+        this.metrics = new FileSystemMetrics(root);
+        this.reclaimer = new SubtreeReclaimer(nameIndex, metrics);
+        this.copier = new SubtreeCopier(nameIndex, namespaceLock);
+        indexSubtree(root);
     }
 
-    // Change the current directory to the one specified by the path
+    // Add every element below dir to the name index without recursing
+    private void indexSubtree(Directory dir) {
+        ArrayDeque<FileSystemElement> pending = new ArrayDeque<>();
+        pending.push(dir);
+        while (!pending.isEmpty()) {
+            FileSystemElement element = pending.pop();
+            nameIndex.add(element);
+            if (element instanceof Directory) {
+                for (FileSystemElement child : ((Directory) element).getChildren()) {
+                    pending.push(child);
+                }
+            }
+        }
+    }
+
+    // Change the current directory to the one specified by the path. Absolute paths
+    // start with "/", anything else is relative to the current directory; "." and
+    // ".." are understood in both.
     public Directory changeDirectory(String path) {
+        long start = metrics.start();
+        recordTieredAccess();
+        Directory found = null;
+        try {
+            found = resolveDirectory(path);
+            return found;
+        } finally {
+            metrics.record(FileSystemMetrics.Operation.CHANGE_DIRECTORY, start, found != null);
+        }
+    }
+
+    // Resolve a path relative to the given directory (absolute paths ignore it)
+    public Directory changeDirectory(Directory from, String path) {
+        long start = metrics.start();
+        recordTieredAccess();
+        Directory found = null;
+        try {
+            found = resolveDirectory(from, path);
+            return found;
+        } finally {
+            metrics.record(FileSystemMetrics.Operation.CHANGE_DIRECTORY, start, found != null);
+        }
+    }
+
+    // changeDirectory without the metrics, for use inside other operations
+    private Directory resolveDirectory(String path) {
         if (path.equals("/")) {
             return root; // Return root without changing currentDirectory
         }
+        if (!path.startsWith("/")) {
+            return resolveDirectory(currentDirectory, path);
+        }
 
-        String[] parts = path.substring(1).split("/");
-        Directory current = root;
+        // Hot absolute paths resolve with a single hash probe
+        Directory cached = pathCache.lookup(path);
+        if (cached != null) {
+            return cached;
+        }
+        long epoch = pathCache.currentEpoch();
+        Directory current = walkPath(root, path);
+        if (current != null) {
+            pathCache.put(path, current, epoch);
+        }
+        return current; // Return the new directory without changing currentDirectory
+    }
+
+    private Directory resolveDirectory(Directory from, String path) {
+        if (path.startsWith("/")) {
+            return resolveDirectory(path);
+        }
+        return walkPath(from, path);
+    }
 
-        for (String part : parts) {
-            if (part.isEmpty()) {
-                continue; // Skip any empty parts resulting from consecutive slashes
+    // Follow the "/"-separated parts of path from start, one child lookup per part,
+    // without splitting the path into an array
+    private Directory walkPath(Directory start, String path) {
+        Directory current = start;
+        int partStart = 0;
+        int length = path.length();
+        while (partStart <= length && current != null) {
+            int partEnd = path.indexOf('/', partStart);
+            if (partEnd < 0) {
+                partEnd = length;
             }
-            Directory next = current.getSubdirectory(part);
-            if (next == null) {
-                // Directory not found at this part of the path
-                return null;
+            int partLength = partEnd - partStart;
+            if (partLength == 0 || (partLength == 1 && path.charAt(partStart) == '.')) {
+                // Skip empty parts from consecutive slashes and "."
+            } else if (partLength == 2 && path.startsWith("..", partStart)) {
+                current = current == root ? root : current.getParent(); // ".." at root stays at root
+            } else {
+                // Directory not found at this part of the path gives null
+                current = current.getSubdirectory(path.substring(partStart, partEnd));
             }
-            current = next;
+            partStart = partEnd + 1;
         }
-
-        return current; // Return the new directory without changing currentDirectory
+        return current;
     }
 
     // Create a new file in the current directory
     public void createFile(String name) {
-        // Check if the file already exists in the current directory
-        if (currentDirectory.findElement(name) != null) {
-            throw new IllegalArgumentException("File already exists.");
-        }
-        Timestamp dateCreated = new Timestamp(System.currentTimeMillis());
-        File file = new File(name, currentDirectory, dateCreated);
-        currentDirectory.addElement(file);
+        createFile(currentDirectory, name, new Timestamp(System.currentTimeMillis()));
+    }
+
+    // Create a new file in the given directory with the given creation time
+    public File createFile(Directory parent, String name, Timestamp dateCreated) {
+        return (File) createElement(parent, new File(name, parent, dateCreated));
     }
 
     // Create a new directory in the current directory
     public void createDirectory(String name) {
-        // Check if the directory already exists in the current directory
-        if (currentDirectory.findElement(name) != null) {
-            throw new IllegalArgumentException("Directory already exists.");
+        createDirectory(currentDirectory, name, new Timestamp(System.currentTimeMillis()));
+    }
+
+    // Create a new directory in the given directory with the given creation time
+    public Directory createDirectory(Directory parent, String name, Timestamp dateCreated) {
+        return (Directory) createElement(parent, new Directory(name, parent, dateCreated));
+    }
+
+    // Link a freshly made element into parent, holding parent's write lock so the
+    // duplicate check and the insert happen atomically
+    private FileSystemElement createElement(Directory parent, FileSystemElement element) {
+        boolean directory = element instanceof Directory;
+        long start = metrics.start();
+        boolean succeeded = false;
+        lockForChange(parent);
+        parent.getLock().writeLock().lock();
+        try {
+            if (!isLive(parent)) {
+                throw new IllegalArgumentException("The directory no longer exists.");
+            }
+            // Check if the element already exists in the directory
+            if (parent.findElement(element.getName()) != null) {
+                throw new IllegalArgumentException(directory ? "Directory already exists." : "File already exists.");
+            }
+            VersionedFileSystem mirror = versions;
+            String parentPath = journal != null || mirror != null ? getAbsolutePath(parent) : null;
+            long dateCreated = element.getDateCreated().getTime();
+            if (journal != null) {
+                journal.logCreate(parentPath, element.getName(), directory, dateCreated);
+            }
+            parent.addElement(element);
+            nameIndex.add(element);
+            if (mirror != null) {
+                updateSnapshot(directory ? () -> mirror.createDirectory(parentPath, element.getName(), dateCreated)
+                        : () -> mirror.createFile(parentPath, element.getName(), dateCreated));
+            }
+            if (events.hasSubscribers()) {
+                events.publishCreate(getAbsolutePath(element), directory);
+            }
+            if (metrics.isEnabled()) {
+                metrics.recordFanOut(parent.getChildCount());
+            }
+            succeeded = true;
+            return element;
+        } finally {
+            parent.getLock().writeLock().unlock();
+            namespaceLock.readLock().unlock();
+            metrics.record(directory ? FileSystemMetrics.Operation.CREATE_DIRECTORY
+                    : FileSystemMetrics.Operation.CREATE_FILE, start, succeeded);
         }
-        Timestamp dateCreated = new Timestamp(System.currentTimeMillis());
-        Directory newDir = new Directory(name, currentDirectory, dateCreated);
-        currentDirectory.addElement(newDir);
     }
     
     // List the contents of the current directory
     public void listDirectoryContents() {
+        long start = metrics.start();
         System.out.println("Contents of " + currentDirectory.getName() + ":");
-        currentDirectory.getChildren().forEach(fse -> {
-            System.out.println(fse.getName() + (fse instanceof Directory ? "/" : ""));
-        });
+        TreeVersion snapshot = getSnapshot();
+        if (snapshot != null) {
+            // The snapshot keeps no stored order; oldest first is what sortContentsByDate gives
+            for (VersionedNode node : snapshot.listDirectoryContentsByDate(getAbsolutePath(currentDirectory))) {
+                System.out.println(node.getName() + (node.isDirectory() ? "/" : ""));
+            }
+        } else {
+            currentDirectory.getChildren().forEach(fse -> { // Read page by page, never copied whole
+                System.out.println(fse.getName() + (fse instanceof Directory ? "/" : ""));
+            });
+        }
+        metrics.record(FileSystemMetrics.Operation.LIST, start, true);
     }
 
-    // Search for a file or directory in the entire file system for help deleting files
-    private FileSystemElement searchEntireFileSystem(Directory dir, String name) {
-        if (dir.getName().equals(name)) {
-            return dir;
+    // Up to limit entries of dir after the cursor (null for the first page); pass the
+    // returned page's getNext() to continue. See ChildList for behaviour under changes.
+    public ChildList.Page listDirectoryPage(Directory dir, ChildList.Cursor after, int limit) {
+        long start = metrics.start();
+        recordTieredAccess();
+        boolean succeeded = false;
+        try {
+            ChildList.Page page = dir.listPage(after, limit);
+            succeeded = true;
+            return page;
+        } finally {
+            metrics.record(FileSystemMetrics.Operation.LIST, start, succeeded);
         }
+    }
 
-        for (FileSystemElement fse : dir.getChildren()) {
-            if (fse.getName().equals(name)) {
-                return fse;
+    // Delete a file or directory from the file system
+    public void deleteFileOrDirectory(String name) {
+        long start = metrics.start();
+        boolean succeeded = false;
+        try {
+            while (true) {
+                FileSystemElement elementToDelete;
+                Lock pinned = faultInNamed(name); // Spilled elements are not in the name index
+                try {
+                    elementToDelete = nameIndex.findFirst(name, this::isLive);
+                } finally {
+                    unpin(pinned); // Before deleting: unsharing a copy needs the write side
+                }
+                if (elementToDelete == null) {
+                    elementToDelete = findInCopies(name);
+                }
+                if (elementToDelete == null) {
+                    throw new IllegalArgumentException("File or directory does not exist.");
+                }
+                try {
+                    delete(elementToDelete);
+                    break;
+                } catch (IllegalArgumentException e) {
+                    if (!elementToDelete.isEvicted()) {
+                        throw e;
+                    }
+                    // Spilled again since it was looked up; look it up once more
+                }
             }
-            if (fse instanceof Directory) {
-                FileSystemElement searchResult = searchEntireFileSystem((Directory) fse, name);
-                if (searchResult != null) {
-                    return searchResult;
+            succeeded = true;
+        } finally {
+            metrics.record(FileSystemMetrics.Operation.DELETE, start, succeeded);
+        }
+    }
+
+    // An element named name that only exists in a copy-on-write copy that is not built
+    // yet, built along its path; null if there is none
+    private FileSystemElement findInCopies(String name) {
+        if (!SubtreeCopier.isSharing()) {
+            return null;
+        }
+        for (FileSystemElement element : nameIndex.findAll(name)) {
+            if (element != root && isLive(element)) {
+                List<String> paths = new ArrayList<>();
+                addCopyPaths(element, "", paths);
+                for (String path : paths) {
+                    FileSystemElement copy = resolvePath(path);
+                    if (copy != null && isLive(copy)) {
+                        return copy;
+                    }
                 }
             }
         }
-        return null; // Not found in this branch of the file system
+        return null;
     }
-    
-    // Delete a file or directory from the file system
-    public void deleteFileOrDirectory(String name) {
-        FileSystemElement elementToDelete = searchEntireFileSystem(root, name);
-        if (elementToDelete == null) {
-            throw new IllegalArgumentException("File or directory does not exist.");
+
+    // Delete the given element and everything below it
+    public void deleteElement(FileSystemElement elementToDelete) {
+        long start = metrics.start();
+        boolean succeeded = false;
+        try {
+            delete(elementToDelete);
+            succeeded = true;
+        } finally {
+            metrics.record(FileSystemMetrics.Operation.DELETE, start, succeeded);
         }
+    }
 
+    private void delete(FileSystemElement elementToDelete) {
         // Before deletion, check if the current directory is the one being deleted
         // or if it is a subdirectory of the directory being deleted
         boolean isCurrentOrDescendant = isDescendant(currentDirectory, elementToDelete);
 
-        deleteRecursively(elementToDelete);
-
-        // If the element has a parent, remove it from the parent's children list
-        if (elementToDelete.getParent() != null) {
-            elementToDelete.getParent().removeElement(elementToDelete);
+        boolean unlinked = false;
+        while (!unlinked) {
+            Directory parent = elementToDelete == root ? root : elementToDelete.getParent();
+            if (parent == null) {
+                throw new IllegalArgumentException("File or directory does not exist.");
+            }
+            lockForChange(parent);
+            try {
+                if (elementToDelete == root) {
+                    // Root itself is only emptied, never removed
+                    root.getLock().writeLock().lock();
+                    try {
+                        if (journal != null) {
+                            journal.logDelete("/");
+                        }
+                        for (FileSystemElement child : root.snapshotChildren()) {
+                            root.removeElement(child);
+                            child.markDeleted();
+                            reclaimer.submit(child);
+                            events.publishDelete("/" + child.getName(), child instanceof Directory);
+                        }
+                        VersionedFileSystem mirror = versions;
+                        if (mirror != null) {
+                            updateSnapshot(() -> mirror.deleteFileOrDirectory("/"));
+                        }
+                    } finally {
+                        root.getLock().writeLock().unlock();
+                    }
+                    unlinked = true;
+                } else if (unlinkFromParent(elementToDelete)) {
+                    reclaimer.submit(elementToDelete); // Index cleanup happens in the background
+                    unlinked = true;
+                }
+                if (unlinked && elementToDelete instanceof Directory) {
+                    pathCache.invalidate((Directory) elementToDelete); // Paths into the deleted subtree
+                }
+            } finally {
+                namespaceLock.readLock().unlock();
+            }
         }
 
         if (isCurrentOrDescendant) {
@@ -167,6 +452,63 @@ public class FileSystem {
         }
     }
 
+    // Remove the element from its parent's children under the parent's write lock.
+    // Returns false, changing nothing, if it was moved into a directory that has to be
+    // unshared first (see lockForChange).
+    private boolean unlinkFromParent(FileSystemElement element) {
+        while (true) {
+            Directory parent = element.getParent();
+            if (parent == null) {
+                throw new IllegalArgumentException("File or directory does not exist.");
+            }
+            parent.getLock().writeLock().lock();
+            try {
+                if (element.getParent() != parent) {
+                    continue; // Moved by another thread meanwhile, try its new parent
+                }
+                if (!isLive(parent) || parent.findElement(element.getName()) != element) {
+                    throw new IllegalArgumentException("File or directory does not exist.");
+                }
+                if (copier.isShared(parent)) {
+                    return false;
+                }
+                // Path must be taken before unlinking
+                VersionedFileSystem mirror = versions;
+                String path = journal != null || mirror != null || events.hasSubscribers()
+                        ? getAbsolutePath(element) : null;
+                if (journal != null) {
+                    journal.logDelete(path);
+                }
+                parent.removeElement(element);
+                element.markDeleted(); // From here on nothing below it counts as live
+                if (mirror != null) {
+                    updateSnapshot(() -> mirror.deleteFileOrDirectory(path));
+                }
+                if (path != null) {
+                    events.publishDelete(path, element instanceof Directory);
+                }
+                return true;
+            } finally {
+                parent.getLock().writeLock().unlock();
+            }
+        }
+    }
+
+    // Take the read side of namespaceLock with dir free to change in place: if dir is a
+    // copy-on-write copy it is built, and no copy still reads its children or those of
+    // an ancestor (see SubtreeCopier). Copies are only made under the write side, so this
+    // lasts until the lock is released.
+    private void lockForChange(Directory dir) {
+        while (true) {
+            copier.unshare(dir);
+            namespaceLock.readLock().lock();
+            if (!copier.isShared(dir)) {
+                return;
+            }
+            namespaceLock.readLock().unlock(); // Copied again meanwhile
+        }
+    }
+
     // Helper method to check if 'current' is a descendant of 'elementToDelete'
     private boolean isDescendant(Directory current, FileSystemElement elementToDelete) {
         // Check if current directory is a descendant of the directory to delete
@@ -193,49 +535,199 @@ public class FileSystem {
         currentDirectory = nearestValidParent instanceof Directory ? (Directory) nearestValidParent : root;
     }
     
-    // Recursively delete a file or directory and its children
-    private void deleteRecursively(FileSystemElement fse) {
-        if (fse instanceof Directory) {
-            Directory dir = (Directory) fse;
-            List<FileSystemElement> childrenCopy = new ArrayList<>(dir.getChildren());
-            for (FileSystemElement child : childrenCopy) {
-                deleteRecursively(child); // Recursively delete children
-                dir.removeElement(child); // Remove each child after deletion
+    // True if element is still in the tree: it and all its ancestors are not deleted
+    // and the parent chain reaches root. Elements of a deleted subtree fail this as
+    // soon as the delete returns, before the reclaimer has visited them. O(depth).
+    public boolean isLive(FileSystemElement element) {
+        FileSystemElement current = element;
+        while (current != root) {
+            if (current == null || current.isDeleted() || current.isEvicted()) {
+                return false;
             }
+            current = current.getParent();
         }
+        return true;
     }
 
-    // Move a file or directory to a new path
-    public void moveFileOrDirectory(String name, String newPathString) {
-        // First, find the file/directory to move within the current directory
-        FileSystemElement elementToMove = currentDirectory.findElement(name);
-        if (elementToMove == null) {
-            throw new IllegalArgumentException("The file/directory to move does not exist.");
+    // dir if it is live, otherwise the parent of its highest deleted ancestor (root if
+    // even that is gone)
+    public Directory nearestLiveDirectory(Directory dir) {
+        dir = residentDirectory(dir);
+        Directory nearest = dir;
+        Directory current = dir;
+        while (current != root) {
+            if (current == null) {
+                return root;
+            }
+            if (current.isDeleted()) {
+                nearest = current.getParent();
+            }
+            current = current.getParent();
         }
+        return nearest != null ? nearest : root;
+    }
 
-        // Find the target directory where we want to move the file/directory
-        Directory newParentDirectory = changeDirectory(newPathString);
-        if (newParentDirectory == null) {
-            throw new IllegalArgumentException("The new path for the file/directory does not exist.");
+    // The directory standing for dir now: dir itself, or if it was spilled to disk the
+    // object that was read back in its place (or its nearest ancestor that was)
+    private Directory residentDirectory(Directory dir) {
+        if (dir == null || !dir.isEvicted()) {
+            return dir;
         }
+        ArrayDeque<String> names = new ArrayDeque<>();
+        Directory current = dir;
+        while (current != null && current.isEvicted()) {
+            names.push(current.getName());
+            current = current.getParent(); // Ends at the stub, which was never evicted
+        }
+        while (current != null && !names.isEmpty()) {
+            Directory next = current.getSubdirectory(names.pop()); // Faults the stub in
+            if (next == null) {
+                return current; // Changed while on disk; stop at what is left
+            }
+            current = next;
+        }
+        return current;
+    }
+
+    // Wait until every deleted subtree has been dropped from the name index. Throws
+    // IllegalStateException if a background cleanup failed since the last call.
+    public void awaitReclamation() {
+        reclaimer.awaitIdle();
+    }
 
-        // Prevent moving a directory into itself or its subdirectories
-        if (elementToMove instanceof Directory && (elementToMove == newParentDirectory
-                || isDescendant((Directory) elementToMove, newParentDirectory))) {
-            throw new IllegalArgumentException("Cannot move a directory inside itself or its subdirectories.");
+    // Move a file or directory to a new path
+    public void moveFileOrDirectory(String name, String newPathString) {
+        long start = metrics.start();
+        boolean succeeded = false;
+        try {
+            // First, find the file/directory to move within the current directory
+            FileSystemElement elementToMove = currentDirectory.findElement(name);
+            if (elementToMove == null) {
+                throw new IllegalArgumentException("The file/directory to move does not exist.");
+            }
+
+            // Find the target directory where we want to move the file/directory
+            Directory newParentDirectory = resolveDirectory(newPathString);
+            if (newParentDirectory == null) {
+                throw new IllegalArgumentException("The new path for the file/directory does not exist.");
+            }
+            move(elementToMove, newParentDirectory);
+            succeeded = true;
+        } finally {
+            metrics.record(FileSystemMetrics.Operation.MOVE, start, succeeded);
         }
+    }
 
-        // If the element has a parent, remove it from the parent's children list
-        Directory oldParent = (Directory) elementToMove.getParent(); // Cast to Directory
-        if (oldParent != null) {
-            oldParent.removeElement(elementToMove);
+    // Move the given element into newParentDirectory
+    public void moveElement(FileSystemElement elementToMove, Directory newParentDirectory) {
+        long start = metrics.start();
+        boolean succeeded = false;
+        try {
+            move(elementToMove, newParentDirectory);
+            succeeded = true;
+        } finally {
+            metrics.record(FileSystemMetrics.Operation.MOVE, start, succeeded);
         }
+    }
 
-        // Set the new parent for the element
-        elementToMove.setParent(newParentDirectory);
+    private void move(FileSystemElement elementToMove, Directory newParentDirectory) {
+        String name = elementToMove.getName();
+        // Moving a directory changes the paths of everything below it, so it excludes all
+        // other mutations; file moves only lock the two parents
+        boolean directoryMove = elementToMove instanceof Directory;
+        Lock namespace = directoryMove ? namespaceLock.writeLock() : namespaceLock.readLock();
+        retry:
+        while (true) {
+            if (directoryMove) {
+                namespace.lock();
+            } else {
+                Directory currentParent = elementToMove.getParent();
+                if (currentParent != null) {
+                    copier.unshare(currentParent);
+                }
+                lockForChange(newParentDirectory);
+            }
+            try {
+                // Prevent moving a directory into itself or its subdirectories
+                if (directoryMove && (elementToMove == newParentDirectory
+                        || isDescendant((Directory) elementToMove, newParentDirectory))) {
+                    throw new IllegalArgumentException("Cannot move a directory inside itself or its subdirectories.");
+                }
+                if (directoryMove) {
+                    // Nothing else changes under the write side, so the old parent stays put
+                    copier.unshare(newParentDirectory);
+                    if (elementToMove.getParent() != null) {
+                        copier.unshare(elementToMove.getParent());
+                    }
+                }
+
+                while (true) {
+                    Directory oldParent = elementToMove.getParent();
+                    if (oldParent == null) {
+                        throw new IllegalArgumentException("The file/directory to move does not exist.");
+                    }
+                    // Lock both parents in id order so two opposite moves cannot deadlock
+                    Directory first = oldParent.getId() <= newParentDirectory.getId() ? oldParent : newParentDirectory;
+                    Directory second = first == oldParent ? newParentDirectory : oldParent;
+                    first.getLock().writeLock().lock();
+                    second.getLock().writeLock().lock();
+                    try {
+                        if (elementToMove.getParent() != oldParent) {
+                            continue; // Moved by another thread meanwhile, retry from its new parent
+                        }
+                        if (!isLive(oldParent) || oldParent.findElement(name) != elementToMove) {
+                            throw new IllegalArgumentException("The file/directory to move does not exist.");
+                        }
+                        if (!isLive(newParentDirectory)) {
+                            throw new IllegalArgumentException("The new path for the file/directory does not exist.");
+                        }
+                        if (copier.isShared(oldParent)) {
+                            continue retry; // Moved into a shared directory meanwhile; unshare it first
+                        }
+
+                        // Names are unique within a directory, so refuse to overwrite an existing entry
+                        FileSystemElement existing = newParentDirectory.findElement(name);
+                        if (existing != null && existing != elementToMove) {
+                            throw new IllegalArgumentException(
+                                    "An element with the same name already exists in the target directory.");
+                        }
+
+                        VersionedFileSystem mirror = versions;
+                        String oldPath = journal != null || mirror != null || events.hasSubscribers()
+                                ? getAbsolutePath(elementToMove) : null;
+                        String newParentPath = journal != null || mirror != null
+                                ? getAbsolutePath(newParentDirectory) : null;
+                        if (journal != null) {
+                            journal.logMove(oldPath, newParentPath);
+                        }
+
+                        // Remove the element from the old parent's children list
+                        oldParent.removeElement(elementToMove);
 
-        // Add the element to the new parent directory's children list
-        newParentDirectory.addElement(elementToMove);
+                        // Set the new parent for the element
+                        elementToMove.setParent(newParentDirectory);
+
+                        // Add the element to the new parent directory's children list
+                        newParentDirectory.addElement(elementToMove);
+                        if (mirror != null) {
+                            updateSnapshot(() -> mirror.moveFileOrDirectory(oldPath, newParentPath));
+                        }
+                        if (directoryMove) {
+                            pathCache.invalidate((Directory) elementToMove); // Every path below it changed
+                        }
+                        if (oldPath != null) {
+                            events.publishMove(oldPath, getAbsolutePath(elementToMove), directoryMove);
+                        }
+                        return;
+                    } finally {
+                        second.getLock().writeLock().unlock();
+                        first.getLock().writeLock().unlock();
+                    }
+                }
+            } finally {
+                namespace.unlock();
+            }
+        }
     }
 
     // Helper method to check if 'target' is a descendant of 'dir'
@@ -249,35 +741,409 @@ public class FileSystem {
         return false;
     }
     
+    // Copy a file or directory of the current directory, with everything below it, into
+    // the directory at newPathString
+    public void copyFileOrDirectory(String name, String newPathString) {
+        copyFileOrDirectory(name, newPathString, false);
+    }
+
+    // Same; with copyOnWrite a directory is copied in O(1) and its copy shares the
+    // original's children until one of the two is changed (see SubtreeCopier)
+    public void copyFileOrDirectory(String name, String newPathString, boolean copyOnWrite) {
+        long start = metrics.start();
+        boolean succeeded = false;
+        try {
+            FileSystemElement elementToCopy = currentDirectory.findElement(name);
+            if (elementToCopy == null) {
+                throw new IllegalArgumentException("The file/directory to copy does not exist.");
+            }
+            Directory targetDirectory = resolveDirectory(newPathString);
+            if (targetDirectory == null) {
+                throw new IllegalArgumentException("The target path for the copy does not exist.");
+            }
+            copy(elementToCopy, targetDirectory, copyOnWrite);
+            succeeded = true;
+        } finally {
+            metrics.record(FileSystemMetrics.Operation.COPY, start, succeeded);
+        }
+    }
+
+    // Copy the given element into targetDirectory under the same name; returns the copy
+    public FileSystemElement copyElement(FileSystemElement elementToCopy, Directory targetDirectory,
+            boolean copyOnWrite) {
+        long start = metrics.start();
+        boolean succeeded = false;
+        try {
+            FileSystemElement copy = copy(elementToCopy, targetDirectory, copyOnWrite);
+            succeeded = true;
+            return copy;
+        } finally {
+            metrics.record(FileSystemMetrics.Operation.COPY, start, succeeded);
+        }
+    }
+
+    private FileSystemElement copy(FileSystemElement elementToCopy, Directory targetDirectory,
+            boolean copyOnWrite) {
+        boolean directory = elementToCopy instanceof Directory;
+        if (directory && copyOnWrite) {
+            return shareInto((Directory) elementToCopy, targetDirectory);
+        }
+        if (directory && isDescendant((Directory) elementToCopy, targetDirectory)) {
+            throw new IllegalArgumentException("Cannot copy a directory inside itself or its subdirectories.");
+        }
+        // A full copy is built in parallel outside every lock, then linked in like a new
+        // element. Each directory is copied as it was when the copy read it.
+        FileSystemElement copy = directory ? copier.clone((Directory) elementToCopy)
+                : copier.clone((File) elementToCopy);
+        VersionedNode frozen = versions != null ? VersionedFileSystem.freeze(copy) : null; // Outside the locks
+        boolean linked = false;
+        try {
+            lockForChange(targetDirectory);
+            targetDirectory.getLock().writeLock().lock();
+            try {
+                checkCopy(elementToCopy, targetDirectory);
+                if (journal != null) {
+                    journal.logCopy(getAbsolutePath(elementToCopy), getAbsolutePath(targetDirectory), false);
+                }
+                targetDirectory.addElement(copy);
+                linked = true;
+                VersionedFileSystem mirror = versions;
+                if (mirror != null) {
+                    // The copy, not its source: the source may have changed since it was read
+                    String targetPath = getAbsolutePath(targetDirectory);
+                    VersionedNode node = frozen != null ? frozen : VersionedFileSystem.freeze(copy);
+                    updateSnapshot(() -> mirror.link(targetPath, node));
+                }
+                if (events.hasSubscribers()) {
+                    events.publishCreate(getAbsolutePath(copy), directory);
+                }
+                return copy;
+            } finally {
+                targetDirectory.getLock().writeLock().unlock();
+                namespaceLock.readLock().unlock();
+            }
+        } finally {
+            if (!linked) {
+                copy.markDeleted();
+                reclaimer.submit(copy); // Drops the copy's entries from the name index
+            }
+        }
+    }
+
+    // Copy-on-write copy of source into targetDirectory. Under the write side of
+    // namespaceLock, so source cannot change while the copy starts sharing it.
+    private Directory shareInto(Directory source, Directory targetDirectory) {
+        namespaceLock.writeLock().lock();
+        try {
+            // Checked under the lock: a copy that reads one of its own ancestors would list
+            // itself, without end, once it is built
+            if (isDescendant(source, targetDirectory)) {
+                throw new IllegalArgumentException("Cannot copy a directory inside itself or its subdirectories.");
+            }
+            copier.unshare(targetDirectory);
+            checkCopy(source, targetDirectory);
+            if (journal != null) {
+                journal.logCopy(getAbsolutePath(source), getAbsolutePath(targetDirectory), true);
+            }
+            Directory copy = copier.share(source);
+            targetDirectory.addElement(copy);
+            nameIndex.add(copy);
+            VersionedFileSystem mirror = versions;
+            if (mirror != null) {
+                String sourcePath = getAbsolutePath(source);
+                String targetPath = getAbsolutePath(targetDirectory);
+                updateSnapshot(() -> mirror.copyFileOrDirectory(sourcePath, targetPath));
+            }
+            if (events.hasSubscribers()) {
+                events.publishCreate(getAbsolutePath(copy), true);
+            }
+            return copy;
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+    }
+
+    private void checkCopy(FileSystemElement elementToCopy, Directory targetDirectory) {
+        if (!isLive(elementToCopy)) {
+            throw new IllegalArgumentException("The file/directory to copy does not exist.");
+        }
+        if (!isLive(targetDirectory)) {
+            throw new IllegalArgumentException("The target path for the copy does not exist.");
+        }
+        if (targetDirectory.findElement(elementToCopy.getName()) != null) {
+            throw new IllegalArgumentException("An element with the same name already exists in the target directory.");
+        }
+    }
+
     public void setCurrentDirectory(Directory newCurrentDirectory) {
         this.currentDirectory = newCurrentDirectory;
     }
     
     // Search for a file or directory in the entire file system
     public String searchFileOrDirectory(String name) {
-        return searchRecursive(root, name, "");
+        long start = metrics.start();
+        TreeVersion snapshot = getSnapshot();
+        if (snapshot != null) {
+            String path = snapshot.searchFileOrDirectory(name); // A walk of the snapshot, not the name index
+            metrics.record(FileSystemMetrics.Operation.SEARCH, start, true);
+            return path;
+        }
+        Lock pinned = faultInNamed(name);
+        try {
+            for (FileSystemElement element : nameIndex.findAll(name)) {
+                if (element != root && isLive(element)) {
+                    return pathFromRoot(element); // Return the full path to the first match
+                }
+            }
+            // Otherwise it may still be in a copy-on-write copy that is not built yet
+            List<String> inCopies = new ArrayList<>();
+            for (FileSystemElement element : nameIndex.findAll(name)) {
+                if (element != root && isLive(element)) {
+                    addCopyPaths(element, "", inCopies);
+                    if (!inCopies.isEmpty()) {
+                        return inCopies.get(0);
+                    }
+                }
+            }
+            return ""; // Return an empty string if the element is not found
+        } finally {
+            unpin(pinned);
+            metrics.record(FileSystemMetrics.Operation.SEARCH, start, true);
+        }
     }
-    
-    // Recursive method to search for a file or directory in the file system
-    private String searchRecursive(Directory current, String name, String path) {
-        // Check all elements in the current directory
-        for (FileSystemElement element : current.getChildren()) {
-            // If the name matches, return the full path to the element
-            if (element.getName().equals(name)) {
-                return path + "/" + name;
-            }
-            // If it's a directory, go deeper
-            if (element instanceof Directory) {
-                String result = searchRecursive((Directory) element, name, path + "/" + element.getName());
-                if (!result.isEmpty()) {
-                    return result; // If the element is found in a subdirectory, return the result
+
+    // Search for every file or directory with the given name
+    public List<String> searchAllFilesOrDirectories(String name) {
+        long start = metrics.start();
+        Lock pinned = faultInNamed(name);
+        List<String> paths = new ArrayList<>();
+        try {
+            for (FileSystemElement element : nameIndex.findAll(name)) {
+                if (element != root && isLive(element)) {
+                    paths.add(pathFromRoot(element));
+                    addCopyPaths(element, "", paths);
                 }
             }
+        } finally {
+            unpin(pinned);
+        }
+        metrics.record(FileSystemMetrics.Operation.SEARCH, start, true);
+        return paths;
+    }
+
+    // Paths of up to limit elements whose name starts with prefix, in name order
+    public List<String> searchByPrefix(String prefix, int limit) {
+        long start = metrics.start();
+        List<String> paths;
+        Lock pinned = faultInAll();
+        try {
+            paths = pathsOf(nameIndex.findByPrefix(prefix, this::isSearchable, limit), limit);
+        } finally {
+            unpin(pinned);
+        }
+        metrics.record(FileSystemMetrics.Operation.SEARCH, start, true);
+        return paths;
+    }
+
+    // Paths of up to limit elements whose name ends with suffix
+    public List<String> searchBySuffix(String suffix, int limit) {
+        long start = metrics.start();
+        List<String> paths;
+        Lock pinned = faultInAll();
+        try {
+            paths = pathsOf(nameIndex.findBySuffix(suffix, this::isSearchable, limit), limit);
+        } finally {
+            unpin(pinned);
+        }
+        metrics.record(FileSystemMetrics.Operation.SEARCH, start, true);
+        return paths;
+    }
+
+    // Paths of up to limit elements whose name matches a pattern such as "*.log" or "a?c*"
+    public List<String> searchByGlob(String glob, int limit) {
+        long start = metrics.start();
+        List<String> paths;
+        Lock pinned = faultInAll();
+        try {
+            paths = pathsOf(nameIndex.findByGlob(glob, this::isSearchable, limit), limit);
+        } finally {
+            unpin(pinned);
+        }
+        metrics.record(FileSystemMetrics.Operation.SEARCH, start, true);
+        return paths;
+    }
+
+    // Paths of up to limit elements created at or after from and before to (either may
+    // be null), in path order
+    public List<String> searchCreatedBetween(Timestamp from, Timestamp to, int limit) {
+        return searchMatching(TreeSearch.createdBetween(from, to), limit);
+    }
+
+    // Paths of up to limit elements whose whole name matches a regular expression, in path order
+    public List<String> searchByRegex(String regex, int limit) {
+        return searchMatching(TreeSearch.nameRegex(regex), limit);
+    }
+
+    // Paths of up to limit elements that match, in path order. Walks the whole tree in
+    // parallel (see TreeSearch), so unbuilt copy-on-write copies are built and spilled
+    // subtrees brought back on the way. Holds no lock meanwhile: both of those take
+    // the namespace lock from the pool threads.
+    public List<String> searchMatching(Predicate<FileSystemElement> matcher, int limit) {
+        long start = metrics.start();
+        recordTieredAccess();
+        List<String> paths = new ArrayList<>();
+        for (FileSystemElement element : treeSearch.findAll(root, matcher)) {
+            if (isLive(element)) { // Not in a subtree deleted during the walk
+                paths.add(pathFromRoot(element));
+            }
+        }
+        Collections.sort(paths);
+        metrics.record(FileSystemMetrics.Operation.SEARCH, start, true);
+        return paths.size() > limit ? new ArrayList<>(paths.subList(0, limit)) : paths;
+    }
+
+    // Tab completion: up to limit ways to finish the last part of a partly typed path,
+    // as full paths in the same form the user typed (relative to the current directory
+    // unless it starts with "/"), directories with a trailing "/"
+    public List<String> completePath(String partial, int limit) {
+        return completePath(currentDirectory, partial, limit);
+    }
+
+    public List<String> completePath(Directory from, String partial, int limit) {
+        recordTieredAccess();
+        int slash = partial.lastIndexOf('/');
+        String dirPart = partial.substring(0, slash + 1);
+        Directory dir = dirPart.isEmpty() ? from : resolveDirectory(from, dirPart);
+        List<String> completions = new ArrayList<>();
+        if (dir == null) {
+            return completions;
+        }
+        for (FileSystemElement child : dir.listByNamePrefix(partial.substring(slash + 1), limit)) {
+            completions.add(dirPart + child.getName() + (child instanceof Directory ? "/" : ""));
+        }
+        return completions;
+    }
+
+    private boolean isSearchable(FileSystemElement element) {
+        return element != root && isLive(element);
+    }
+
+    // Paths of the elements, then those of their unbuilt copies, up to limit in all
+    private List<String> pathsOf(List<FileSystemElement> elements, int limit) {
+        List<String> paths = new ArrayList<>(elements.size());
+        for (FileSystemElement element : elements) {
+            paths.add(pathFromRoot(element));
+        }
+        for (int i = 0; i < elements.size() && paths.size() < limit; i++) {
+            addCopyPaths(elements.get(i), "", paths);
+        }
+        return paths.size() > limit ? new ArrayList<>(paths.subList(0, limit)) : paths;
+    }
+
+    // Unbuilt copy-on-write copies are not in the name index, nor is anything below
+    // them. Add the paths at which they show element: for each ancestor that copies
+    // read from, each copy's own path followed by the rest of element's path, and
+    // likewise for copies of the ancestors of that copy. below is the path from element
+    // down to what is being searched for ("" at the start).
+    private void addCopyPaths(FileSystemElement element, String below, List<String> paths) {
+        if (!SubtreeCopier.isSharing()) {
+            return;
+        }
+        String rest = below;
+        for (FileSystemElement current = element; current != null && current != root;
+                current = current.getParent()) {
+            if (!rest.isEmpty() && current instanceof Directory) {
+                // Copies of what is searched for itself are in the index under its name
+                for (Directory copy : copier.copiesOf((Directory) current)) {
+                    if (isLive(copy)) {
+                        paths.add(pathFromRoot(copy) + rest);
+                        addCopyPaths(copy, rest, paths);
+                    }
+                }
+            }
+            rest = "/" + current.getName() + rest;
+        }
+    }
+
+    // Absolute path of an element as accepted by changeDirectory and resolvePath ("/" for root)
+    public String getAbsolutePath(FileSystemElement element) {
+        return element == root ? "/" : pathFromRoot(element);
+    }
+
+    // Absolute path of a directory, reusing cached paths of it or its nearest cached ancestor
+    // and caching the paths computed on the way down
+    private String directoryPath(Directory dir) {
+        long epoch = pathCache.currentEpoch();
+        ArrayList<Directory> chain = new ArrayList<>(); // dir and its ancestors below root
+        Directory current = dir;
+        boolean live = true; // Only paths of directories still in the tree are cached
+        while (current != null && current != root) {
+            live &= !current.isDeleted();
+            chain.add(current);
+            current = current.getParent();
+        }
+        boolean reachesRoot = current != null && live;
+        // Walking down from root, a cached path is good if no directory at or above it
+        // changed after the path was computed; start from the deepest good one
+        long newestStamp = current != null ? current.getPathStamp() : 0;
+        int uncached = chain.size();
+        String base = "";
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            Directory next = chain.get(i);
+            newestStamp = Math.max(newestStamp, next.getPathStamp());
+            String cached = pathCache.pathOf(next, newestStamp);
+            if (cached != null) {
+                uncached = i;
+                base = cached;
+            }
         }
-        return ""; // Return an empty string if the element is not found
+        StringBuilder path = new StringBuilder(base);
+        for (int i = uncached - 1; i >= 0; i--) {
+            Directory next = chain.get(i);
+            path.append('/').append(next.getName());
+            if (reachesRoot) {
+                pathCache.rememberPath(next, path.toString(), epoch);
+            }
+        }
+        return path.toString();
+    }
+
+    // Find the element at an absolute path such as "/a/b/name", or null if there is none
+    public FileSystemElement resolvePath(String path) {
+        int lastSlash = path.lastIndexOf('/');
+        if (lastSlash < 0) {
+            return null; // Only absolute paths are supported
+        }
+        String name = path.substring(lastSlash + 1);
+        if (name.isEmpty()) {
+            return lastSlash == 0 ? root : resolvePath(path.substring(0, lastSlash));
+        }
+        Directory parent = lastSlash == 0 ? root : resolveDirectory(path.substring(0, lastSlash));
+        return parent == null ? null : parent.findElement(name);
+    }
+
+    // Build the "/a/b/name" style path used by search results (root is not included)
+    private String pathFromRoot(FileSystemElement element) {
+        if (element instanceof Directory) {
+            return directoryPath((Directory) element);
+        }
+        Directory parent = element.getParent();
+        if (parent == null) {
+            return "/" + element.getName();
+        }
+        return (parent == root ? "" : directoryPath(parent)) + "/" + element.getName();
     }
 
     public String getCurrentPath(Directory dir) {
+        if (!dir.isDeleted()) {
+            // Same result as walking up the parents, but served from the path cache
+            if (dir == root) {
+                return "".equals(root.getName()) ? "/" : root.getName();
+            }
+            return root.getName() + directoryPath(dir);
+        }
+
+        // A deleted directory is no longer under root, so walk its own parent chain
         LinkedList<String> pathComponents = new LinkedList<>();
         FileSystemElement current = dir;
 
@@ -299,20 +1165,234 @@ public class FileSystem {
 
     // Sort contents of a directory by date created
     public void sortContentsByDate(Directory dir) {
-        Collections.sort(dir.getChildren(), new Comparator<FileSystemElement>() {
-            @Override
-            public int compare(FileSystemElement fse1, FileSystemElement fse2) {
-                // Assuming FileSystemElement has a getDateCreated() method that returns a
-                // Timestamp.
-                // The Timestamp implements Comparable, so we can directly use compareTo here.
-                return fse1.getDateCreated().compareTo(fse2.getDateCreated());
+        long start = metrics.start();
+        lockForChange(dir);
+        dir.getLock().writeLock().lock();
+        try {
+            if (journal != null) {
+                journal.logSort(getAbsolutePath(dir));
+            }
+            sortChildrenByDate(dir);
+            if (events.hasSubscribers()) {
+                events.publishReorder(getAbsolutePath(dir));
+            }
+        } finally {
+            dir.getLock().writeLock().unlock();
+            namespaceLock.readLock().unlock();
+            metrics.record(FileSystemMetrics.Operation.SORT, start, true);
+        }
+    }
+
+    // Change a file's size and the totals above it, journaled like the other mutations.
+    // File.setSize on its own is not journaled; use it only for files not in a tree yet.
+    public void setFileSize(File file, long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("File size cannot be negative.");
+        }
+        while (true) {
+            Directory parent = file.getParent();
+            if (parent == null) {
+                throw new IllegalArgumentException("File does not exist.");
             }
-        });
+            lockForChange(parent);
+            parent.getLock().writeLock().lock();
+            try {
+                if (file.getParent() != parent) {
+                    continue; // Moved meanwhile, lock its new directory instead
+                }
+                if (!isLive(parent) || parent.findElement(file.getName()) != file) {
+                    throw new IllegalArgumentException("File does not exist.");
+                }
+                if (journal != null) {
+                    journal.logSetSize(getAbsolutePath(file), size);
+                }
+                file.setSize(size);
+                return;
+            } finally {
+                parent.getLock().writeLock().unlock();
+                namespaceLock.readLock().unlock();
+            }
+        }
+    }
+
+    private void sortChildrenByDate(Directory dir) {
+        // The directory keeps its children ordered by date already, so this is a
+        // relink in that order rather than a sort
+        dir.reorderByDate();
+    }
+
+    // Watch the element at an absolute path for changes, with recursive everything below
+    // it too. listener gets CREATE, DELETE, MOVE and REORDER events in batches on the
+    // watch's own thread; a listener that falls behind loses events (see
+    // WatchSubscription.Backpressure.DROP). The watch follows the path, not the element:
+    // it stays open if the element is deleted and sees anything created there later.
+    public WatchSubscription watch(String path, boolean recursive, FileSystemListener listener) {
+        return watch(path, recursive, listener, WatchSubscription.Backpressure.DROP, EventHub.DEFAULT_CAPACITY);
+    }
+
+    // Same, with the policy for a slow listener and how many events may queue up for it
+    public WatchSubscription watch(String path, boolean recursive, FileSystemListener listener,
+            WatchSubscription.Backpressure policy, int capacity) {
+        FileSystemElement element = resolvePath(path);
+        if (element == null || !isLive(element)) {
+            throw new IllegalArgumentException("File or directory does not exist.");
+        }
+        return events.add(getAbsolutePath(element), recursive, listener, policy, capacity,
+                EventHub.DEFAULT_BATCH_SIZE);
+    }
+
+    public EventHub getEvents() {
+        return events;
+    }
+
+    // Start appending every mutation to the given journal (null to stop journaling)
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+        metrics.setJournal(journal); // Its commit figures show up in the metrics dump
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    public FileSystemMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Keep the estimated heap use of the tree within heapBudgetBytes by spilling cold
+    // subtrees to spillFile (created or truncated). Spilled subtrees come back
+    // transparently when used; see TieredStore.
+    public synchronized TieredStore enableTiering(Path spillFile, long heapBudgetBytes) throws IOException {
+        if (tiering != null) {
+            throw new IllegalStateException("Tiered storage is already enabled.");
+        }
+        if (versions != null) {
+            throw new IllegalStateException("Snapshot reads keep the whole tree in memory.");
+        }
+        tiering = new TieredStore(this, nameIndex, namespaceLock, pathCache, spillFile, heapBudgetBytes);
+        return tiering;
+    }
+
+    // null unless enableTiering was called
+    public TieredStore getTiering() {
+        return tiering;
+    }
+
+    // Keep an immutable, multi-version copy of the tree (see VersionedFileSystem) and
+    // serve printWholeTree, listDirectoryContents and searchFileOrDirectory from its
+    // latest version: they take no locks, never wait for writers, and see the tree at
+    // one point in time however many changes run meanwhile. Every change is applied to
+    // the copy under the locks the journal record is written under, so it costs one
+    // path copy per change; a name search walks the copy instead of using the name
+    // index. Builds every copy-on-write copy once; not with tiered storage, as the
+    // copy holds the whole tree in memory.
+    public synchronized void enableSnapshotReads() {
+        if (tiering != null) {
+            throw new IllegalStateException("Snapshot reads keep the whole tree in memory.");
+        }
+        namespaceLock.writeLock().lock(); // No change may fall between the copy and the first update
+        try {
+            if (versions == null) {
+                versions = VersionedFileSystem.fromDirectory(root);
+            }
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+    }
+
+    // The latest version of the tree, or null unless enableSnapshotReads was called
+    public TreeVersion getSnapshot() {
+        VersionedFileSystem mirror = versions;
+        return mirror == null ? null : mirror.snapshot();
+    }
+
+    // Apply a change to the snapshot copy. It only fails for a change made inside a
+    // directory that was deleted meanwhile, which is invisible in this tree as well.
+    private static void updateSnapshot(Runnable change) {
+        try {
+            change.run();
+        } catch (IllegalArgumentException e) {
+            // Nothing left to change
+        }
+    }
+
+    // Count an operation towards the tiering hit rate
+    private void recordTieredAccess() {
+        TieredStore store = tiering;
+        if (store != null) {
+            store.recordAccess();
+        }
+    }
+
+    // Before a name lookup: bring back the spilled subtrees that may hold the name. They
+    // stay in memory until the returned lock is released, as evictions hold the write
+    // side of namespaceLock; null without tiering.
+    private Lock faultInNamed(String name) {
+        TieredStore store = tiering;
+        if (store == null) {
+            return null;
+        }
+        Lock pinned = namespaceLock.readLock();
+        pinned.lock();
+        try {
+            store.recordAccess();
+            store.faultInNamed(name);
+            return pinned;
+        } catch (RuntimeException e) {
+            pinned.unlock();
+            throw e;
+        }
+    }
+
+    // Before a pattern search: bring back every spilled subtree, pinned the same way
+    private Lock faultInAll() {
+        TieredStore store = tiering;
+        if (store == null) {
+            return null;
+        }
+        Lock pinned = namespaceLock.readLock();
+        pinned.lock();
+        try {
+            store.recordAccess();
+            store.faultInAll();
+            return pinned;
+        } catch (RuntimeException e) {
+            pinned.unlock();
+            throw e;
+        }
+    }
+
+    private static void unpin(Lock pinned) {
+        if (pinned != null) {
+            pinned.unlock();
+        }
     }
 
     public Directory getCurrentDirectory() {
         return currentDirectory; // It should return the current state of the directory
     }
 
+    // Stop everything that runs in the background for this file system: finish deleted
+    // subtrees and stop the reclaimer thread, close every watch, unregister the metrics
+    // MBean, bring spilled subtrees back and stop tiering, then flush and close the
+    // journal. For when the file system is discarded; reads still work afterwards.
+    @Override
+    public void close() throws IOException {
+        reclaimer.close();
+        events.closeAll();
+        metrics.unregister();
+        try {
+            TieredStore store = tiering;
+            if (store != null) {
+                store.close();
+            }
+        } finally {
+            Journal current = journal;
+            if (current != null) {
+                current.close();
+            }
+        }
+    }
+
     // Additional helper methods can be added as needed
 }
@@ -3,12 +3,22 @@ import java.sql.Timestamp;
 public abstract class FileSystemElement {
     protected String name;
     protected Timestamp dateCreated;
-    protected Directory parent; // Ensure this is of type Directory
+    protected volatile Directory parent; // Ensure this is of type Directory; volatile for lock-free path walks
+    // In its parent's children as far as the subtree aggregates know. Guarded by this
+    // element's monitor, together with a directory's aggregates or a file's size.
+    boolean linked;
+    // Removed from the tree. Set on the top of a deleted subtree as soon as it is unlinked,
+    // and on each directory below it when the reclaimer gets to it.
+    protected volatile boolean deleted;
+    // Written out to disk by TieredStore and dropped from memory; a new object stands
+    // for this element once its subtree is faulted back in
+    protected volatile boolean evicted;
 
     public FileSystemElement(String name, Directory parent, Timestamp dateCreated) {
         this.name = name;
         this.parent = parent;
-        this.dateCreated = new Timestamp(System.currentTimeMillis());
+        // Keep the given creation time (e.g. when loading a snapshot), otherwise use now
+        this.dateCreated = dateCreated != null ? dateCreated : new Timestamp(System.currentTimeMillis());
     }
 
     public String getName() {
@@ -29,6 +39,22 @@ public abstract class FileSystemElement {
 
     public abstract void display(String prefix, boolean isCurrent);
 
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    void markDeleted() {
+        deleted = true;
+    }
+
+    public boolean isEvicted() {
+        return evicted;
+    }
+
+    void markEvicted() {
+        evicted = true;
+    }
+
     public Timestamp getDateCreated() {
         return dateCreated; // Return the date created
     }
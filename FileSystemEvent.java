@@ -0,0 +1,59 @@
+// One change to the tree, as delivered to a FileSystemListener. Paths are absolute
+// ("/a/b") and taken at the moment of the change.
+public final class FileSystemEvent {
+    public enum Type {
+        CREATE,   // path was created
+        DELETE,   // path and everything below it was deleted
+        MOVE,     // oldPath was moved to path
+        REORDER,  // the children of directory path were reordered
+        OVERFLOW  // events for the watched path were dropped; path is the watched path
+    }
+
+    private final Type type;
+    private final String path;
+    private final String oldPath;
+    private final boolean directory;
+    private final long sequence;
+    private final long timestamp;
+
+    FileSystemEvent(Type type, String path, String oldPath, boolean directory, long sequence) {
+        this.type = type;
+        this.path = path;
+        this.oldPath = oldPath;
+        this.directory = directory;
+        this.sequence = sequence;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    // Path before a MOVE; null for every other type
+    public String getOldPath() {
+        return oldPath;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    // Position in the file system's event order; gaps are events that only went to
+    // other watches, or that this watch dropped or coalesced
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + (oldPath != null ? oldPath + " -> " : "") + path + (directory ? "/" : "");
+    }
+}
@@ -0,0 +1,8 @@
+import java.util.List;
+
+// Receives the events of a watch in batches, in the order they happened, on the
+// watch's own delivery thread. A slow listener only delays its own watch.
+@FunctionalInterface
+public interface FileSystemListener {
+    void onEvents(List<FileSystemEvent> events);
+}
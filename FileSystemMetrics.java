@@ -0,0 +1,231 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Per-operation counters and latency histograms for one FileSystem, plus gauges for
+// the shape of its tree. FileSystem brackets each public operation with start() and
+// record(). Every call is counted exactly, but only one in getSampleInterval() calls
+// is timed: reading the clock twice costs more than many of the operations do, and a
+// random sample gives the same percentiles. When metrics are disabled, start() and
+// record() cost a volatile read each.
+//
+// Node count and max depth come straight from the root's subtree aggregates. Max
+// fan-out is the largest child count any directory has reached (it is raised on
+// create and not lowered on delete), so it stays O(1) to maintain.
+//
+// While the FileSystem is journaled, dump() also shows the journal's group commit
+// throughput per batch size (Journal.formatMetrics).
+public class FileSystemMetrics implements FileSystemMetricsMBean {
+    public enum Operation {
+        CHANGE_DIRECTORY, CREATE_FILE, CREATE_DIRECTORY, LIST, DELETE, MOVE, COPY, SEARCH, SORT
+    }
+
+    private static final long DISABLED = Long.MIN_VALUE;  // start() results that are not
+    private static final long UNTIMED = Long.MIN_VALUE + 1; // clock readings
+
+    private final Directory root;
+    private final LongAdder[] calls = new LongAdder[Operation.values().length];
+    private final LongAdder[] errors = new LongAdder[Operation.values().length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final AtomicInteger maxFanOut = new AtomicInteger();
+    private final LongAdder backgroundFailures = new LongAdder();
+    private volatile String lastBackgroundFailure; // null until something failed
+    private volatile Journal journal; // Set by FileSystem.setJournal, null when not journaled
+    private volatile ObjectName registeredAs; // null unless registered with the MBean server
+    private volatile boolean enabled = true;
+    private volatile int sampleMask = 7; // Time a call when (random & sampleMask) == 0
+
+    public FileSystemMetrics(Directory root) {
+        this.root = root;
+        for (int i = 0; i < latencies.length; i++) {
+            calls[i] = new LongAdder();
+            errors[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    // Value to pass to record(): the start time for a sampled call, a marker otherwise
+    public long start() {
+        if (!enabled) {
+            return DISABLED;
+        }
+        int mask = sampleMask;
+        if (mask != 0 && (ThreadLocalRandom.current().nextInt() & mask) != 0) {
+            return UNTIMED;
+        }
+        return System.nanoTime();
+    }
+
+    // Record one call that began with start(); failed calls also count as errors
+    public void record(Operation operation, long start, boolean succeeded) {
+        if (start == DISABLED) {
+            return;
+        }
+        calls[operation.ordinal()].increment();
+        if (!succeeded) {
+            errors[operation.ordinal()].increment();
+        }
+        if (start != UNTIMED) {
+            latencies[operation.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    // Time one in interval calls (rounded up to a power of two); 1 times every call
+    public void setSampleInterval(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Sample interval must be at least 1.");
+        }
+        int rounded = interval == 1 ? 1 : Integer.highestOneBit(interval - 1) * 2;
+        sampleMask = rounded - 1;
+    }
+
+    public int getSampleInterval() {
+        return sampleMask + 1;
+    }
+
+    // Note that a directory now has childCount children
+    public void recordFanOut(int childCount) {
+        if (enabled && childCount > maxFanOut.get()) {
+            maxFanOut.accumulateAndGet(childCount, Math::max);
+        }
+    }
+
+    // Note that a background task (reclaimer, tiering sweeper) failed; always counted,
+    // even while disabled, since nothing else reports it
+    public void recordBackgroundFailure(String task, RuntimeException failure) {
+        backgroundFailures.increment();
+        lastBackgroundFailure = task + ": " + failure;
+    }
+
+    public LatencyHistogram getLatencies(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public long getNodeCount() {
+        return 1 + root.getFileCount() + root.getDirectoryCount();
+    }
+
+    @Override
+    public int getMaxDepth() {
+        return root.getMaxDepth();
+    }
+
+    @Override
+    public int getMaxFanOut() {
+        return Math.max(maxFanOut.get(), root.getChildCount());
+    }
+
+    @Override
+    public long getBackgroundFailureCount() {
+        return backgroundFailures.sum();
+    }
+
+    @Override
+    public String getLastBackgroundFailure() {
+        return lastBackgroundFailure;
+    }
+
+    @Override
+    public long getOperationCount(String operation) {
+        return calls[Operation.valueOf(operation).ordinal()].sum();
+    }
+
+    @Override
+    public long getErrorCount(String operation) {
+        return errors[Operation.valueOf(operation).ordinal()].sum();
+    }
+
+    @Override
+    public double getLatencyPercentileMicros(String operation, double percentile) {
+        return latencies[Operation.valueOf(operation).ordinal()].getPercentile(percentile) / 1000.0;
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("nodes=%d maxDepth=%d maxFanOut=%d enabled=%b sampleInterval=%d%n",
+                getNodeCount(), getMaxDepth(), getMaxFanOut(), enabled, getSampleInterval()));
+        if (lastBackgroundFailure != null) {
+            out.append(String.format("backgroundFailures=%d last=%s%n", getBackgroundFailureCount(),
+                    lastBackgroundFailure));
+        }
+        out.append(String.format("%-17s %10s %8s %10s %10s %10s %10s %10s%n", "operation", "count", "errors",
+                "mean(us)", "p50(us)", "p99(us)", "p99.9(us)", "max(us)"));
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = latencies[operation.ordinal()];
+            long count = calls[operation.ordinal()].sum();
+            if (count == 0) {
+                continue;
+            }
+            out.append(String.format("%-17s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n", operation,
+                    count, errors[operation.ordinal()].sum(), histogram.getMean() / 1000.0,
+                    histogram.getPercentile(50) / 1000.0, histogram.getPercentile(99) / 1000.0,
+                    histogram.getPercentile(99.9) / 1000.0, histogram.getMax() / 1000.0));
+        }
+        Journal current = journal;
+        if (current != null) {
+            out.append(current.formatMetrics());
+        }
+        return out.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < latencies.length; i++) {
+            calls[i].reset();
+            errors[i].reset();
+            latencies[i].reset();
+        }
+        maxFanOut.set(0);
+        backgroundFailures.reset();
+        lastBackgroundFailure = null;
+    }
+
+    void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    // Register with the platform MBean server as filesystem:type=FileSystemMetrics,name=<name>
+    public void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("filesystem:type=FileSystemMetrics,name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+            registeredAs = objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register metrics MBean: " + e.getMessage(), e);
+        }
+    }
+
+    // Undo register, if it was called; otherwise the MBean server keeps the tree reachable
+    public void unregister() {
+        ObjectName objectName = registeredAs;
+        if (objectName == null) {
+            return;
+        }
+        registeredAs = null;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            // Already replaced by another file system registered under the same name
+        }
+    }
+}
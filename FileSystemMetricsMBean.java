@@ -0,0 +1,34 @@
+// JMX view of FileSystemMetrics (see FileSystemMetrics.register)
+public interface FileSystemMetricsMBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    int getSampleInterval();
+
+    void setSampleInterval(int interval);
+
+    long getNodeCount();
+
+    int getMaxDepth();
+
+    int getMaxFanOut();
+
+    // Failures of background work (subtree cleanup, tiering sweeps) and the latest one
+    long getBackgroundFailureCount();
+
+    String getLastBackgroundFailure();
+
+    long getOperationCount(String operation);
+
+    long getErrorCount(String operation);
+
+    // Latency percentile in microseconds for one operation, e.g. ("MOVE", 99.0)
+    double getLatencyPercentileMicros(String operation, double percentile);
+
+    // Everything above as plain text, one line per operation, then the journal's
+    // group commits by batch size if the FileSystem is journaled
+    String dump();
+
+    void reset();
+}
@@ -0,0 +1,251 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+// TCP server sharing one FileSystem between many clients. Every connection gets its
+// own FileSystemSession (and so its own current directory) and its own thread.
+//
+// Protocol: the client sends CommandRunner commands, one per line. For every command
+// the server sends the command's output lines followed by a line holding only ".";
+// output lines that start with "." get a second "." in front (as in SMTP). "quit"
+// closes the connection. Clients may send many commands without waiting; responses
+// are buffered and flushed only once no further request is already waiting, so a
+// pipelined burst goes out in a few large writes. A line longer than MAX_LINE_BYTES is
+// answered with "error: line too long" and the connection is closed, so one client
+// cannot fill the shared heap by never sending a newline.
+//
+// Connection threads are virtual threads when the JVM has them (Java 21+), so idle
+// sessions cost a few kilobytes each. On older JVMs they fall back to daemon platform
+// threads with a small stack.
+public class FileSystemServer implements Closeable {
+    static final int BUFFER_SIZE = 2048;                 // Per connection, in each direction
+    static final int MAX_LINE_BYTES = 8 * 1024;          // Longest request line, without "\n"
+    private static final long PLATFORM_STACK_SIZE = 256 * 1024;
+    // Thread.ofVirtual().factory() looked up reflectively so the class still runs on Java 17
+    private static final ThreadFactory VIRTUAL_THREADS = virtualThreadFactory();
+
+    private final FileSystem fs;
+    private final ServerSocket serverSocket;
+    private final ThreadFactory connectionThreads = connectionThreadFactory();
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private volatile boolean closed;
+    private Thread acceptor;
+
+    // Listen on port of the loopback interface; port 0 picks a free one
+    public FileSystemServer(FileSystem fs, int port) throws IOException {
+        this(fs, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public FileSystemServer(FileSystem fs, InetSocketAddress address) throws IOException {
+        this.fs = fs;
+        this.serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(address, 4096);
+    }
+
+    // Start accepting connections on a background thread
+    public synchronized FileSystemServer start() {
+        if (acceptor != null) {
+            throw new IllegalStateException("Server already started.");
+        }
+        acceptor = new Thread(this::acceptLoop, "filesystem-server-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return this;
+    }
+
+    // Block until the server is closed
+    public void awaitTermination() throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = acceptor;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int getOpenConnections() {
+        return connections.size();
+    }
+
+    public long getAcceptedConnections() {
+        return acceptedConnections.get();
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    // Whether connections are served by virtual threads
+    public boolean usesVirtualThreads() {
+        return VIRTUAL_THREADS != null;
+    }
+
+    // Stop accepting and drop every open connection
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket socket : connections) {
+            closeQuietly(socket);
+        }
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (closed) {
+                    return;
+                }
+                continue; // A failed accept (e.g. out of file descriptors) only loses that client
+            }
+            acceptedConnections.incrementAndGet();
+            connections.add(socket);
+            try {
+                connectionThreads.newThread(() -> serve(socket)).start();
+            } catch (OutOfMemoryError | RuntimeException e) {
+                connections.remove(socket); // No thread for it
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true); // Responses are batched by the flush rule below instead
+            // Plain byte buffers: readers and writers would add an 8 KB codec buffer each
+            BufferedInputStream in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+            BufferedOutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            CommandRunner runner = new CommandRunner(new FileSystemSession(fs));
+            ByteArrayOutputStream lineBytes = new ByteArrayOutputStream(128);
+            StringBuilder result = new StringBuilder();
+            String line;
+            try {
+                while ((line = readLine(in, lineBytes)) != null) {
+                    if (line.trim().equals("quit")) {
+                        break;
+                    }
+                    requests.incrementAndGet();
+                    result.setLength(0);
+                    runner.execute(line, result);
+                    writeResponse(result, out);
+                    if (in.available() == 0) {
+                        out.flush(); // Nothing else pipelined behind this request
+                    }
+                }
+            } catch (LineTooLongException e) {
+                writeResponse("error: line too long\n", out); // Then close; the rest is never read
+            }
+            out.flush();
+        } catch (SocketException e) {
+            // Client went away or the server was closed
+        } catch (IOException e) {
+            // Nothing can be reported to a broken connection
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    // Next UTF-8 line without its "\n" or "\r\n", or null at end of stream. Throws
+    // LineTooLongException once more than MAX_LINE_BYTES arrive without a "\n".
+    private static String readLine(BufferedInputStream in, ByteArrayOutputStream lineBytes) throws IOException {
+        lineBytes.reset();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return lineBytes.size() == 0 ? null : lineBytes.toString(StandardCharsets.UTF_8);
+            }
+            if (lineBytes.size() > MAX_LINE_BYTES) { // One more for a "\r" before the "\n"
+                throw new LineTooLongException();
+            }
+            lineBytes.write(b);
+        }
+        String line = lineBytes.toString(StandardCharsets.UTF_8);
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    // Output lines (dot-stuffed) followed by the "." terminator
+    private static void writeResponse(CharSequence result, OutputStream out) throws IOException {
+        int start = 0;
+        int length = result.length();
+        while (start < length) {
+            int end = start;
+            while (end < length && result.charAt(end) != '\n') {
+                end++;
+            }
+            if (result.charAt(start) == '.') {
+                out.write('.');
+            }
+            out.write(result.subSequence(start, end).toString().getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+            start = end + 1;
+        }
+        out.write('.');
+        out.write('\n');
+    }
+
+    private static final class LineTooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object ofVirtual = MethodHandles.publicLookup()
+                    .findStatic(Thread.class, "ofVirtual", MethodType.methodType(
+                            Class.forName("java.lang.Thread$Builder$OfVirtual")))
+                    .invoke();
+            return (ThreadFactory) MethodHandles.publicLookup()
+                    .findVirtual(builder, "factory", MethodType.methodType(ThreadFactory.class))
+                    .invoke(ofVirtual);
+        } catch (Throwable e) {
+            return null; // Not available on this JVM
+        }
+    }
+
+    private static ThreadFactory connectionThreadFactory() {
+        if (VIRTUAL_THREADS != null) {
+            return VIRTUAL_THREADS;
+        }
+        AtomicLong ids = new AtomicLong();
+        return task -> {
+            Thread thread = new Thread(null, task, "filesystem-session-" + ids.incrementAndGet(),
+                    PLATFORM_STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
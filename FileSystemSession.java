@@ -0,0 +1,96 @@
+import java.sql.Timestamp;
+import java.util.List;
+
+// One client's view of a shared FileSystem. Each session keeps its own current
+// directory, so many sessions (one per thread or connection) can work on the same
+// FileSystem at once without stepping on FileSystem.currentDirectory.
+public class FileSystemSession {
+    private final FileSystem fs;
+    private Directory currentDirectory;
+
+    public FileSystemSession(FileSystem fs) {
+        this.fs = fs;
+        this.currentDirectory = fs.getRoot(); // Start with the root as the current directory
+    }
+
+    public FileSystem getFileSystem() {
+        return fs;
+    }
+
+    // The current directory, or its nearest surviving ancestor if another session deleted it
+    public Directory getCurrentDirectory() {
+        Directory dir = fs.nearestLiveDirectory(currentDirectory);
+        currentDirectory = dir;
+        return dir;
+    }
+
+    // Change the current directory; returns false if the path does not exist
+    public boolean changeDirectory(String path) {
+        Directory newDir = fs.changeDirectory(getCurrentDirectory(), path);
+        if (newDir == null) {
+            return false;
+        }
+        currentDirectory = newDir;
+        return true;
+    }
+
+    public String getCurrentPath() {
+        return fs.getCurrentPath(getCurrentDirectory());
+    }
+
+    public void createFile(String name) {
+        fs.createFile(getCurrentDirectory(), name, new Timestamp(System.currentTimeMillis()));
+    }
+
+    public void createDirectory(String name) {
+        fs.createDirectory(getCurrentDirectory(), name, new Timestamp(System.currentTimeMillis()));
+    }
+
+    public List<FileSystemElement> listDirectoryContents() {
+        return getCurrentDirectory().snapshotChildren();
+    }
+
+    // Delete an element of the current directory
+    public void deleteFileOrDirectory(String name) {
+        FileSystemElement elementToDelete = getCurrentDirectory().findElement(name);
+        if (elementToDelete == null) {
+            throw new IllegalArgumentException("File or directory does not exist.");
+        }
+        fs.deleteElement(elementToDelete);
+    }
+
+    // Move an element of the current directory to the directory at newPathString
+    public void moveFileOrDirectory(String name, String newPathString) {
+        FileSystemElement elementToMove = getCurrentDirectory().findElement(name);
+        if (elementToMove == null) {
+            throw new IllegalArgumentException("The file/directory to move does not exist.");
+        }
+        Directory newParentDirectory = fs.changeDirectory(getCurrentDirectory(), newPathString);
+        if (newParentDirectory == null) {
+            throw new IllegalArgumentException("The new path for the file/directory does not exist.");
+        }
+        fs.moveElement(elementToMove, newParentDirectory);
+    }
+
+    // Copy an element of the current directory into the directory at newPathString;
+    // see FileSystem.copyFileOrDirectory
+    public void copyFileOrDirectory(String name, String newPathString, boolean copyOnWrite) {
+        FileSystemElement elementToCopy = getCurrentDirectory().findElement(name);
+        if (elementToCopy == null) {
+            throw new IllegalArgumentException("The file/directory to copy does not exist.");
+        }
+        Directory targetDirectory = fs.changeDirectory(getCurrentDirectory(), newPathString);
+        if (targetDirectory == null) {
+            throw new IllegalArgumentException("The target path for the copy does not exist.");
+        }
+        fs.copyElement(elementToCopy, targetDirectory, copyOnWrite);
+    }
+
+    public String searchFileOrDirectory(String name) {
+        return fs.searchFileOrDirectory(name);
+    }
+
+    public void sortContentsByDate() {
+        fs.sortContentsByDate(getCurrentDirectory());
+    }
+}
@@ -0,0 +1,277 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+// Compact binary snapshot of a FileSystem tree.
+//
+// Layout (big-endian):
+//   int magic, int version, int stringCount, int nodeCount, long stringBytesLength,
+//   long journalSequence (version 2 and later)
+//   int[stringCount + 1] offsets into the string bytes
+//   byte[stringBytesLength] UTF-8 names, each distinct name stored once
+//   nodeCount records of { int parentIndex, int nameIndex, byte kind, long dateCreated }
+//   long[nodeCount] file sizes, 0 for directories (version 3 and later)
+//
+// Nodes are stored breadth-first, so a parent always comes before its children
+// and the tree can be rebuilt in a single pass. Node 0 is the root (parent -1).
+// journalSequence is the last Journal record already contained in the snapshot.
+// Files in older versions load with size 0.
+public class FileSystemSnapshot {
+    private static final int MAGIC = 0x46535331; // "FSS1"
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE_V1 = 4 + 4 + 4 + 4 + 8;
+    private static final int NODE_RECORD_SIZE = 4 + 4 + 1 + 8;
+    private static final byte KIND_FILE = 0;
+    private static final byte KIND_DIRECTORY = 1;
+
+    private final int stringCount;
+    private final int nodeCount;
+    private final long journalSequence;
+    private final MappedByteBuffer stringOffsets;
+    private final MappedByteBuffer stringBytes;
+    private final MappedByteBuffer nodes;
+    private final MappedByteBuffer sizes; // null before version 3
+    private final String[] decodedNames; // Names are decoded on first use only
+
+    private FileSystemSnapshot(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_SIZE_V1) {
+            throw new IOException("Not a file system snapshot.");
+        }
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE_V1);
+        int version = header.getInt(4);
+        if (header.getInt(0) != MAGIC || version < 1 || version > VERSION) {
+            throw new IOException("Not a file system snapshot.");
+        }
+        header.position(8);
+        stringCount = header.getInt();
+        nodeCount = header.getInt();
+        long stringBytesLength = header.getLong();
+        long position = HEADER_SIZE_V1;
+        if (version >= 2) {
+            journalSequence = channel.map(FileChannel.MapMode.READ_ONLY, position, 8).getLong();
+            position += 8;
+        } else {
+            journalSequence = 0;
+        }
+        if (stringCount < 0 || nodeCount < 1 || stringBytesLength < 0) {
+            throw new IOException("Corrupt file system snapshot header.");
+        }
+
+        // Each region is mapped on its own so no single mapping has to cover the whole file
+        long offsetsLength = 4L * (stringCount + 1);
+        long nodesLength = (long) NODE_RECORD_SIZE * nodeCount;
+        if (nodesLength > Integer.MAX_VALUE || offsetsLength > Integer.MAX_VALUE
+                || stringBytesLength > Integer.MAX_VALUE) {
+            throw new IOException("File system snapshot is too large to map.");
+        }
+        long sizesLength = version >= 3 ? 8L * nodeCount : 0;
+        if (position + offsetsLength + stringBytesLength + nodesLength + sizesLength > channel.size()) {
+            throw new IOException("Truncated file system snapshot.");
+        }
+        stringOffsets = channel.map(FileChannel.MapMode.READ_ONLY, position, offsetsLength);
+        position += offsetsLength;
+        stringBytes = channel.map(FileChannel.MapMode.READ_ONLY, position, stringBytesLength);
+        position += stringBytesLength;
+        nodes = channel.map(FileChannel.MapMode.READ_ONLY, position, nodesLength);
+        position += nodesLength;
+        sizes = version >= 3 ? channel.map(FileChannel.MapMode.READ_ONLY, position, sizesLength) : null;
+        decodedNames = new String[stringCount];
+    }
+
+    // Map a snapshot file without building any tree nodes yet
+    public static FileSystemSnapshot open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new FileSystemSnapshot(channel); // Mappings stay valid after the channel is closed
+        }
+    }
+
+    // Load a snapshot file into a new FileSystem
+    public static FileSystem load(Path path) throws IOException {
+        return new FileSystem(open(path).materialize());
+    }
+
+    public long getJournalSequence() {
+        return journalSequence;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getParentIndex(int node) {
+        return nodes.getInt(recordOffset(node));
+    }
+
+    public String getName(int node) {
+        int nameIndex = nodes.getInt(recordOffset(node) + 4);
+        String name = decodedNames[nameIndex];
+        if (name == null) {
+            int start = stringOffsets.getInt(4 * nameIndex);
+            int end = stringOffsets.getInt(4 * (nameIndex + 1));
+            byte[] bytes = new byte[end - start];
+            stringBytes.get(start, bytes);
+            name = new String(bytes, StandardCharsets.UTF_8);
+            decodedNames[nameIndex] = name;
+        }
+        return name;
+    }
+
+    public boolean isDirectory(int node) {
+        return nodes.get(recordOffset(node) + 8) == KIND_DIRECTORY;
+    }
+
+    public long getDateCreated(int node) {
+        return nodes.getLong(recordOffset(node) + 9);
+    }
+
+    public long getSize(int node) {
+        return sizes == null ? 0 : sizes.getLong(8 * node);
+    }
+
+    // Build the Directory/File tree in one pass and return its root
+    public Directory materialize() throws IOException {
+        if (!isDirectory(0) || getParentIndex(0) != -1) {
+            throw new IOException("Snapshot root is not a directory.");
+        }
+        // Only directories can be parents, so that is all we need to remember by index
+        Directory[] directories = new Directory[nodeCount];
+        Directory root = new Directory(getName(0), null, new Timestamp(getDateCreated(0)));
+        directories[0] = root;
+
+        for (int node = 1; node < nodeCount; node++) {
+            int parentIndex = getParentIndex(node);
+            if (parentIndex < 0 || parentIndex >= node || directories[parentIndex] == null) {
+                throw new IOException("Corrupt parent index for node " + node + ".");
+            }
+            Directory parent = directories[parentIndex];
+            Timestamp dateCreated = new Timestamp(getDateCreated(node));
+            if (isDirectory(node)) {
+                Directory dir = new Directory(getName(node), parent, dateCreated);
+                parent.putIfAbsentUnpublished(dir);
+                directories[node] = dir;
+            } else {
+                File file = new File(getName(node), parent, dateCreated);
+                long size = getSize(node);
+                if (size < 0) {
+                    throw new IOException("Corrupt size for node " + node + ".");
+                }
+                if (size != 0) {
+                    file.setSize(size); // Not linked yet, recomputeStats adds it up below
+                }
+                parent.putIfAbsentUnpublished(file);
+            }
+        }
+        Directory.recomputeStats(root); // One pass instead of a parent-chain walk per node
+        return root;
+    }
+
+    // Write the tree under fs.getRoot() to the given file
+    public static void save(FileSystem fs, Path path) throws IOException {
+        save(fs, path, 0);
+    }
+
+    // Write the tree and record that it already contains journal records up to journalSequence
+    public static void save(FileSystem fs, Path path, long journalSequence) throws IOException {
+        // Breadth-first listing so that every parent index is smaller than its children's
+        List<FileSystemElement> order = new ArrayList<>();
+        int[] parents = new int[1024];
+        order.add(fs.getRoot());
+        parents[0] = -1;
+        for (int i = 0; i < order.size(); i++) {
+            FileSystemElement element = order.get(i);
+            if (element instanceof Directory) {
+                for (FileSystemElement child : ((Directory) element).getChildren()) {
+                    if (order.size() == parents.length) {
+                        parents = Arrays.copyOf(parents, parents.length * 2);
+                    }
+                    parents[order.size()] = i;
+                    order.add(child);
+                }
+            }
+        }
+        if ((long) NODE_RECORD_SIZE * order.size() > Integer.MAX_VALUE) {
+            throw new IOException("Too many nodes for one snapshot.");
+        }
+
+        // String table: each distinct name is stored once
+        HashMap<String, Integer> nameIds = new HashMap<>();
+        List<byte[]> names = new ArrayList<>();
+        int[] nameIndexes = new int[order.size()];
+        long stringBytesLength = 0;
+        for (int i = 0; i < order.size(); i++) {
+            String name = order.get(i).getName();
+            Integer id = nameIds.get(name);
+            if (id == null) {
+                id = names.size();
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                names.add(bytes);
+                nameIds.put(name, id);
+                stringBytesLength += bytes.length;
+            }
+            nameIndexes[i] = id;
+        }
+        if (stringBytesLength > Integer.MAX_VALUE) {
+            throw new IOException("Too many distinct names for one snapshot.");
+        }
+
+        // Write to a temporary file first so a crash never leaves a half-written snapshot
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(names.size());
+            out.writeInt(order.size());
+            out.writeLong(stringBytesLength);
+            out.writeLong(journalSequence);
+
+            int offset = 0;
+            out.writeInt(offset);
+            for (byte[] bytes : names) {
+                offset += bytes.length;
+                out.writeInt(offset);
+            }
+            for (byte[] bytes : names) {
+                out.write(bytes);
+            }
+
+            for (int i = 0; i < order.size(); i++) {
+                FileSystemElement element = order.get(i);
+                out.writeInt(parents[i]);
+                out.writeInt(nameIndexes[i]);
+                out.writeByte(element instanceof Directory ? KIND_DIRECTORY : KIND_FILE);
+                out.writeLong(element.getDateCreated().getTime());
+            }
+            for (FileSystemElement element : order) {
+                out.writeLong(element instanceof File ? ((File) element).getSize() : 0);
+            }
+            out.flush();
+            channel.force(true); // The contents must be on disk before the rename can be
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // Make the rename itself durable, so callers may drop what the snapshot now holds
+        try (FileChannel directory = FileChannel.open(path.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+
+    private static int recordOffset(int node) {
+        return NODE_RECORD_SIZE * node;
+    }
+}
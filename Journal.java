@@ -0,0 +1,577 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Write-ahead journal of FileSystem mutations.
+//
+// Mutations are appended to an in-memory batch and a background thread writes
+// and fsyncs whole batches at once (group commit), so callers do not pay for a
+// sync per operation. Call sync() or awaitDurable() when a mutation has to be on
+// disk before continuing.
+//
+// Each record is { int payloadLength, payload, int crc32(payload) } and every
+// payload starts with a long sequence number. A torn or corrupt record at the
+// end of the file (a crash mid-write) ends replay and is cut off before new
+// records are appended. Snapshots written by compact() remember the last
+// sequence they contain, so replay skips records that are already in them.
+// Records that no longer apply are skipped too and listed by getSkippedOnRecovery().
+public class Journal implements AutoCloseable {
+    private static final byte OP_CREATE_FILE = 1;
+    private static final byte OP_CREATE_DIRECTORY = 2;
+    private static final byte OP_DELETE = 3;
+    private static final byte OP_MOVE = 4;
+    private static final byte OP_SORT = 5;
+    private static final byte OP_COPY = 6;
+    private static final byte OP_SET_SIZE = 7;
+
+    // Batch size buckets for the metrics: 1, 2-3, 4-7, ... , 2^(BUCKETS-1) and above
+    private static final int BUCKETS = 17;
+
+    private final FileChannel channel;
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private final Thread flusher;
+
+    // Guarded by this
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream(1 << 16);
+    private int pendingRecords;
+    private long oldestPendingNanos; // When the first record of the pending batch was appended
+    private long appendedSeq;
+    private long durableSeq;
+    private boolean syncRequested;
+    private boolean closed;
+    private IOException failure;
+
+    // Metrics, guarded by this
+    private final long[] bucketBatches = new long[BUCKETS];
+    private final long[] bucketRecords = new long[BUCKETS];
+    private final long[] bucketNanos = new long[BUCKETS];
+
+    // Reused by the appending thread to encode one record, guarded by this
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream recordOut = new DataOutputStream(recordBytes);
+    private final CRC32 crc = new CRC32();
+
+    // Set by recover() before the journal is handed out
+    private List<String> skippedOnRecovery = Collections.emptyList();
+
+    // batchSize is the number of records that triggers a commit right away,
+    // maxDelayMillis is how long a smaller batch may wait before it is committed,
+    // new records are numbered after startSequence (or the last record in the file)
+    public Journal(Path path, int batchSize, long maxDelayMillis, long startSequence) throws IOException {
+        if (batchSize < 1 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Batch size must be positive and delay not negative.");
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.batchSize = batchSize;
+        this.maxDelayNanos = maxDelayMillis * 1_000_000L;
+
+        // Drop a torn tail left by a crash so new records follow the last good one
+        long[] lastSequence = { startSequence };
+        long validLength = scan(Channels.newInputStream(channel.position(0)), channel.size(),
+                (seq, payload) -> lastSequence[0] = Math.max(lastSequence[0], seq));
+        channel.truncate(validLength);
+        channel.position(validLength);
+        this.appendedSeq = lastSequence[0];
+        this.durableSeq = lastSequence[0];
+
+        this.flusher = new Thread(this::flushLoop, "journal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public Journal(Path path) throws IOException {
+        this(path, 1024, 5, 0);
+    }
+
+    public void logCreate(String parentPath, String name, boolean directory, long dateCreated) {
+        synchronized (this) {
+            try {
+                recordOut.writeLong(appendedSeq + 1);
+                recordOut.writeByte(directory ? OP_CREATE_DIRECTORY : OP_CREATE_FILE);
+                writeString(parentPath);
+                writeString(name);
+                recordOut.writeLong(dateCreated);
+                finishRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // Writing to memory does not fail
+            } finally {
+                recordBytes.reset(); // Never leave part of a record for the next one
+            }
+        }
+    }
+
+    public void logDelete(String path) {
+        synchronized (this) {
+            try {
+                recordOut.writeLong(appendedSeq + 1);
+                recordOut.writeByte(OP_DELETE);
+                writeString(path);
+                finishRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                recordBytes.reset();
+            }
+        }
+    }
+
+    public void logMove(String path, String newParentPath) {
+        synchronized (this) {
+            try {
+                recordOut.writeLong(appendedSeq + 1);
+                recordOut.writeByte(OP_MOVE);
+                writeString(path);
+                writeString(newParentPath);
+                finishRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                recordBytes.reset();
+            }
+        }
+    }
+
+    public void logCopy(String path, String newParentPath, boolean copyOnWrite) {
+        synchronized (this) {
+            try {
+                recordOut.writeLong(appendedSeq + 1);
+                recordOut.writeByte(OP_COPY);
+                writeString(path);
+                writeString(newParentPath);
+                recordOut.writeBoolean(copyOnWrite);
+                finishRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                recordBytes.reset();
+            }
+        }
+    }
+
+    public void logSort(String path) {
+        synchronized (this) {
+            try {
+                recordOut.writeLong(appendedSeq + 1);
+                recordOut.writeByte(OP_SORT);
+                writeString(path);
+                finishRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                recordBytes.reset();
+            }
+        }
+    }
+
+    public void logSetSize(String path, long size) {
+        synchronized (this) {
+            try {
+                recordOut.writeLong(appendedSeq + 1);
+                recordOut.writeByte(OP_SET_SIZE);
+                writeString(path);
+                recordOut.writeLong(size);
+                finishRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                recordBytes.reset();
+            }
+        }
+    }
+
+    // Strings are an int byte length and UTF-8, so any name or path fits (writeUTF stops at 64 KB)
+    private void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        recordOut.writeInt(bytes.length);
+        recordOut.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Corrupt journal string length " + length + ".");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Frame the encoded record into the pending batch. Caller holds the lock and
+    // resets recordBytes afterwards.
+    private void finishRecord() {
+        checkOpen();
+        byte[] payload = recordBytes.toByteArray();
+        crc.reset();
+        crc.update(payload);
+        writeInt(pending, payload.length);
+        pending.write(payload, 0, payload.length);
+        writeInt(pending, (int) crc.getValue());
+        pendingRecords++;
+        appendedSeq++;
+        if (pendingRecords == 1) {
+            oldestPendingNanos = System.nanoTime();
+            notifyAll(); // Start the flusher's maxDelayMillis clock for this batch
+        } else if (pendingRecords >= batchSize) {
+            notifyAll(); // Full batch, wake the flusher now
+        }
+    }
+
+    // Sequence number of the last appended record
+    public synchronized long getAppendedSequence() {
+        return appendedSeq;
+    }
+
+    // Block until every record up to seq has been fsync'd
+    public synchronized void awaitDurable(long seq) throws IOException {
+        while (durableSeq < seq) {
+            if (failure != null) {
+                throw failure;
+            }
+            if (closed) {
+                throw new IOException("Journal is closed.");
+            }
+            syncRequested = true;
+            notifyAll();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the journal.", e);
+            }
+        }
+    }
+
+    // Block until everything appended so far is on disk
+    public void sync() throws IOException {
+        awaitDurable(getAppendedSequence());
+    }
+
+    private void flushLoop() {
+        while (true) {
+            ByteArrayOutputStream batch;
+            int records;
+            long seq;
+            synchronized (this) {
+                // Wait until the batch is full, its oldest record is maxDelayMillis old, or
+                // someone needs it durable
+                while (!closed && (pendingRecords == 0 || (pendingRecords < batchSize && !syncRequested
+                        && System.nanoTime() - oldestPendingNanos < maxDelayNanos))) {
+                    try {
+                        if (pendingRecords == 0) {
+                            wait(); // finishRecord wakes this for the first record of a batch
+                        } else {
+                            long remaining = oldestPendingNanos + maxDelayNanos - System.nanoTime();
+                            wait(Math.max(1, remaining / 1_000_000L), (int) (Math.max(0, remaining) % 1_000_000L));
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pendingRecords == 0) {
+                    return; // Closed and nothing left to write
+                }
+                batch = pending;
+                records = pendingRecords;
+                seq = appendedSeq;
+                pending = new ByteArrayOutputStream(Math.max(1 << 16, batch.size()));
+                pendingRecords = 0;
+                syncRequested = false;
+            }
+
+            // Write and fsync outside the lock so appends keep flowing meanwhile
+            long start = System.nanoTime();
+            IOException error = null;
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            long elapsed = System.nanoTime() - start;
+
+            synchronized (this) {
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durableSeq = seq;
+                    int bucket = Math.min(BUCKETS - 1, 31 - Integer.numberOfLeadingZeros(records));
+                    bucketBatches[bucket]++;
+                    bucketRecords[bucket] += records;
+                    bucketNanos[bucket] += elapsed;
+                }
+                notifyAll();
+                if (error != null) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (failure != null) {
+            throw new UncheckedIOException("Journal write failed.", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("Journal is closed.");
+        }
+    }
+
+    // Commit throughput grouped by batch size
+    public synchronized String formatMetrics() {
+        StringBuilder out = new StringBuilder("Journal group commits by batch size:\n");
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            if (bucketBatches[bucket] == 0) {
+                continue;
+            }
+            long low = 1L << bucket;
+            String range = bucket == 0 ? "1" : bucket == BUCKETS - 1 ? low + "+" : low + "-" + ((low << 1) - 1);
+            double seconds = bucketNanos[bucket] / 1e9;
+            out.append(String.format("  %-12s %8d batches %10d records  avg commit %8.3f ms  %12.0f records/s%n",
+                    range, bucketBatches[bucket], bucketRecords[bucket],
+                    bucketNanos[bucket] / 1e6 / bucketBatches[bucket],
+                    seconds > 0 ? bucketRecords[bucket] / seconds : 0.0));
+        }
+        return out.toString();
+    }
+
+    // Flush everything, then empty the journal. Used after its contents went into a snapshot.
+    public void truncate() throws IOException {
+        sync();
+        synchronized (this) {
+            channel.truncate(0);
+            channel.position(0);
+        }
+    }
+
+    // Save fs as a snapshot and empty the journal. Mutations must not run concurrently.
+    // save() returns only once the snapshot and its rename are on disk, so the journal
+    // is never emptied early. A crash between the two steps is harmless: replay skips
+    // what the snapshot holds.
+    public void compact(FileSystem fs, Path snapshotPath) throws IOException {
+        sync();
+        FileSystemSnapshot.save(fs, snapshotPath, getAppendedSequence());
+        truncate();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+        }
+        try {
+            sync();
+        } finally {
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+    }
+
+    // Load the snapshot (if any), replay the journal on top of it and attach the
+    // journal to the returned FileSystem so new mutations are appended to it
+    public static FileSystem recover(Path snapshotPath, Path journalPath, int batchSize, long maxDelayMillis)
+            throws IOException {
+        FileSystem fs;
+        long snapshotSequence = 0;
+        if (Files.exists(snapshotPath)) {
+            FileSystemSnapshot snapshot = FileSystemSnapshot.open(snapshotPath);
+            fs = new FileSystem(snapshot.materialize());
+            snapshotSequence = snapshot.getJournalSequence();
+        } else {
+            fs = new FileSystem();
+        }
+        List<String> skipped = new ArrayList<>();
+        Journal journal;
+        try {
+            if (Files.exists(journalPath)) {
+                replay(journalPath, fs, snapshotSequence, skipped);
+            }
+            journal = new Journal(journalPath, batchSize, maxDelayMillis, snapshotSequence);
+        } catch (IOException | RuntimeException e) {
+            fs.close(); // Nobody else can, the caller never gets it
+            throw e;
+        }
+        journal.skippedOnRecovery = Collections.unmodifiableList(skipped);
+        fs.setJournal(journal);
+        return fs;
+    }
+
+    // Records that recover() could not apply, one message each
+    public List<String> getSkippedOnRecovery() {
+        return skippedOnRecovery;
+    }
+
+    public static long replay(Path journalPath, FileSystem fs, long afterSequence) throws IOException {
+        return replay(journalPath, fs, afterSequence, new ArrayList<>());
+    }
+
+    // Apply every complete record after afterSequence to fs. Returns the number applied.
+    // A record that no longer applies (say a create journaled just after a concurrent
+    // delete of an ancestor) is skipped and described in skipped; the rest still replay.
+    public static long replay(Path journalPath, FileSystem fs, long afterSequence, List<String> skipped)
+            throws IOException {
+        Journal previous = fs.getJournal();
+        fs.setJournal(null); // Do not journal the replayed mutations again
+        try (InputStream in = Files.newInputStream(journalPath)) {
+            long[] applied = new long[1];
+            scan(in, Files.size(journalPath), (seq, payload) -> {
+                if (seq > afterSequence) {
+                    try {
+                        apply(fs, payload);
+                        applied[0]++;
+                    } catch (IOException | IllegalArgumentException e) {
+                        skipped.add("record " + seq + ": " + e.getMessage());
+                    }
+                }
+            });
+            return applied[0];
+        } finally {
+            fs.setJournal(previous);
+        }
+    }
+
+    private interface RecordHandler {
+        void handle(long seq, DataInputStream payload) throws IOException;
+    }
+
+    // Read records until the end or the first incomplete/corrupt one; returns the valid length
+    private static long scan(InputStream raw, long fileLength, RecordHandler handler) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(raw, 1 << 16));
+        CRC32 check = new CRC32();
+        long validLength = 0;
+        while (true) {
+            byte[] payload;
+            try {
+                int length = in.readInt();
+                if (length < 9 || length > fileLength - validLength - 8) {
+                    break; // Garbage length or longer than the file, treat as a torn tail
+                }
+                payload = new byte[length];
+                in.readFully(payload);
+                int expected = in.readInt();
+                check.reset();
+                check.update(payload);
+                if ((int) check.getValue() != expected) {
+                    break;
+                }
+            } catch (EOFException e) {
+                break;
+            }
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+            handler.handle(record.readLong(), record);
+            validLength += 4 + payload.length + 4;
+        }
+        return validLength;
+    }
+
+    private static void apply(FileSystem fs, DataInputStream in) throws IOException {
+        byte op = in.readByte();
+        switch (op) {
+            case OP_CREATE_FILE:
+            case OP_CREATE_DIRECTORY: {
+                String parentPath = readString(in);
+                String name = readString(in);
+                Timestamp dateCreated = new Timestamp(in.readLong());
+                Directory parent = fs.changeDirectory(parentPath);
+                if (parent == null) {
+                    throw new IOException("Journal refers to a missing directory: " + parentPath);
+                }
+                if (op == OP_CREATE_FILE) {
+                    fs.createFile(parent, name, dateCreated);
+                } else {
+                    fs.createDirectory(parent, name, dateCreated);
+                }
+                break;
+            }
+            case OP_DELETE:
+                fs.deleteElement(resolve(fs, readString(in)));
+                break;
+            case OP_MOVE: {
+                FileSystemElement element = resolve(fs, readString(in));
+                String newParentPath = readString(in);
+                Directory newParent = fs.changeDirectory(newParentPath);
+                if (newParent == null) {
+                    throw new IOException("Journal refers to a missing directory: " + newParentPath);
+                }
+                fs.moveElement(element, newParent);
+                break;
+            }
+            case OP_COPY: {
+                FileSystemElement element = resolve(fs, readString(in));
+                String newParentPath = readString(in);
+                boolean copyOnWrite = in.readBoolean();
+                Directory newParent = fs.changeDirectory(newParentPath);
+                if (newParent == null) {
+                    throw new IOException("Journal refers to a missing directory: " + newParentPath);
+                }
+                fs.copyElement(element, newParent, copyOnWrite);
+                break;
+            }
+            case OP_SORT: {
+                FileSystemElement dir = resolve(fs, readString(in));
+                if (!(dir instanceof Directory)) {
+                    throw new IOException("Journal sorts something that is not a directory.");
+                }
+                fs.sortContentsByDate((Directory) dir);
+                break;
+            }
+            case OP_SET_SIZE: {
+                FileSystemElement file = resolve(fs, readString(in));
+                if (!(file instanceof File)) {
+                    throw new IOException("Journal sets the size of something that is not a file.");
+                }
+                fs.setFileSize((File) file, in.readLong());
+                break;
+            }
+            default:
+                throw new IOException("Unknown journal operation " + op + ".");
+        }
+    }
+
+    private static FileSystemElement resolve(FileSystem fs, String path) throws IOException {
+        FileSystemElement element = fs.resolvePath(path);
+        if (element == null) {
+            throw new IOException("Journal refers to a missing element: " + path);
+        }
+        return element;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+}
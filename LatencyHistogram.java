@@ -0,0 +1,106 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free latency histogram in the style of HdrHistogram: buckets are spaced
+// log-linearly, so every value from 1 ns up to Long.MAX_VALUE lands in a bucket whose
+// width is at most 1/32 of its lower bound (about 3% error), in a fixed 2K-slot array.
+// record() is a single atomic increment (plus a compare-and-set on a new maximum)
+// and never allocates; count and mean are derived from the buckets when read.
+public class LatencyHistogram {
+    private static final int SUB_BITS = 6;                  // 64 slots per power of two ...
+    private static final int HALF = 1 << (SUB_BITS - 1);    // ... of which the upper half is used above 64
+    private static final int SLOTS = (64 - SUB_BITS + 1) * HALF + HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(slotOf(value));
+        long seen = max.get();
+        while (value > seen && !max.compareAndSet(seen, value)) {
+            seen = max.get();
+        }
+    }
+
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    // Mean of the bucket midpoints, within the same ~3% as the buckets themselves
+    public double getMean() {
+        long n = 0;
+        double sum = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            long c = counts.get(i);
+            if (c != 0) {
+                n += c;
+                sum += c * ((lowestValueIn(i) + highestValueIn(i)) / 2.0);
+            }
+        }
+        return n == 0 ? 0 : sum / n;
+    }
+
+    // Upper bound of the bucket holding the given percentile (0-100), 0 if empty.
+    // Reads the buckets without stopping writers, so it is a close approximation
+    // while recording continues.
+    public long getPercentile(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < SLOTS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < SLOTS; i++) {
+            counts.set(i, 0);
+        }
+        max.set(0);
+    }
+
+    // Values below 2 * HALF map to themselves; above that, each power of two is split
+    // into HALF equal slots
+    private static int slotOf(long value) {
+        if (value < 2 * HALF) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    private static long lowestValueIn(int slot) {
+        if (slot < 2 * HALF) {
+            return slot;
+        }
+        int shift = slot / HALF - 1;
+        return (slot - (long) shift * HALF) << shift;
+    }
+
+    private static long highestValueIn(int slot) {
+        if (slot < 2 * HALF) {
+            return slot;
+        }
+        int shift = slot / HALF - 1;
+        long sub = slot - (long) shift * HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -1,3 +1,16 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.Scanner;
 
 public class Main {
@@ -5,9 +18,77 @@ public class Main {
     private static Scanner scanner = new Scanner(System.in);
     @SuppressWarnings("unused")
     private static Directory currentDirectory;
+    private static Path snapshotPath;
+    private static PrintStream status = System.out; // Snapshot messages; stderr in batch mode
+    private static final int PATTERN_RESULT_LIMIT = 100; // Matches shown for a "*"/"?" search
+    private static final int COMPLETION_LIMIT = 10;
+    private static final int LIST_PAGE_SIZE = 50; // Entries shown before asking for more
+    private static final int DEFAULT_PORT = 7070;
+    private static final long DEFAULT_HEAP_BUDGET_MB = 256;
 
     public static void main(String[] args) {
+        // Optional argument: snapshot file to load at startup and save on exit.
+        // Mutations in between are journaled next to it and replayed after a crash.
+        // "--batch [script]" runs a command script (stdin if omitted or "-") instead of
+        // the menu; "--threads N" pipelines independent commands across N workers.
+        // "--serve [port]" shares the file system over TCP on the loopback interface.
+        // "--spill FILE" keeps the tree within "--heap-budget MB" by moving cold
+        // subtrees to FILE. "--snapshot-reads" serves tree dumps, listings and searches
+        // from a point-in-time copy of the tree, so they never wait for writers.
+        boolean batch = false;
+        int servePort = -1;
+        String script = null;
+        int threads = 1;
+        Path spillPath = null;
+        long heapBudgetMb = DEFAULT_HEAP_BUDGET_MB;
+        boolean snapshotReads = false;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--batch")) {
+                batch = true;
+                if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                    script = args[++i];
+                }
+            } else if (args[i].equals("--serve")) {
+                servePort = DEFAULT_PORT;
+                if (i + 1 < args.length && args[i + 1].matches("\\d+")) {
+                    servePort = Integer.parseInt(args[++i]);
+                }
+            } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--spill") && i + 1 < args.length) {
+                spillPath = Paths.get(args[++i]);
+            } else if (args[i].equals("--heap-budget") && i + 1 < args.length) {
+                heapBudgetMb = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--snapshot-reads")) {
+                snapshotReads = true;
+            } else {
+                snapshotPath = Paths.get(args[i]);
+            }
+        }
+        if (batch || servePort >= 0) {
+            status = System.err; // Keep stdout for the command results
+        }
+        if (snapshotPath != null && !loadSnapshot()) {
+            System.exit(1); // Saving on exit would replace the snapshot with an empty tree
+        }
+        if (spillPath != null) {
+            enableTiering(spillPath, heapBudgetMb);
+        }
+        if (snapshotReads) {
+            enableSnapshotReads();
+        }
+        if (batch) {
+            runBatch(script, threads);
+            saveSnapshot();
+            closeFileSystem();
+            return;
+        }
+        if (servePort >= 0) {
+            runServer(servePort);
+            return;
+        }
         currentDirectory = fs.getRoot();
+        fs.getMetrics().register("main"); // Visible in jconsole/VisualVM under "filesystem"
         int option;
         do {
             System.out.println("===== File System Management Menu =====");
@@ -21,6 +102,8 @@ public class Main {
             System.out.println("7. Print directory tree");
             System.out.println("8. Sort contents by date created");
             System.out.println("9. Exit");
+            System.out.println("10. Show operation metrics");
+            System.out.println("11. Copy file/directory");
             System.out.print("Please select an option: ");
 
             option = scanner.nextInt();
@@ -60,14 +143,139 @@ public class Main {
                     handleSortContentsByDate();
                     break;
                 case 9:
+                    saveSnapshot();
+                    closeFileSystem();
                     System.out.println("Exiting...");
                     break;
+                case 10:
+                    System.out.print(fs.getMetrics().dump());
+                    if (fs.getTiering() != null) {
+                        System.out.print(fs.getTiering().dump());
+                    }
+                    break;
+                case 11:
+                    handleCopyFileOrDirectory();
+                    break;
                 default:
                     System.out.println("Invalid option, please try again.");
             }
         } while (option != 9);
     }
 
+    private static void enableTiering(Path spillPath, long heapBudgetMb) {
+        try {
+            fs.enableTiering(spillPath, heapBudgetMb << 20);
+            spillPath.toFile().deleteOnExit(); // Meaningless without the stubs in memory
+            status.println("Spilling cold subtrees to " + spillPath + " above " + heapBudgetMb + " MB.");
+        } catch (IOException | IllegalArgumentException e) {
+            status.println("Tiered storage is off: " + e.getMessage());
+        }
+    }
+
+    private static void enableSnapshotReads() {
+        try {
+            fs.enableSnapshotReads();
+        } catch (IllegalStateException e) {
+            status.println("Snapshot reads are off: " + e.getMessage());
+        }
+    }
+
+    private static void runBatch(String script, int threads) {
+        BatchMode batch = new BatchMode(fs, threads);
+        long start = System.nanoTime();
+        try (BufferedReader in = script == null || script.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 1 << 16)
+                : Files.newBufferedReader(Paths.get(script), StandardCharsets.UTF_8)) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+            batch.run(in, out);
+        } catch (IOException e) {
+            System.err.println("Error: batch failed: " + e.getMessage());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("%d commands (%d failed) in %.3f s, %.0f commands/s%n", batch.getCommandCount(),
+                batch.getErrorCount(), seconds, batch.getCommandCount() / Math.max(seconds, 1e-9));
+    }
+
+    // Serve until the process is interrupted; the snapshot is saved on the way out
+    private static void runServer(int port) {
+        FileSystemServer server;
+        try {
+            server = new FileSystemServer(fs, port).start();
+        } catch (IOException e) {
+            System.err.println("Error: could not listen on port " + port + ": " + e.getMessage());
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.close();
+            } catch (IOException e) {
+                // Exiting anyway
+            }
+            saveSnapshot();
+            closeFileSystem();
+        }));
+        System.err.println("Listening on " + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                + server.getPort() + (server.usesVirtualThreads() ? " (virtual threads)" : ""));
+        try {
+            server.awaitTermination();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Path journalPath() {
+        return snapshotPath.resolveSibling(snapshotPath.getFileName() + ".journal");
+    }
+
+    // Returns false if the snapshot or journal could not be read; the caller must not
+    // go on, since any later save would overwrite them with a tree that failed to load
+    private static boolean loadSnapshot() {
+        boolean exists = Files.exists(snapshotPath);
+        try {
+            fs = Journal.recover(snapshotPath, journalPath(), 1024, 5);
+        } catch (IOException e) {
+            status.println("Error: could not load snapshot: " + e.getMessage());
+            return false;
+        }
+        List<String> skipped = fs.getJournal().getSkippedOnRecovery();
+        if (!skipped.isEmpty()) {
+            status.println("Warning: skipped " + skipped.size() + " journal record(s) that no longer apply, first "
+                    + skipped.get(0));
+        }
+        if (exists) {
+            status.println("Loaded snapshot from " + snapshotPath);
+        } else {
+            status.println("No snapshot at " + snapshotPath + ", starting with an empty file system.");
+        }
+        return true;
+    }
+
+    private static void saveSnapshot() {
+        if (snapshotPath == null) {
+            return; // Started without a snapshot file
+        }
+        try {
+            Journal journal = fs.getJournal();
+            if (journal != null) {
+                journal.compact(fs, snapshotPath); // Fold the journal into the new snapshot
+            } else {
+                FileSystemSnapshot.save(fs, snapshotPath);
+            }
+            status.println("Saved snapshot to " + snapshotPath);
+        } catch (IOException e) {
+            status.println("Error: could not save snapshot: " + e.getMessage());
+        }
+    }
+
+    // Stop the background threads and close the journal (after saveSnapshot)
+    private static void closeFileSystem() {
+        try {
+            fs.close();
+        } catch (IOException e) {
+            status.println("Error: could not close the file system: " + e.getMessage());
+        }
+    }
+
     private static void handleChangeDirectory() {
         System.out.println("Current directory: " + fs.getCurrentPath(fs.getCurrentDirectory()));
         System.out.print("Enter the directory path to change to: ");
@@ -78,16 +286,31 @@ public class Main {
             System.out.println("Directory changed to: " + fs.getCurrentPath(newDir));
         } else {
             System.out.println("Directory not found.");
+            List<String> suggestions = fs.completePath(path, COMPLETION_LIMIT);
+            if (!suggestions.isEmpty()) {
+                System.out.println("Did you mean: " + String.join("  ", suggestions));
+            }
         }
     }
 
     private static void handleListDirectoryContents() {
         System.out.println("Current directory: " + fs.getCurrentPath(fs.getCurrentDirectory()));
         System.out.println("Contents of " + fs.getCurrentPath(fs.getCurrentDirectory()) + ":");
-        for (FileSystemElement fse : fs.getCurrentDirectory().getChildren()) {
-            System.out
-                    .println(fse.getName() + (fse instanceof Directory ? "/" : "") );
-        }
+        ChildList.Cursor cursor = null;
+        do {
+            ChildList.Page page = fs.listDirectoryPage(fs.getCurrentDirectory(), cursor, LIST_PAGE_SIZE);
+            for (FileSystemElement fse : page.getEntries()) {
+                System.out
+                        .println(fse.getName() + (fse instanceof Directory ? "/" : "") );
+            }
+            cursor = page.getNext();
+            if (cursor != null) {
+                System.out.print("-- Enter for more, q to stop -- ");
+                if (scanner.nextLine().trim().equalsIgnoreCase("q")) {
+                    break;
+                }
+            }
+        } while (cursor != null);
     }
 
     private static void handleCreateFileOrDirectory() {
@@ -133,13 +356,36 @@ public class Main {
         }
     }
 
+    private static void handleCopyFileOrDirectory() {
+        System.out.println("Current directory: " + fs.getCurrentPath(fs.getCurrentDirectory()));
+        System.out.print("Enter the name of the file/directory to copy: ");
+        String name = scanner.nextLine();
+        System.out.print("Enter the directory path to copy to: ");
+        String newPath = scanner.nextLine();
+        System.out.print("Copy-on-write (share contents until changed)? (y/n): ");
+        boolean copyOnWrite = scanner.nextLine().trim().equalsIgnoreCase("y");
+        try {
+            fs.copyFileOrDirectory(name, newPath, copyOnWrite);
+            System.out.println(name + " copied to " + newPath);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
+    }
+
     private static void handleSearchFileOrDirectory() {
-        System.out.print("Enter the search query: ");
+        System.out.print("Enter the search query (name, or pattern with * and ?): ");
         String query = scanner.nextLine();
         System.out.println("Searching from root...");
-        String result = fs.searchFileOrDirectory(query);
-        if (!result.isEmpty()) {
-            System.out.println("Found: " + result);
+        boolean pattern = query.indexOf('*') >= 0 || query.indexOf('?') >= 0;
+        List<String> results = pattern ? fs.searchByGlob(query, PATTERN_RESULT_LIMIT)
+                : fs.searchAllFilesOrDirectories(query);
+        if (!results.isEmpty()) {
+            for (String result : results) {
+                System.out.println("Found: " + result);
+            }
+            if (pattern && results.size() == PATTERN_RESULT_LIMIT) {
+                System.out.println("(first " + PATTERN_RESULT_LIMIT + " matches shown)");
+            }
         } else {
             System.out.println("File or directory not found.");
         }
@@ -0,0 +1,100 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Deduplicated store of names as UTF-8 bytes in one growing byte array. Each
+// distinct name gets an int id; nodes keep the id instead of a String, so a name
+// shared by millions of nodes ("index.html", "a.log") is stored exactly once.
+public class NameArena {
+    private byte[] bytes = new byte[1 << 16];
+    private int used;
+    private int[] offsets = new int[1 << 10]; // Name i is bytes[offsets[i], offsets[i + 1])
+    private int count;
+    private int[] table = new int[1 << 10];    // Open addressing, name id + 1 (0 = empty)
+
+    public NameArena() {
+        offsets[0] = 0;
+    }
+
+    // Id of the name, adding it if it is new
+    public int intern(String name) {
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        int slot = findSlot(encoded);
+        if (table[slot] != 0) {
+            return table[slot] - 1;
+        }
+        if (used + encoded.length > bytes.length) {
+            long grown = Math.max((long) bytes.length * 2, (long) used + encoded.length);
+            if (grown > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("Name arena is full.");
+            }
+            bytes = Arrays.copyOf(bytes, (int) grown);
+        }
+        System.arraycopy(encoded, 0, bytes, used, encoded.length);
+        used += encoded.length;
+        if (count + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        int id = count++;
+        offsets[count] = used;
+        table[slot] = id + 1;
+        if (count * 2 > table.length) {
+            rehash(); // Keep the load factor at or below one half
+        }
+        return id;
+    }
+
+    // Id of the name, or -1 if no node has ever used it
+    public int find(String name) {
+        int slot = findSlot(name.getBytes(StandardCharsets.UTF_8));
+        return table[slot] - 1;
+    }
+
+    public String get(int id) {
+        return new String(bytes, offsets[id], offsets[id + 1] - offsets[id], StandardCharsets.UTF_8);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // Bytes used by names, offsets and the lookup table
+    public long memoryBytes() {
+        return (long) bytes.length + 4L * offsets.length + 4L * table.length;
+    }
+
+    private int findSlot(byte[] encoded) {
+        int mask = table.length - 1;
+        int slot = hash(encoded, 0, encoded.length) & mask;
+        while (table[slot] != 0 && !equalsName(table[slot] - 1, encoded)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean equalsName(int id, byte[] encoded) {
+        int start = offsets[id];
+        return Arrays.equals(bytes, start, offsets[id + 1], encoded, 0, encoded.length);
+    }
+
+    private void rehash() {
+        int[] newTable = new int[table.length * 2];
+        int mask = newTable.length - 1;
+        for (int id = 0; id < count; id++) {
+            int slot = hash(bytes, offsets[id], offsets[id + 1]) & mask;
+            while (newTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newTable[slot] = id + 1;
+        }
+        table = newTable;
+    }
+
+    private static int hash(byte[] data, int from, int to) {
+        int h = 0x811c9dc5; // FNV-1a
+        for (int i = from; i < to; i++) {
+            h ^= data[i];
+            h *= 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,240 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+// Global index from element name to every element carrying that name.
+// FileSystem keeps it up to date on create, move and delete so name
+// searches do not have to walk the whole tree. Safe for concurrent use:
+// each bucket is only changed inside ConcurrentHashMap.compute and read
+// while holding the bucket's monitor.
+public class NameIndex {
+    private ConcurrentHashMap<String, Set<FileSystemElement>> byName;
+    private LongAdder size = new LongAdder();
+    // Distinct names in order, and the same names reversed, for prefix and suffix
+    // range scans. Built by the first pattern query, then kept up to date as names
+    // come and go. They may briefly hold a name whose bucket is gone; queries skip it.
+    private volatile ConcurrentSkipListSet<String> sortedNames;
+    private volatile ConcurrentSkipListSet<String> reversedNames;
+
+    public NameIndex() {
+        byName = new ConcurrentHashMap<>();
+    }
+
+    // Sized for about expectedNames distinct names, so bulk loads do not rehash
+    public NameIndex(int expectedNames) {
+        byName = new ConcurrentHashMap<>(expectedNames);
+    }
+
+    public void add(FileSystemElement element) {
+        byName.compute(element.getName(), (name, matches) -> {
+            if (matches == null) {
+                matches = new LinkedHashSet<>(2); // Most names are unique, keep the bucket small
+                addSortedName(name);
+            }
+            synchronized (matches) {
+                if (matches.add(element)) {
+                    size.increment();
+                }
+            }
+            return matches;
+        });
+    }
+
+    public void remove(FileSystemElement element) {
+        byName.computeIfPresent(element.getName(), (name, matches) -> {
+            synchronized (matches) {
+                if (matches.remove(element)) {
+                    size.decrement();
+                }
+                if (matches.isEmpty()) {
+                    removeSortedName(name);
+                    return null; // Drop empty buckets
+                }
+                return matches;
+            }
+        });
+    }
+
+    // First indexed element with the given name, or null if there is none
+    public FileSystemElement findFirst(String name) {
+        Set<FileSystemElement> matches = byName.get(name);
+        if (matches == null) {
+            return null;
+        }
+        synchronized (matches) {
+            return matches.isEmpty() ? null : matches.iterator().next();
+        }
+    }
+
+    // First indexed element with the given name that passes the filter, or null
+    public FileSystemElement findFirst(String name, Predicate<FileSystemElement> filter) {
+        Set<FileSystemElement> matches = byName.get(name);
+        if (matches == null) {
+            return null;
+        }
+        synchronized (matches) {
+            for (FileSystemElement element : matches) {
+                if (filter.test(element)) {
+                    return element;
+                }
+            }
+            return null;
+        }
+    }
+
+    // Every indexed element with the given name, in the order they were indexed
+    public List<FileSystemElement> findAll(String name) {
+        Set<FileSystemElement> matches = byName.get(name);
+        if (matches == null) {
+            return Collections.emptyList();
+        }
+        synchronized (matches) {
+            return new ArrayList<>(matches);
+        }
+    }
+
+    // Up to limit elements whose name starts with prefix and that pass the filter,
+    // in name order. Visits only the names in the prefix range.
+    public List<FileSystemElement> findByPrefix(String prefix, Predicate<FileSystemElement> filter, int limit) {
+        return collect(sortedNames().tailSet(prefix), prefix, false, null, filter, limit);
+    }
+
+    // Up to limit elements whose name ends with suffix, ordered by reversed name
+    public List<FileSystemElement> findBySuffix(String suffix, Predicate<FileSystemElement> filter, int limit) {
+        String reversed = reverse(suffix);
+        return collect(reversedNames().tailSet(reversed), reversed, true, null, filter, limit);
+    }
+
+    // Up to limit elements whose whole name matches a shell style pattern ('*' any run
+    // of characters, '?' one character). The literal text before the first wildcard, or
+    // failing that after the last one, narrows the scan to a prefix or suffix range.
+    public List<FileSystemElement> findByGlob(String glob, Predicate<FileSystemElement> filter, int limit) {
+        Pattern pattern = TreeSearch.globPattern(glob);
+        int first = firstWildcard(glob);
+        if (first < 0) {
+            List<FileSystemElement> exact = new ArrayList<>();
+            for (FileSystemElement element : findAll(glob)) {
+                if (exact.size() < limit && filter.test(element)) {
+                    exact.add(element);
+                }
+            }
+            return exact;
+        }
+        if (first > 0) {
+            String prefix = glob.substring(0, first);
+            return collect(sortedNames().tailSet(prefix), prefix, false, pattern, filter, limit);
+        }
+        int last = Math.max(glob.lastIndexOf('*'), glob.lastIndexOf('?'));
+        if (last < glob.length() - 1) {
+            String reversed = reverse(glob.substring(last + 1));
+            return collect(reversedNames().tailSet(reversed), reversed, true, pattern, filter, limit);
+        }
+        return collect(sortedNames(), "", false, pattern, filter, limit); // No literal to narrow by
+    }
+
+    public int size() {
+        return size.intValue();
+    }
+
+    // Walk names from the start of a range while they start with bound, testing each
+    // name against the pattern (if any) and each of its elements against the filter
+    private List<FileSystemElement> collect(Iterable<String> names, String bound, boolean reversed, Pattern pattern,
+            Predicate<FileSystemElement> filter, int limit) {
+        List<FileSystemElement> found = new ArrayList<>();
+        for (String key : names) {
+            if (found.size() >= limit || !key.startsWith(bound)) {
+                break;
+            }
+            String name = reversed ? reverse(key) : key;
+            if (pattern != null && !pattern.matcher(name).matches()) {
+                continue;
+            }
+            Set<FileSystemElement> matches = byName.get(name);
+            if (matches == null) {
+                continue; // Name was removed after the range was read
+            }
+            synchronized (matches) {
+                for (FileSystemElement element : matches) {
+                    if (found.size() < limit && filter.test(element)) {
+                        found.add(element);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private ConcurrentSkipListSet<String> sortedNames() {
+        buildSortedNames();
+        return sortedNames;
+    }
+
+    private ConcurrentSkipListSet<String> reversedNames() {
+        buildSortedNames();
+        return reversedNames;
+    }
+
+    // Publish the sets first so concurrent adds go into them, then copy the names that
+    // were already indexed; a name removed in between may linger and is skipped later.
+    // The copy is sorted first, since ascending inserts into a skip list are about three
+    // times faster than inserts in hash order.
+    private synchronized void buildSortedNames() {
+        if (sortedNames != null) {
+            return;
+        }
+        ConcurrentSkipListSet<String> reversed = new ConcurrentSkipListSet<>();
+        reversedNames = reversed;
+        ConcurrentSkipListSet<String> sorted = new ConcurrentSkipListSet<>();
+        sortedNames = sorted;
+        String[] names = byName.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+        for (String name : names) {
+            sorted.add(name);
+        }
+        for (int i = 0; i < names.length; i++) {
+            names[i] = reverse(names[i]);
+        }
+        Arrays.sort(names);
+        for (String name : names) {
+            reversed.add(name);
+        }
+    }
+
+    private void addSortedName(String name) {
+        ConcurrentSkipListSet<String> sorted = sortedNames;
+        if (sorted != null) {
+            sorted.add(name);
+            reversedNames.add(reverse(name));
+        }
+    }
+
+    private void removeSortedName(String name) {
+        ConcurrentSkipListSet<String> sorted = sortedNames;
+        if (sorted != null) {
+            sorted.remove(name);
+            reversedNames.remove(reverse(name));
+        }
+    }
+
+    private static int firstWildcard(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String reverse(String s) {
+        return new StringBuilder(s).reverse().toString();
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Two-way cache between absolute directory paths and Directory nodes.
+//
+// Every entry is stamped with the epoch it was computed in. Anything that can
+// change existing paths (moving, deleting or evicting a directory) bumps the epoch
+// and stamps the changed directory with it (see invalidate). An entry is stale once
+// its directory or any ancestor carries a newer stamp than the entry, so a change
+// only outdates the paths below the changed directory; checking an entry walks its
+// parent chain. Stale entries are overwritten lazily. Creating elements never
+// changes an existing path, so it needs no invalidation.
+public class PathCache {
+    // A cached path for one directory, immutable so it can be published without locks
+    static final class Entry {
+        final Directory dir;
+        final String path;
+        final long epoch;
+
+        Entry(Directory dir, String path, long epoch) {
+            this.dir = dir;
+            this.path = path;
+            this.epoch = epoch;
+        }
+    }
+
+    private final AtomicLong epoch = new AtomicLong();
+    private final ConcurrentHashMap<String, Entry> byPath = new ConcurrentHashMap<>();
+    private final int maxEntries;
+
+    public PathCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    // Read this before computing a path and pass it to put/rememberPath, so a path
+    // computed while a move was running is never treated as current
+    public long currentEpoch() {
+        return epoch.get();
+    }
+
+    // Forget the cached paths of dir and of everything below it. Call once the change
+    // is visible, so that a path computed before it carries an older epoch. Changes to
+    // one directory never overlap (FileSystem serializes them), so stamps only grow.
+    public void invalidate(Directory dir) {
+        dir.setPathStamp(epoch.incrementAndGet());
+    }
+
+    // Newest stamp on dir and its ancestors
+    public static long newestStamp(Directory dir) {
+        long newest = 0;
+        for (Directory current = dir; current != null; current = current.getParent()) {
+            newest = Math.max(newest, current.getPathStamp());
+        }
+        return newest;
+    }
+
+    // Directory cached for this exact path string, or null
+    public Directory lookup(String path) {
+        Entry entry = byPath.get(path);
+        if (entry == null || entry.dir.isDeleted() || entry.epoch < newestStamp(entry.dir)) {
+            return null;
+        }
+        return entry.dir;
+    }
+
+    public void put(String path, Directory dir, long computedInEpoch) {
+        if (byPath.size() >= maxEntries) {
+            byPath.clear(); // Simple bound; hot paths are re-added on the next miss
+        }
+        byPath.put(path, new Entry(dir, path, computedInEpoch));
+    }
+
+    // Cached absolute path of dir, or null; newestStamp is that of dir and its
+    // ancestors, which the caller has already walked
+    public String pathOf(Directory dir, long newestStamp) {
+        Entry entry = dir.getCachedPath();
+        if (entry == null || entry.epoch < newestStamp) {
+            return null;
+        }
+        return entry.path;
+    }
+
+    public void rememberPath(Directory dir, String path, long computedInEpoch) {
+        dir.setCachedPath(new Entry(dir, path, computedInEpoch));
+    }
+}
@@ -0,0 +1,184 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// Immutable map from name to value, kept as a balanced (AVL) tree ordered by name.
+// put and remove copy only the O(log n) nodes on the path to the changed key and
+// share the rest with the previous version, so old versions stay valid and cheap.
+public final class PersistentSortedMap<V> implements Iterable<V> {
+    private static final PersistentSortedMap<?> EMPTY = new PersistentSortedMap<>(null);
+
+    private static final class Node<V> {
+        final String key;
+        final V value;
+        final Node<V> left;
+        final Node<V> right;
+        final int height;
+        final int size;
+
+        Node(String key, V value, Node<V> left, Node<V> right) {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = size(left) + size(right) + 1;
+        }
+    }
+
+    private final Node<V> root;
+
+    private PersistentSortedMap(Node<V> root) {
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> PersistentSortedMap<V> empty() {
+        return (PersistentSortedMap<V>) EMPTY;
+    }
+
+    public V get(String key) {
+        Node<V> node = root;
+        while (node != null) {
+            int cmp = key.compareTo(node.key);
+            if (cmp == 0) {
+                return node.value;
+            }
+            node = cmp < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    public int size() {
+        return size(root);
+    }
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    // New map with key mapped to value; this map is unchanged
+    public PersistentSortedMap<V> put(String key, V value) {
+        return new PersistentSortedMap<>(put(root, key, value));
+    }
+
+    // New map without key; returns this map if the key is absent
+    public PersistentSortedMap<V> remove(String key) {
+        if (get(key) == null) {
+            return this;
+        }
+        return new PersistentSortedMap<>(remove(root, key));
+    }
+
+    public List<V> values() {
+        List<V> values = new ArrayList<>(size());
+        for (V value : this) {
+            values.add(value);
+        }
+        return values;
+    }
+
+    // Values in name order, walked with an explicit stack
+    @Override
+    public Iterator<V> iterator() {
+        return new Iterator<V>() {
+            private final ArrayDeque<Node<V>> stack = new ArrayDeque<>();
+            {
+                pushLeft(root);
+            }
+
+            private void pushLeft(Node<V> node) {
+                while (node != null) {
+                    stack.push(node);
+                    node = node.left;
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !stack.isEmpty();
+            }
+
+            @Override
+            public V next() {
+                if (stack.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                Node<V> node = stack.pop();
+                pushLeft(node.right);
+                return node.value;
+            }
+        };
+    }
+
+    private static <V> Node<V> put(Node<V> node, String key, V value) {
+        if (node == null) {
+            return new Node<>(key, value, null, null);
+        }
+        int cmp = key.compareTo(node.key);
+        if (cmp == 0) {
+            return new Node<>(key, value, node.left, node.right);
+        }
+        if (cmp < 0) {
+            return balance(node.key, node.value, put(node.left, key, value), node.right);
+        }
+        return balance(node.key, node.value, node.left, put(node.right, key, value));
+    }
+
+    private static <V> Node<V> remove(Node<V> node, String key) {
+        int cmp = key.compareTo(node.key);
+        if (cmp < 0) {
+            return balance(node.key, node.value, remove(node.left, key), node.right);
+        }
+        if (cmp > 0) {
+            return balance(node.key, node.value, node.left, remove(node.right, key));
+        }
+        if (node.left == null) {
+            return node.right;
+        }
+        if (node.right == null) {
+            return node.left;
+        }
+        // Replace with the smallest key of the right subtree
+        Node<V> successor = node.right;
+        while (successor.left != null) {
+            successor = successor.left;
+        }
+        return balance(successor.key, successor.value, node.left, remove(node.right, successor.key));
+    }
+
+    private static <V> Node<V> balance(String key, V value, Node<V> left, Node<V> right) {
+        int diff = height(left) - height(right);
+        if (diff > 1) {
+            if (height(left.left) < height(left.right)) {
+                left = rotateLeft(left.key, left.value, left.left, left.right);
+            }
+            return rotateRight(key, value, left, right);
+        }
+        if (diff < -1) {
+            if (height(right.right) < height(right.left)) {
+                right = rotateRight(right.key, right.value, right.left, right.right);
+            }
+            return rotateLeft(key, value, left, right);
+        }
+        return new Node<>(key, value, left, right);
+    }
+
+    private static <V> Node<V> rotateRight(String key, V value, Node<V> left, Node<V> right) {
+        return new Node<>(left.key, left.value, left.left, new Node<>(key, value, left.right, right));
+    }
+
+    private static <V> Node<V> rotateLeft(String key, V value, Node<V> left, Node<V> right) {
+        return new Node<>(right.key, right.value, new Node<>(key, value, left, right.left), right.right);
+    }
+
+    private static int height(Node<?> node) {
+        return node == null ? 0 : node.height;
+    }
+
+    private static int size(Node<?> node) {
+        return node == null ? 0 : node.size;
+    }
+}
@@ -0,0 +1,129 @@
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+// Children of one directory kept in three ordered sets (by creation date, by name,
+// and directories-before-files by name). The owning Directory updates them on
+// every add and remove, so a sorted page costs O(log n + k) and nothing is ever
+// re-sorted. Names are unique within a directory, which makes every order total.
+//
+// Not thread safe on its own; Directory calls it under its lock.
+public class SortedChildViews {
+    public enum Order {
+        DATE, NAME, TYPE
+    }
+
+    private static final Comparator<FileSystemElement> BY_NAME = Comparator.comparing(FileSystemElement::getName);
+    private static final Comparator<FileSystemElement> BY_DATE =
+            Comparator.comparing(FileSystemElement::getDateCreated).thenComparing(BY_NAME);
+    private static final Comparator<FileSystemElement> BY_TYPE =
+            Comparator.comparing((FileSystemElement e) -> !(e instanceof Directory)).thenComparing(BY_NAME);
+
+    private static final Timestamp PROBE_TIME = new Timestamp(0);
+
+    private final TreeSet<FileSystemElement> byDate = new TreeSet<>(BY_DATE);
+    private final TreeSet<FileSystemElement> byName = new TreeSet<>(BY_NAME);
+    private final TreeSet<FileSystemElement> byType = new TreeSet<>(BY_TYPE);
+
+    public SortedChildViews(Iterable<FileSystemElement> children) {
+        for (FileSystemElement child : children) {
+            add(child);
+        }
+    }
+
+    public void add(FileSystemElement element) {
+        byDate.add(element);
+        byName.add(element);
+        byType.add(element);
+    }
+
+    public void remove(FileSystemElement element) {
+        byDate.remove(element);
+        byName.remove(element);
+        byType.remove(element);
+    }
+
+    public void clear() {
+        byDate.clear();
+        byName.clear();
+        byType.clear();
+    }
+
+    // Up to limit children in the given order, starting after the cursor element
+    // (the last element of the previous page, or null for the first page)
+    public List<FileSystemElement> page(Order order, FileSystemElement after, int limit) {
+        NavigableSet<FileSystemElement> view = view(order);
+        return take(after == null ? view : view.tailSet(after, false), limit);
+    }
+
+    // Up to limit children created in [from, to), oldest first, starting after the cursor.
+    // Either bound may be null. The cursor and from make a single lower bound (whichever
+    // sorts later), since a tail set rejects keys outside its own range.
+    public List<FileSystemElement> createdBetween(Timestamp from, Timestamp to, FileSystemElement after, int limit) {
+        FileSystemElement low = from != null ? probe(from) : null; // "" sorts before every real name
+        boolean lowInclusive = true;
+        if (after != null && (low == null || BY_DATE.compare(after, low) >= 0)) {
+            low = after;
+            lowInclusive = false;
+        }
+        FileSystemElement high = to != null ? probe(to) : null;
+        if (low != null && high != null && BY_DATE.compare(low, high) >= 0) {
+            return new ArrayList<>(); // Nothing left before to
+        }
+        NavigableSet<FileSystemElement> range = byDate;
+        if (low != null) {
+            range = range.tailSet(low, lowInclusive);
+        }
+        if (high != null) {
+            range = range.headSet(high, false);
+        }
+        return take(range, limit);
+    }
+
+    // Up to limit children whose name starts with prefix, in name order
+    public List<FileSystemElement> withNamePrefix(String prefix, int limit) {
+        List<FileSystemElement> page = new ArrayList<>(Math.min(limit, 64));
+        for (FileSystemElement element : byName.tailSet(new File(prefix, null, PROBE_TIME), true)) {
+            if (page.size() >= limit || !element.getName().startsWith(prefix)) {
+                break;
+            }
+            page.add(element);
+        }
+        return page;
+    }
+
+    // Every child, oldest first
+    public List<FileSystemElement> allByDate() {
+        return new ArrayList<>(byDate);
+    }
+
+    private NavigableSet<FileSystemElement> view(Order order) {
+        switch (order) {
+            case DATE:
+                return byDate;
+            case NAME:
+                return byName;
+            default:
+                return byType;
+        }
+    }
+
+    private static List<FileSystemElement> take(NavigableSet<FileSystemElement> range, int limit) {
+        List<FileSystemElement> page = new ArrayList<>(Math.min(limit, 64));
+        for (FileSystemElement element : range) {
+            if (page.size() >= limit) {
+                break;
+            }
+            page.add(element);
+        }
+        return page;
+    }
+
+    // Search key for a creation time; not part of any tree
+    private static FileSystemElement probe(Timestamp dateCreated) {
+        return new File("", null, dateCreated);
+    }
+}
@@ -0,0 +1,315 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Copies of subtrees for FileSystem.copyElement, made in one of two ways.
+//
+// clone() builds a full copy on a ForkJoinPool, splitting the work by subtree the
+// way TreeSearch does: every subdirectory with at least FORK_THRESHOLD elements
+// below it gets its own task. The source is read through snapshotChildren(), so it
+// may change meanwhile; each directory is copied in a consistent state.
+//
+// share() makes a copy-on-write copy in O(1): a single Directory that carries the
+// source's aggregates and reads the source's children until one side is changed.
+// The first use of its children (anything that goes through ensureResident) builds
+// one level: files are cloned and subdirectories become copy-on-write copies in
+// turn, so only the paths that are used are ever built. Before a directory is
+// changed, FileSystem calls unshare() to build every copy still reading it or one of
+// its ancestors, so a directory that copies read from never changes. Building takes
+// the write side of the namespace lock, like a directory move.
+public class SubtreeCopier {
+    // Subdirectories with at least this many elements below them are cloned by a task of their own
+    private static final int FORK_THRESHOLD = 1024;
+    // Below this many nested tasks a subtree is cloned in place (see TreeSearch)
+    private static final int MAX_FORK_DEPTH = 256;
+
+    // Directories, in any FileSystem, that copies still read from; lets File.setSize
+    // and isShared skip the ancestor walk while nothing is shared
+    private static final AtomicInteger SHARED_SOURCES = new AtomicInteger();
+
+    private final NameIndex nameIndex;
+    private final ReentrantReadWriteLock namespaceLock;
+    private final ForkJoinPool pool;
+
+    // Set on a copy-on-write copy until its children are built
+    static final class Share {
+        final SubtreeCopier copier;
+        final Directory source; // Never itself a copy that is not built yet
+
+        Share(SubtreeCopier copier, Directory source) {
+            this.copier = copier;
+            this.source = source;
+        }
+
+        void materialize(Directory copy) {
+            copier.materialize(copy);
+        }
+    }
+
+    // Set on a directory while copies read its children; copies is guarded by copier
+    static final class Copies {
+        final SubtreeCopier copier;
+        final Set<Directory> copies = new HashSet<>();
+
+        Copies(SubtreeCopier copier) {
+            this.copier = copier;
+        }
+    }
+
+    public SubtreeCopier(NameIndex nameIndex, ReentrantReadWriteLock namespaceLock) {
+        this(nameIndex, namespaceLock, ForkJoinPool.commonPool());
+    }
+
+    public SubtreeCopier(NameIndex nameIndex, ReentrantReadWriteLock namespaceLock, ForkJoinPool pool) {
+        this.nameIndex = nameIndex;
+        this.namespaceLock = namespaceLock;
+        this.pool = pool;
+    }
+
+    // A full copy of source's subtree, not in any directory yet. Every element of it is
+    // already in the name index, but not live until the copy is added to a directory.
+    public Directory clone(Directory source) {
+        Directory copy = new Directory(source.getName(), null, source.getDateCreated());
+        nameIndex.add(copy);
+        pool.invoke(new CloneTask(source, copy, 0));
+        Directory.recomputeStats(copy);
+        return copy;
+    }
+
+    // A copy of file with the same name, date and size, in the name index but not in any directory
+    public File clone(File source) {
+        File copy = source.copy();
+        nameIndex.add(copy);
+        return copy;
+    }
+
+    // Clones the children of source into copy and forks a task per large subdirectory
+    private final class CloneTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Directory source;
+        private final Directory copy;
+        private final int depth;
+
+        CloneTask(Directory source, Directory copy, int depth) {
+            this.source = source;
+            this.copy = copy;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            if (depth >= MAX_FORK_DEPTH) {
+                cloneInPlace(source, copy);
+                return;
+            }
+            List<CloneTask> subtasks = null;
+            for (Directory[] pair : copyChildren(source, copy)) {
+                Directory sub = pair[0];
+                if (sub.getFileCount() + sub.getDirectoryCount() >= FORK_THRESHOLD) {
+                    if (subtasks == null) {
+                        subtasks = new ArrayList<>();
+                    }
+                    subtasks.add(new CloneTask(sub, pair[1], depth + 1));
+                } else {
+                    cloneInPlace(sub, pair[1]);
+                }
+            }
+            if (subtasks != null) {
+                invokeAll(subtasks);
+            }
+        }
+    }
+
+    // Sequential clone of everything below source into copy with an explicit stack
+    private void cloneInPlace(Directory source, Directory copy) {
+        ArrayDeque<Directory[]> pending = new ArrayDeque<>();
+        pending.push(new Directory[] { source, copy });
+        while (!pending.isEmpty()) {
+            Directory[] pair = pending.pop();
+            for (Directory[] subdirectory : copyChildren(pair[0], pair[1])) {
+                pending.push(subdirectory);
+            }
+        }
+    }
+
+    // Clone the children of source into the unpublished copy, one level only, and
+    // return the { source, copy } pairs of subdirectories that still have to be filled
+    private List<Directory[]> copyChildren(Directory source, Directory copy) {
+        List<FileSystemElement> children = source.snapshotChildren();
+        List<Directory[]> subdirectories = new ArrayList<>();
+        copy.reserveChildren(children.size());
+        for (FileSystemElement child : children) {
+            FileSystemElement childCopy;
+            if (child instanceof Directory) {
+                childCopy = new Directory(child.getName(), null, child.getDateCreated());
+                subdirectories.add(new Directory[] { (Directory) child, (Directory) childCopy });
+            } else {
+                childCopy = ((File) child).copy();
+            }
+            copy.putIfAbsentUnpublished(childCopy);
+            nameIndex.add(childCopy);
+        }
+        return subdirectories;
+    }
+
+    // A copy-on-write copy of source, not in any directory or the name index yet.
+    // Caller holds the write side of the namespace lock.
+    public Directory share(Directory source) {
+        Share shared = source.share;
+        Directory origin = shared != null ? shared.source : source; // Read what source reads
+        Directory copy = new Directory(source.getName(), null, source.getDateCreated());
+        copy.copyStatsFrom(origin);
+        copy.share = new Share(this, origin);
+        synchronized (this) {
+            Copies copies = origin.copies;
+            if (copies == null) {
+                copies = new Copies(this);
+                origin.copies = copies;
+                SHARED_SOURCES.incrementAndGet();
+            }
+            copies.copies.add(copy);
+        }
+        return copy;
+    }
+
+    // Build one level of copy: its own files and copy-on-write copies of its
+    // subdirectories. Nothing happens if it is built already.
+    void materialize(Directory copy) {
+        namespaceLock.writeLock().lock();
+        try {
+            Share shared = copy.share;
+            if (shared == null) {
+                return; // Built by another thread meanwhile
+            }
+            List<FileSystemElement> children = shared.source.snapshotChildren();
+            List<FileSystemElement> built = new ArrayList<>(children.size());
+            copy.getLock().writeLock().lock();
+            try {
+                if (copy.share != shared) {
+                    return; // Released by a delete meanwhile
+                }
+                copy.reserveChildren(children.size());
+                for (FileSystemElement child : children) {
+                    FileSystemElement childCopy = child instanceof Directory ? share((Directory) child)
+                            : ((File) child).copy();
+                    copy.putIfAbsentUnpublished(childCopy);
+                    built.add(childCopy);
+                }
+                copy.share = null;
+            } finally {
+                copy.getLock().writeLock().unlock();
+            }
+            release(shared.source, copy);
+            Directory.recomputeStats(copy); // Links the new children; the totals stay the same
+            for (FileSystemElement element : built) {
+                nameIndex.add(element);
+            }
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+    }
+
+    // Stop copy from reading source's children (copy was built or deleted)
+    void release(Directory source, Directory copy) {
+        synchronized (this) {
+            Copies copies = source.copies;
+            if (copies != null && copies.copies.remove(copy) && copies.copies.isEmpty()) {
+                source.copies = null;
+                SHARED_SOURCES.decrementAndGet();
+            }
+        }
+    }
+
+    // The copies that still read dir's children
+    List<Directory> copiesOf(Directory dir) {
+        synchronized (this) {
+            Copies copies = dir.copies;
+            return copies == null ? Collections.emptyList() : new ArrayList<>(copies.copies);
+        }
+    }
+
+    // Whether any copy-on-write copy, in any FileSystem, is not fully built yet
+    public static boolean isSharing() {
+        return SHARED_SOURCES.get() != 0;
+    }
+
+    // Whether dir has to be built, or is read by copies through itself or an ancestor,
+    // before its children may change
+    public boolean isShared(Directory dir) {
+        if (dir.share != null) {
+            return true;
+        }
+        if (!isSharing()) {
+            return false;
+        }
+        for (Directory current = dir; current != null; current = current.getParent()) {
+            if (current.copies != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Make dir's children safe to change in place: build dir if it is a copy-on-write
+    // copy, and every copy that reads dir or one of its ancestors. Ancestors go first,
+    // since building a copy of one makes copies of its subdirectories that read the
+    // next one down. Caller holds no locks, or the write side of the namespace lock.
+    public void unshare(Directory dir) {
+        if (!isShared(dir)) {
+            return;
+        }
+        namespaceLock.writeLock().lock();
+        try {
+            if (dir.share != null) {
+                materialize(dir);
+            }
+            ArrayDeque<Directory> path = new ArrayDeque<>();
+            for (Directory current = dir; current != null; current = current.getParent()) {
+                path.push(current);
+            }
+            for (Directory current : path) {
+                materializeCopiesOf(current);
+            }
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+    }
+
+    // Build every copy that still reads dir's children
+    void materializeCopiesOf(Directory dir) {
+        for (Directory copy : copiesOf(dir)) {
+            materialize(copy);
+        }
+    }
+
+    // Before file's size changes: build the copies that would see the change
+    static void unshareFile(File file) {
+        if (!isSharing()) {
+            return;
+        }
+        Directory parent = file.getParent();
+        for (Directory current = parent; current != null; current = current.getParent()) {
+            Copies copies = current.copies;
+            if (copies != null) {
+                copies.copier.unshare(parent);
+                return;
+            }
+        }
+    }
+
+    // Before dir's children are dropped by a delete: build the copies that still read them
+    static void releaseSource(Directory dir) {
+        Copies copies = dir.copies;
+        if (copies != null) {
+            copies.copier.materializeCopiesOf(dir);
+        }
+    }
+}
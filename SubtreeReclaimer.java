@@ -0,0 +1,140 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Background cleanup for FileSystem.deleteElement. The delete only unlinks the
+// top of the subtree and marks it deleted, which is O(1); the reclaimer then walks
+// the detached subtree, marks every directory in it deleted (so nothing more can be
+// created there) and drops every element from the name index.
+//
+// Until that has happened, elements of the subtree may still be in the index;
+// FileSystem filters them out by checking that no ancestor is deleted.
+//
+// close() stops the worker thread; subtrees submitted after it are cleaned up on the
+// submitting thread.
+public class SubtreeReclaimer {
+    private final NameIndex nameIndex;
+    private final FileSystemMetrics metrics;
+    private final LinkedBlockingQueue<FileSystemElement> pending = new LinkedBlockingQueue<>();
+    private final Object idle = new Object(); // Notified whenever outstanding drops to zero
+    private int outstanding; // Submitted subtrees not fully reclaimed yet; guarded by idle
+    private RuntimeException lastFailure; // Worker failure not reported by awaitIdle yet; guarded by idle
+    private Thread worker; // guarded by idle
+    private boolean closed; // guarded by idle
+
+    public SubtreeReclaimer(NameIndex nameIndex, FileSystemMetrics metrics) {
+        this.nameIndex = nameIndex;
+        this.metrics = metrics;
+    }
+
+    // Queue an unlinked subtree for cleanup; starts the worker thread on first use
+    public void submit(FileSystemElement top) {
+        synchronized (idle) {
+            outstanding++;
+            if (!closed) {
+                if (worker == null) {
+                    worker = new Thread(this::run, "subtree-reclaimer");
+                    worker.setDaemon(true);
+                    worker.start();
+                }
+                pending.add(top); // Under idle, so close() either drains it or comes first
+                return;
+            }
+        }
+        reclaim(top);
+    }
+
+    // Stop the worker and finish the queued cleanup on the calling thread
+    public void close() {
+        Thread stopping;
+        synchronized (idle) {
+            closed = true;
+            stopping = worker;
+            worker = null;
+        }
+        if (stopping != null) {
+            stopping.interrupt(); // Lets it finish the subtree in hand, then take() throws
+            try {
+                stopping.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        FileSystemElement top;
+        while ((top = pending.poll()) != null) {
+            reclaim(top);
+        }
+    }
+
+    // Number of subtrees still waiting for (or in) cleanup
+    public int getPendingCount() {
+        synchronized (idle) {
+            return outstanding;
+        }
+    }
+
+    // Help with queued work on the calling thread, then wait until the worker is done
+    // too. Afterwards the name index only holds elements that are in the tree, unless a
+    // walk failed: then this throws that failure (once) as an IllegalStateException.
+    public void awaitIdle() {
+        FileSystemElement top;
+        while ((top = pending.poll()) != null) {
+            reclaim(top);
+        }
+        synchronized (idle) {
+            while (outstanding > 0) {
+                try {
+                    idle.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            RuntimeException failure = lastFailure;
+            if (failure != null) {
+                lastFailure = null;
+                throw new IllegalStateException("Reclaiming a deleted subtree failed.", failure);
+            }
+        }
+    }
+
+    private void run() {
+        while (true) {
+            try {
+                reclaim(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                // Keep the thread alive; a failed walk only leaves stale index entries behind
+                synchronized (idle) {
+                    lastFailure = e;
+                }
+                metrics.recordBackgroundFailure("subtree-reclaimer", e);
+            }
+        }
+    }
+
+    // Each directory is marked deleted under its own lock by detachAll, so a create
+    // racing with the walk either fails or lands before it and is cleaned up too
+    private void reclaim(FileSystemElement top) {
+        try {
+            ArrayDeque<FileSystemElement> stack = new ArrayDeque<>();
+            stack.push(top);
+            while (!stack.isEmpty()) {
+                FileSystemElement element = stack.pop();
+                nameIndex.remove(element);
+                if (element instanceof Directory) {
+                    SubtreeCopier.releaseSource((Directory) element); // Copies of it still read its children
+                    for (FileSystemElement child : ((Directory) element).detachAll()) {
+                        stack.push(child);
+                    }
+                }
+            }
+        } finally {
+            synchronized (idle) {
+                if (--outstanding == 0) {
+                    idle.notifyAll();
+                }
+            }
+        }
+    }
+}
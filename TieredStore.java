@@ -0,0 +1,642 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Keeps a FileSystem within a heap budget by writing cold subtrees to a spill file.
+// The top directory of an evicted subtree stays in the tree as a stub: same object,
+// same aggregates, but no children. Anything that reads or changes a stub's children
+// (changeDirectory, listing, creating inside it...) faults them back in from the file
+// first, so the spill is invisible apart from the delay. Name searches consult a small
+// Bloom filter per stub and fault in only the subtrees that may hold the name;
+// pattern searches fault in every stub.
+//
+// Heap use is estimated as resident elements * ESTIMATED_BYTES_PER_ELEMENT. While it
+// is over budget a background thread evicts with CLOCK: every directory has a
+// reference bit, set on use; each sweep of the hand collects the eviction units and
+// whether anything inside them was used since the previous sweep, clearing the bits,
+// and evicts the units nothing touched. An eviction unit is a subtree of at least
+// MIN_UNIT and at most MAX_UNIT elements that holds no stub and is as large as
+// possible. The current directory of the FileSystem and its ancestors are never
+// evicted. Faulted-in records and deleted stubs leave holes in the file, which later
+// records fill first fit; the file itself is never truncated while open.
+public class TieredStore implements Closeable {
+    // From the footprint of the object tree (about 240 bytes per element, short names)
+    static final int ESTIMATED_BYTES_PER_ELEMENT = 256;
+    static final int MIN_UNIT = 64;
+    static final int MAX_UNIT = 1 << 16;
+    private static final long SWEEP_INTERVAL_MILLIS = 200;
+    private static final long MAX_SWEEP_BACKOFF_MILLIS = 60_000;
+    private static final int BLOOM_PROBES = 4;
+    private static final byte KIND_FILE = 0;
+    private static final byte KIND_DIRECTORY = 1;
+
+    // Where a stub's children are in the spill file, plus what is needed without reading them
+    static final class Spill {
+        private final TieredStore store;
+        private final long offset;
+        private final int length;
+        private final long elements; // Elements below the stub
+        private final long[] nameBits; // Bloom filter over their names
+
+        Spill(TieredStore store, long offset, int length, long elements, long[] nameBits) {
+            this.store = store;
+            this.offset = offset;
+            this.length = length;
+            this.elements = elements;
+            this.nameBits = nameBits;
+        }
+
+        void faultIn(Directory stub) {
+            if (store.faultIn(stub)) {
+                store.misses.increment();
+            }
+        }
+
+        void release(Directory stub) {
+            store.release(stub, this);
+        }
+    }
+
+    private final FileSystem fs;
+    private final NameIndex nameIndex;
+    private final ReentrantReadWriteLock namespaceLock;
+    private final PathCache pathCache;
+    private final Path spillPath;
+    private final FileChannel channel;
+    private final long heapBudget;
+    private final Set<Directory> stubs = ConcurrentHashMap.newKeySet();
+    private final Object evictionLock = new Object(); // One sweep at a time; guards ring and hand
+    private final Object sweepSignal = new Object(); // Wakes the sweeper early on close
+    private final Thread sweeper;
+    private volatile boolean closed;
+
+    // CLOCK state: the eviction units of the current sweep and whether each was used
+    private List<Directory> ring = new ArrayList<>();
+    private boolean[] referenced = new boolean[0];
+    private int hand;
+
+    // Spill file space; guarded by this
+    private long fileEnd;
+    private long liveBytes;
+    private final TreeMap<Long, Long> holes = new TreeMap<>(); // Offset -> length of dead space
+
+    private final AtomicLong spilledElements = new AtomicLong();
+    private final LongAdder accesses = new LongAdder();
+    private final LongAdder faults = new LongAdder();
+    private final LongAdder misses = new LongAdder(); // Tracked operations that had to fault
+    private final LongAdder evictions = new LongAdder();
+    private final LatencyHistogram faultLatency = new LatencyHistogram();
+    private final LongAdder sweepFailures = new LongAdder();
+    private volatile String lastSweepFailure; // null until a sweep failed
+
+    TieredStore(FileSystem fs, NameIndex nameIndex, ReentrantReadWriteLock namespaceLock, PathCache pathCache,
+            Path spillPath, long heapBudget) throws IOException {
+        if (heapBudget <= 0) {
+            throw new IllegalArgumentException("Heap budget must be positive: " + heapBudget);
+        }
+        this.fs = fs;
+        this.nameIndex = nameIndex;
+        this.namespaceLock = namespaceLock;
+        this.pathCache = pathCache;
+        this.spillPath = spillPath;
+        this.heapBudget = heapBudget;
+        this.channel = FileChannel.open(spillPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.sweeper = new Thread(this::sweepLoop, "tiered-store");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    public long getHeapBudget() {
+        return heapBudget;
+    }
+
+    // Estimated bytes held by resident elements
+    public long getEstimatedHeap() {
+        return getResidentElements() * ESTIMATED_BYTES_PER_ELEMENT;
+    }
+
+    public long getResidentElements() {
+        Directory root = fs.getRoot();
+        // Never negative, even while a deleted stub waits for the reclaimer
+        return Math.max(0, root.getFileCount() + root.getDirectoryCount() + 1 - spilledElements.get());
+    }
+
+    public long getSpilledElements() {
+        return spilledElements.get();
+    }
+
+    public int getStubCount() {
+        return stubs.size();
+    }
+
+    public long getFaultCount() {
+        return faults.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    // Share of tracked operations (changeDirectory, listing, search) that did not fault.
+    // A search that faults in several stubs is one miss; so is each stub opened by
+    // walking into it.
+    public double getHitRate() {
+        long total = accesses.sum();
+        return total == 0 ? 1.0 : Math.max(0.0, 1.0 - (double) misses.sum() / total);
+    }
+
+    public LatencyHistogram getFaultLatency() {
+        return faultLatency;
+    }
+
+    // Sweeps that failed (for instance a spill file write) and the latest failure;
+    // also counted in FileSystemMetrics as background failures
+    public long getSweepFailureCount() {
+        return sweepFailures.sum();
+    }
+
+    public String getLastSweepFailure() {
+        return lastSweepFailure;
+    }
+
+    public synchronized long getSpillFileBytes() {
+        return fileEnd;
+    }
+
+    public synchronized long getLiveSpillBytes() {
+        return liveBytes;
+    }
+
+    void recordAccess() {
+        accesses.increment();
+    }
+
+    public String dump() {
+        String failure = lastSweepFailure;
+        return String.format("resident=%d spilled=%d stubs=%d heap~%dMB budget=%dMB hitRate=%.4f faults=%d "
+                        + "evictions=%d fault p50=%.1fus p99=%.1fus max=%.1fus spillFile=%dKB live=%dKB%n",
+                getResidentElements(), getSpilledElements(), getStubCount(), getEstimatedHeap() >> 20,
+                heapBudget >> 20, getHitRate(), getFaultCount(), getEvictionCount(),
+                faultLatency.getPercentile(50) / 1000.0, faultLatency.getPercentile(99) / 1000.0,
+                faultLatency.getMax() / 1000.0, getSpillFileBytes() >> 10, getLiveSpillBytes() >> 10)
+                + (failure == null ? "" : String.format("sweepFailures=%d last=%s%n", getSweepFailureCount(), failure));
+    }
+
+    // Fault in every stub that may hold an element called name
+    void faultInNamed(String name) {
+        int hash = name.hashCode();
+        boolean faulted = false;
+        for (Directory stub : stubs) {
+            Spill spill = stub.spill;
+            if (spill != null && mightContain(spill.nameBits, hash) && faultIn(stub)) {
+                faulted = true;
+            }
+        }
+        if (faulted) {
+            misses.increment();
+        }
+    }
+
+    // Fault in every stub (for searches a Bloom filter cannot narrow down)
+    void faultInAll() {
+        boolean faulted = false;
+        for (Directory stub : stubs) {
+            if (stub.spill != null && faultIn(stub)) {
+                faulted = true;
+            }
+        }
+        if (faulted) {
+            misses.increment();
+        }
+    }
+
+    // Evict until the estimate is within the budget (or nothing more can go)
+    public void enforceBudget() {
+        synchronized (evictionLock) {
+            boolean rebuilt = false;
+            while (!closed && getEstimatedHeap() > heapBudget) {
+                if (hand >= ring.size()) {
+                    if (rebuilt) {
+                        return; // A whole sweep found nothing more to evict
+                    }
+                    rebuildRing();
+                    rebuilt = true;
+                    continue;
+                }
+                int slot = hand++;
+                if (!referenced[slot]) {
+                    evict(ring.get(slot));
+                }
+            }
+        }
+    }
+
+    // Bring every subtree back into memory and stop; the spill file is deleted
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // Not sweeper.interrupt(): interrupting a thread in FileChannel I/O closes the channel
+        synchronized (sweepSignal) {
+            sweepSignal.notifyAll();
+        }
+        try {
+            sweeper.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (evictionLock) {
+            faultInAll();
+            ring = new ArrayList<>();
+        }
+        channel.close();
+        Files.deleteIfExists(spillPath);
+    }
+
+    private void sweepLoop() {
+        long interval = SWEEP_INTERVAL_MILLIS;
+        while (!closed) {
+            try {
+                enforceBudget();
+                interval = SWEEP_INTERVAL_MILLIS;
+            } catch (RuntimeException e) {
+                // A failed eviction leaves the subtree in memory. Report it and wait twice
+                // as long after each failure in a row, so a full disk is not retried 5 times a second.
+                sweepFailures.increment();
+                lastSweepFailure = e.toString();
+                fs.getMetrics().recordBackgroundFailure("tiered-store", e);
+                interval = Math.min(interval * 2, MAX_SWEEP_BACKOFF_MILLIS);
+            }
+            synchronized (sweepSignal) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    sweepSignal.wait(interval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // One pass over the resident tree: find the eviction units and whether anything in
+    // each was used since the last pass, clearing the reference bits on the way
+    private void rebuildRing() {
+        // Pre-order, so every directory comes before everything below it
+        List<Directory> dirs = new ArrayList<>();
+        int[] parents = new int[64];
+        boolean[] used = new boolean[64];
+        ArrayDeque<Integer> pending = new ArrayDeque<>();
+        dirs.add(fs.getRoot());
+        parents[0] = -1;
+        pending.push(0);
+        while (!pending.isEmpty()) {
+            int index = pending.pop();
+            Directory dir = dirs.get(index);
+            used[index] = dir.accessed; // Read before snapshotChildren sets it
+            if (dir.spill != null || dir.share != null) {
+                continue; // Only this thread evicts, so a resident directory stays resident here
+            }
+            List<FileSystemElement> children = dir.snapshotChildren();
+            dir.accessed = false;
+            for (FileSystemElement child : children) {
+                if (child instanceof Directory) {
+                    if (dirs.size() == parents.length) {
+                        parents = Arrays.copyOf(parents, parents.length * 2);
+                        used = Arrays.copyOf(used, used.length * 2);
+                    }
+                    parents[dirs.size()] = index;
+                    pending.push(dirs.size());
+                    dirs.add((Directory) child);
+                }
+            }
+        }
+        // Children before parents: fold "holds a stub" and "was used" up the tree
+        int count = dirs.size();
+        boolean[] holdsStub = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            // Copy-on-write copies and their sources are kept in memory like stubs
+            holdsStub[i] = dirs.get(i).spill != null || dirs.get(i).sharesChildren();
+        }
+        for (int i = count - 1; i > 0; i--) {
+            holdsStub[parents[i]] |= holdsStub[i];
+            used[parents[i]] |= used[i];
+        }
+        List<Directory> units = new ArrayList<>();
+        boolean[] unitUsed = new boolean[count];
+        for (int i = 1; i < count; i++) {
+            long size = elementsBelow(dirs.get(i));
+            int parent = parents[i];
+            boolean parentTooBig = parent == 0 || holdsStub[parent] || elementsBelow(dirs.get(parent)) >= MAX_UNIT;
+            if (!holdsStub[i] && size >= MIN_UNIT && size < MAX_UNIT && parentTooBig) {
+                unitUsed[units.size()] = used[i];
+                units.add(dirs.get(i));
+            }
+        }
+        ring = units;
+        referenced = unitUsed;
+        hand = 0;
+    }
+
+    private static long elementsBelow(Directory dir) {
+        return dir.getFileCount() + dir.getDirectoryCount();
+    }
+
+    // Write dir's subtree to the spill file and turn dir into a stub
+    private void evict(Directory dir) {
+        namespaceLock.writeLock().lock(); // No mutation anywhere while the subtree is written out
+        try {
+            if (dir.spill != null || dir.sharesChildren() || dir == fs.getRoot() || !fs.isLive(dir)
+                    || isAncestorOrSelf(dir, fs.getCurrentDirectory())) {
+                return;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+            DataOutputStream out = new DataOutputStream(bytes);
+            List<FileSystemElement> below = new ArrayList<>();
+            if (!writeSubtree(dir, out, below)) {
+                return; // A stub or shared directory got in since the sweep; try again next time
+            }
+            out.flush();
+            byte[] record = bytes.toByteArray();
+            long[] nameBits = new long[bloomWords(below.size())];
+            for (FileSystemElement element : below) {
+                addToBloom(nameBits, element.getName().hashCode());
+            }
+            long offset = allocate(record.length);
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            long position = offset;
+            try {
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            } catch (IOException e) {
+                free(offset, record.length);
+                throw e;
+            }
+
+            dir.spillChildren(new Spill(this, offset, record.length, below.size(), nameBits));
+            for (FileSystemElement element : below) {
+                synchronized (element) {
+                    element.linked = false; // Late updates through old references stop here
+                }
+            }
+            for (FileSystemElement element : below) {
+                element.markEvicted();
+                nameIndex.remove(element);
+            }
+            pathCache.invalidate(dir); // Cached paths below dir point at evicted directories
+            stubs.add(dir);
+            spilledElements.addAndGet(below.size());
+            evictions.increment();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write to the spill file.", e);
+        } finally {
+            namespaceLock.writeLock().unlock();
+        }
+    }
+
+    // Record layout: int childCount, then each child in pre-order as
+    //   byte kind, int nameLength, UTF-8 name, long dateCreated,
+    //   then long size (file) or int childCount followed by the children (directory)
+    private static boolean writeSubtree(Directory top, DataOutputStream out, List<FileSystemElement> below)
+            throws IOException {
+        List<FileSystemElement> topChildren = top.snapshotChildren();
+        out.writeInt(topChildren.size());
+        ArrayDeque<Iterator<FileSystemElement>> stack = new ArrayDeque<>();
+        stack.push(topChildren.iterator());
+        while (!stack.isEmpty()) {
+            Iterator<FileSystemElement> siblings = stack.peek();
+            if (!siblings.hasNext()) {
+                stack.pop();
+                continue;
+            }
+            FileSystemElement element = siblings.next();
+            below.add(element);
+            byte[] name = element.getName().getBytes(StandardCharsets.UTF_8);
+            if (element instanceof Directory) {
+                Directory dir = (Directory) element;
+                if (dir.spill != null || dir.sharesChildren()) {
+                    return false;
+                }
+                List<FileSystemElement> children = dir.snapshotChildren();
+                out.writeByte(KIND_DIRECTORY);
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeLong(dir.getDateCreated().getTime());
+                out.writeInt(children.size());
+                stack.push(children.iterator());
+            } else {
+                out.writeByte(KIND_FILE);
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeLong(element.getDateCreated().getTime());
+                out.writeLong(((File) element).getSize());
+            }
+        }
+        return true;
+    }
+
+    // Read a stub's children back, attach them and index them again. False if another
+    // thread did it first.
+    private boolean faultIn(Directory stub) {
+        long start = System.nanoTime();
+        namespaceLock.readLock().lock(); // Excludes evictions, which hold the write side
+        try {
+            stub.getLock().writeLock().lock();
+            try {
+                Spill spill = stub.spill;
+                if (spill == null) {
+                    return false;
+                }
+                ByteBuffer record = ByteBuffer.allocate(spill.length);
+                long position = spill.offset;
+                while (record.hasRemaining()) {
+                    int read = channel.read(record, position);
+                    if (read < 0) {
+                        throw new IOException("Spill file is truncated.");
+                    }
+                    position += read;
+                }
+                List<FileSystemElement> created = new ArrayList<>((int) Math.min(spill.elements, MAX_UNIT));
+                List<FileSystemElement> children = readSubtree(stub,
+                        new DataInputStream(new ByteArrayInputStream(record.array())), created);
+                stub.restoreChildren(children);
+                for (FileSystemElement element : created) {
+                    nameIndex.add(element);
+                }
+                stubs.remove(stub);
+                spilledElements.addAndGet(-spill.elements);
+                free(spill.offset, spill.length);
+            } finally {
+                stub.getLock().writeLock().unlock();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read from the spill file.", e);
+        } finally {
+            namespaceLock.readLock().unlock();
+        }
+        faults.increment();
+        faultLatency.record(System.nanoTime() - start);
+        return true;
+    }
+
+    // Returns the stub's children; their own subtrees are filled in already
+    private static List<FileSystemElement> readSubtree(Directory stub, DataInputStream in,
+            List<FileSystemElement> created) throws IOException {
+        int topCount = in.readInt();
+        List<FileSystemElement> topChildren = new ArrayList<>(topCount);
+        ArrayDeque<Directory> parents = new ArrayDeque<>();
+        ArrayDeque<int[]> remaining = new ArrayDeque<>();
+        parents.push(stub);
+        remaining.push(new int[] {topCount});
+        while (!parents.isEmpty()) {
+            if (remaining.peek()[0] == 0) {
+                parents.pop();
+                remaining.pop();
+                continue;
+            }
+            remaining.peek()[0]--;
+            Directory parent = parents.peek();
+            byte kind = in.readByte();
+            byte[] name = new byte[in.readInt()];
+            in.readFully(name);
+            Timestamp dateCreated = new Timestamp(in.readLong());
+            FileSystemElement element;
+            if (kind == KIND_DIRECTORY) {
+                Directory dir = new Directory(new String(name, StandardCharsets.UTF_8), parent, dateCreated);
+                int childCount = in.readInt();
+                dir.reserveChildren(childCount);
+                parents.push(dir);
+                remaining.push(new int[] {childCount});
+                element = dir;
+            } else {
+                File file = new File(new String(name, StandardCharsets.UTF_8), parent, dateCreated);
+                file.setSize(in.readLong()); // Not linked yet, so this changes nothing above it
+                element = file;
+            }
+            created.add(element);
+            if (parent == stub) {
+                topChildren.add(element); // Attached by the stub itself
+            } else {
+                parent.putIfAbsentUnpublished(element);
+            }
+        }
+        return topChildren;
+    }
+
+    // Called when a stub is deleted without being read back
+    private void release(Directory stub, Spill spill) {
+        stubs.remove(stub);
+        spilledElements.addAndGet(-spill.elements);
+        free(spill.offset, spill.length);
+    }
+
+    // First fit among the holes left by earlier records, else the end of the file
+    private synchronized long allocate(int length) {
+        liveBytes += length;
+        for (Map.Entry<Long, Long> hole : holes.entrySet()) {
+            long holeLength = hole.getValue();
+            if (holeLength >= length) {
+                long offset = hole.getKey();
+                holes.remove(offset); // May reuse the entry object for another hole, so read it first
+                if (holeLength > length) {
+                    holes.put(offset + length, holeLength - length);
+                }
+                return offset;
+            }
+        }
+        long offset = fileEnd;
+        fileEnd += length;
+        return offset;
+    }
+
+    // Turn a record into a hole, merged with the holes next to it
+    private synchronized void free(long offset, int length) {
+        liveBytes -= length;
+        long start = offset;
+        long end = offset + length;
+        Map.Entry<Long, Long> before = holes.floorEntry(start);
+        if (before != null && before.getKey() + before.getValue() == start) {
+            holes.remove(before.getKey());
+            start = before.getKey();
+        }
+        Long after = holes.containsKey(end) ? holes.remove(end) : null;
+        if (after != null) {
+            end += after;
+        }
+        if (end == fileEnd) {
+            fileEnd = start; // Trailing dead space is simply written over next
+        } else {
+            holes.put(start, end - start);
+        }
+    }
+
+    private static boolean isAncestorOrSelf(Directory dir, Directory target) {
+        for (Directory current = target; current != null; current = current.getParent()) {
+            if (current == dir) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Bloom filter with 16 to 32 bits per name and 4 probes (at most 0.25% false
+    // positives per stub, which every name search pays across all stubs)
+    private static int bloomWords(int names) {
+        int bits = Integer.highestOneBit(Math.max(64, names * 16 - 1)) << 1;
+        return bits >>> 6;
+    }
+
+    private static void addToBloom(long[] words, int hash) {
+        int bits = words.length << 6;
+        int h2 = mix(hash);
+        for (int i = 0; i < BLOOM_PROBES; i++) {
+            int bit = (hash + i * h2) & (bits - 1);
+            words[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    private static boolean mightContain(long[] words, int hash) {
+        int bits = words.length << 6;
+        int h2 = mix(hash);
+        for (int i = 0; i < BLOOM_PROBES; i++) {
+            int bit = (hash + i * h2) & (bits - 1);
+            if ((words[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return (h ^ (h >>> 15)) | 1; // Odd, so the probes differ
+    }
+}
@@ -0,0 +1,187 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+
+// Iterative tree printer. Uses an explicit stack instead of recursion so very
+// deep trees cannot overflow the call stack, shares one indent buffer for all
+// lines, and writes to any Appendable (wrap streams in a BufferedWriter).
+// Children are read a page at a time (Directory.iterateChildren), so no directory's
+// child list is copied whole and a truncated render stops reading where it stops.
+// A TreeVersion (see VersionedFileSystem) renders the same way, with no locks at all.
+public class TreeRenderer {
+    public static final int UNLIMITED_DEPTH = Integer.MAX_VALUE;
+    public static final long UNLIMITED_NODES = Long.MAX_VALUE;
+
+    private static final int INDENT_WIDTH = 4;
+    private static final String CURRENT_MARKER = "/ (Current Directory)";
+
+    private final Appendable out;
+    private final int maxDepth;
+    private final long maxNodes;
+    private char[] indent = new char[64];
+    private long written;
+
+    public TreeRenderer(Appendable out) {
+        this(out, UNLIMITED_DEPTH, UNLIMITED_NODES);
+    }
+
+    // maxDepth is the deepest level whose contents are expanded (root is level 0),
+    // maxNodes is the number of lines written before the output is truncated
+    public TreeRenderer(Appendable out, int maxDepth, long maxNodes) {
+        if (maxDepth < 0 || maxNodes < 0) {
+            throw new IllegalArgumentException("Limits must not be negative.");
+        }
+        this.out = out;
+        this.maxDepth = maxDepth;
+        this.maxNodes = maxNodes;
+        Arrays.fill(indent, ' ');
+    }
+
+    // Print every directory and file below dir. Returns the number of nodes written.
+    public long renderWholeTree(Directory dir, Directory current) throws IOException {
+        return render(dir, current, false);
+    }
+
+    // Print all directories below dir, expanding files only for the current directory.
+    // Returns the number of nodes written.
+    public long renderDirectoryTree(Directory dir, Directory current) throws IOException {
+        return render(dir, current, true);
+    }
+
+    // Print every directory and file below dir in an immutable tree version; current,
+    // if not null, is the node to mark. Returns the number of nodes written.
+    public long renderWholeTree(VersionedNode top, VersionedNode current) throws IOException {
+        written = 0;
+        if (!writeLine(0, "* ", top.getName(), top == current ? CURRENT_MARKER : "/")) {
+            return written;
+        }
+        ArrayDeque<Iterator<VersionedNode>> stack = new ArrayDeque<>();
+        if (maxDepth > 0) {
+            stack.push(top.getChildren().iterator());
+        }
+        while (!stack.isEmpty()) {
+            Iterator<VersionedNode> frame = stack.peek();
+            if (!frame.hasNext()) {
+                stack.pop();
+                continue;
+            }
+            VersionedNode node = frame.next();
+            int depth = stack.size();
+            if (!node.isDirectory()) {
+                if (!writeLine(depth, node.getName(), null)) {
+                    return written;
+                }
+                continue;
+            }
+            if (!writeLine(depth, "* ", node.getName(), node == current ? CURRENT_MARKER : "/")) {
+                return written;
+            }
+            if (depth < maxDepth) {
+                stack.push(node.getChildren().iterator());
+            }
+        }
+        return written;
+    }
+
+    private long render(Directory top, Directory current, boolean directoriesOnly) throws IOException {
+        written = 0;
+        ArrayDeque<Iterator<FileSystemElement>> stack = new ArrayDeque<>();
+        if (!writeDirectory(top, 0, current)) {
+            return written;
+        }
+        if (directoriesOnly && top == current) {
+            writeCurrentContents(top, 1);
+            return written;
+        }
+        if (maxDepth > 0) {
+            stack.push(top.iterateChildren(Directory.LISTING_PAGE_SIZE));
+        }
+
+        while (!stack.isEmpty()) {
+            Iterator<FileSystemElement> frame = stack.peek();
+            if (!frame.hasNext()) {
+                stack.pop(); // Done with this directory, go back to its parent
+                continue;
+            }
+            FileSystemElement element = frame.next();
+            int depth = stack.size();
+            if (!(element instanceof Directory)) {
+                if (!directoriesOnly && !writeLine(depth, element.getName(), null)) {
+                    return written;
+                }
+                continue;
+            }
+            Directory dir = (Directory) element;
+            if (!writeDirectory(dir, depth, current)) {
+                return written;
+            }
+            if (depth >= maxDepth) {
+                continue; // Depth limit reached, do not expand this directory
+            }
+            if (directoriesOnly && dir == current) {
+                if (!writeCurrentContents(dir, depth + 1)) {
+                    return written;
+                }
+            } else {
+                stack.push(dir.iterateChildren(Directory.LISTING_PAGE_SIZE));
+            }
+        }
+        return written;
+    }
+
+    // The current directory lists its files and subdirectories without expanding them
+    private boolean writeCurrentContents(Directory dir, int depth) throws IOException {
+        for (FileSystemElement element : dir.getChildren()) {
+            String suffix = element instanceof Directory ? "/" : null;
+            if (!writeLine(depth, "* ", element.getName(), suffix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean writeDirectory(Directory dir, int depth, Directory current) throws IOException {
+        return writeLine(depth, "* ", dir.getName(), dir == current ? CURRENT_MARKER : "/");
+    }
+
+    private boolean writeLine(int depth, String name, String suffix) throws IOException {
+        return writeLine(depth, null, name, suffix);
+    }
+
+    // Write one line; returns false once the node limit has been hit
+    private boolean writeLine(int depth, String marker, String name, String suffix) throws IOException {
+        if (written >= maxNodes) {
+            writeIndent(depth);
+            out.append("...").append('\n');
+            return false;
+        }
+        writeIndent(depth);
+        if (marker != null) {
+            out.append(marker);
+        }
+        out.append(name);
+        if (suffix != null) {
+            out.append(suffix);
+        }
+        out.append('\n');
+        written++;
+        return true;
+    }
+
+    private void writeIndent(int depth) throws IOException {
+        int length = depth * INDENT_WIDTH;
+        if (length > indent.length) {
+            indent = new char[Math.max(length, indent.length * 2)];
+            Arrays.fill(indent, ' ');
+        }
+        if (out instanceof Writer) {
+            ((Writer) out).write(indent, 0, length); // No intermediate String
+        } else {
+            for (int i = 0; i < length; i++) {
+                out.append(' ');
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+// Parallel traversal of a Directory tree on a ForkJoinPool, for the searches the name
+// index cannot answer (FileSystem.searchMatching). Work is split by subtree (and wide
+// directories by child range), every element is tested with a Predicate and matches
+// are handed to a callback as they are found.
+//
+// Directories are read through snapshotChildren(), so a search may run while
+// other threads modify the tree; each directory is seen in a consistent state.
+public class TreeSearch {
+    // Directories with more children than this are split across several tasks
+    private static final int CHUNK_SIZE = 2048;
+    // Below this many nested tasks a subtree is walked in place, so deep trees cannot
+    // overflow the worker's stack through nested invokeAll calls
+    private static final int MAX_FORK_DEPTH = 256;
+
+    private final ForkJoinPool pool;
+
+    public TreeSearch() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public TreeSearch(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    // The regular expression equivalent of a shell style pattern
+    public static Pattern globPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    public static Predicate<FileSystemElement> nameRegex(String regex) {
+        Pattern pattern = Pattern.compile(regex);
+        return element -> pattern.matcher(element.getName()).matches();
+    }
+
+    // Created at or after from and before to (either bound may be null); elements
+    // without a creation date never match
+    public static Predicate<FileSystemElement> createdBetween(Timestamp from, Timestamp to) {
+        return element -> {
+            Timestamp created = element.getDateCreated();
+            return created != null && (from == null || !created.before(from))
+                    && (to == null || created.before(to));
+        };
+    }
+
+    // Call sink for every element below start (start itself excluded) that matches.
+    // sink is called from pool threads and must be thread safe.
+    public void forEachMatch(Directory start, Predicate<FileSystemElement> matcher,
+            Consumer<FileSystemElement> sink) {
+        pool.invoke(new SearchTask(start.snapshotChildren(), 0, -1, 0, matcher, sink));
+    }
+
+    // Every element below start that matches, in no particular order
+    public List<FileSystemElement> findAll(Directory start, Predicate<FileSystemElement> matcher) {
+        ConcurrentLinkedQueue<FileSystemElement> found = new ConcurrentLinkedQueue<>();
+        forEachMatch(start, matcher, found::add);
+        return new ArrayList<>(found);
+    }
+
+    // Tests children[from, to) of one directory and forks a task per subdirectory
+    private static final class SearchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<FileSystemElement> children;
+        private final int from;
+        private final int to; // -1 for "to the end"
+        private final int depth;
+        private final Predicate<FileSystemElement> matcher;
+        private final Consumer<FileSystemElement> sink;
+
+        SearchTask(List<FileSystemElement> children, int from, int to, int depth,
+                Predicate<FileSystemElement> matcher, Consumer<FileSystemElement> sink) {
+            this.children = children;
+            this.from = from;
+            this.to = to < 0 ? children.size() : to;
+            this.depth = depth;
+            this.matcher = matcher;
+            this.sink = sink;
+        }
+
+        @Override
+        protected void compute() {
+            if (depth >= MAX_FORK_DEPTH) {
+                walkInPlace();
+                return;
+            }
+            if (to - from > CHUNK_SIZE) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new SearchTask(children, from, mid, depth + 1, matcher, sink),
+                        new SearchTask(children, mid, to, depth + 1, matcher, sink));
+                return;
+            }
+            List<SearchTask> subtasks = null;
+            for (int i = from; i < to; i++) {
+                FileSystemElement element = children.get(i);
+                if (matcher.test(element)) {
+                    sink.accept(element);
+                }
+                if (element instanceof Directory) {
+                    List<FileSystemElement> grandChildren = ((Directory) element).snapshotChildren();
+                    if (!grandChildren.isEmpty()) {
+                        if (subtasks == null) {
+                            subtasks = new ArrayList<>();
+                        }
+                        subtasks.add(new SearchTask(grandChildren, 0, -1, depth + 1, matcher, sink));
+                    }
+                }
+            }
+            if (subtasks != null) {
+                invokeAll(subtasks);
+            }
+        }
+
+        // Sequential depth-first walk of children[from, to) with an explicit stack
+        private void walkInPlace() {
+            ArrayDeque<FileSystemElement> pending = new ArrayDeque<>(children.subList(from, to));
+            while (!pending.isEmpty()) {
+                FileSystemElement element = pending.pop();
+                if (matcher.test(element)) {
+                    sink.accept(element);
+                }
+                if (element instanceof Directory) {
+                    for (FileSystemElement child : ((Directory) element).snapshotChildren()) {
+                        pending.push(child);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// One committed, immutable version of a VersionedFileSystem. Every read here sees
+// exactly the tree as of this version, no matter what writers commit meanwhile,
+// and never takes a lock.
+public final class TreeVersion {
+    private final VersionedNode root;
+    private final long version;
+
+    TreeVersion(VersionedNode root, long version) {
+        this.root = root;
+        this.version = version;
+    }
+
+    public VersionedNode getRoot() {
+        return root;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    // Node at an absolute path such as "/a/b", or null if there is none
+    public VersionedNode lookup(String path) {
+        VersionedNode current = root;
+        for (String part : VersionedFileSystem.splitPath(path)) {
+            current = current.findChild(part);
+            if (current == null) {
+                return null;
+            }
+        }
+        return current;
+    }
+
+    // Contents of the directory at path, ordered by name
+    public List<VersionedNode> listDirectoryContents(String path) {
+        VersionedNode dir = lookup(path);
+        if (dir == null || !dir.isDirectory()) {
+            throw new IllegalArgumentException("Directory not found.");
+        }
+        return dir.getChildren().values();
+    }
+
+    // Contents of the directory at path, oldest first (the stored order is left alone)
+    public List<VersionedNode> listDirectoryContentsByDate(String path) {
+        List<VersionedNode> contents = listDirectoryContents(path);
+        contents.sort((a, b) -> Long.compare(a.getDateCreated(), b.getDateCreated()));
+        return contents;
+    }
+
+    // Path of the first element with the given name, or "" if there is none
+    public String searchFileOrDirectory(String name) {
+        List<String> found = search(name, 1);
+        return found.isEmpty() ? "" : found.get(0);
+    }
+
+    // Paths of every element with the given name
+    public List<String> searchAllFilesOrDirectories(String name) {
+        return search(name, Integer.MAX_VALUE);
+    }
+
+    // Depth-first walk with an explicit stack; the root itself is never a match
+    private List<String> search(String name, int limit) {
+        List<String> found = new ArrayList<>();
+        ArrayDeque<Iterator<VersionedNode>> stack = new ArrayDeque<>();
+        StringBuilder path = new StringBuilder();
+        ArrayDeque<Integer> pathLengths = new ArrayDeque<>();
+        stack.push(root.getChildren().iterator());
+        pathLengths.push(0);
+        while (!stack.isEmpty() && found.size() < limit) {
+            Iterator<VersionedNode> frame = stack.peek();
+            if (!frame.hasNext()) {
+                stack.pop();
+                path.setLength(pathLengths.pop());
+                continue;
+            }
+            VersionedNode node = frame.next();
+            int length = path.length();
+            path.append('/').append(node.getName());
+            if (node.getName().equals(name)) {
+                found.add(path.toString());
+            }
+            if (node.isDirectory() && !node.getChildren().isEmpty()) {
+                stack.push(node.getChildren().iterator());
+                pathLengths.push(length);
+            } else {
+                path.setLength(length);
+            }
+        }
+        return found;
+    }
+
+    // Print the whole tree in the same layout as FileSystem.printWholeTree.
+    // Returns the number of nodes written.
+    public long printWholeTree(Appendable out) throws IOException {
+        return new TreeRenderer(out).renderWholeTree(root, null);
+    }
+}
@@ -0,0 +1,259 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+// Multi-version (copy-on-write) file system. The whole tree is immutable: a writer
+// copies the directories on the path it changes, shares everything else with the
+// previous version, and publishes the new root with compare-and-set, retrying if
+// another writer committed first. Readers call snapshot() and work on a consistent
+// point-in-time TreeVersion without ever blocking or being blocked.
+//
+// FileSystem.enableSnapshotReads keeps one as a copy of its tree and serves its tree
+// dumps, listings and name searches from snapshot(). It also works on its own, which
+// is how bench/EngineBenchmark compares the two engines. There is no sorting: children
+// are kept in name order.
+//
+// Paths are absolute, e.g. "/a/b".
+public class VersionedFileSystem {
+    private final AtomicReference<TreeVersion> current;
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+
+    public VersionedFileSystem() {
+        this(VersionedNode.directory("root", System.currentTimeMillis()));
+    }
+
+    private VersionedFileSystem(VersionedNode root) {
+        current = new AtomicReference<>(new TreeVersion(root, 0));
+    }
+
+    // Copy an existing Directory tree into a new versioned file system
+    public static VersionedFileSystem fromDirectory(Directory root) {
+        return new VersionedFileSystem(freeze(root));
+    }
+
+    // Immutable copy of element and everything below it
+    static VersionedNode freeze(FileSystemElement element) {
+        if (element instanceof Directory) {
+            return freeze((Directory) element);
+        }
+        return VersionedNode.file(element.getName(), element.getDateCreated().getTime());
+    }
+
+    // Build immutable nodes bottom-up with an explicit stack (post-order)
+    private static VersionedNode freeze(Directory top) {
+        ArrayDeque<Directory> pending = new ArrayDeque<>();
+        ArrayDeque<Directory> postOrder = new ArrayDeque<>();
+        pending.push(top);
+        while (!pending.isEmpty()) {
+            Directory dir = pending.pop();
+            postOrder.push(dir);
+            for (FileSystemElement child : dir.snapshotChildren()) {
+                if (child instanceof Directory) {
+                    pending.push((Directory) child);
+                }
+            }
+        }
+        IdentityHashMap<Directory, VersionedNode> frozen = new IdentityHashMap<>();
+        while (!postOrder.isEmpty()) {
+            Directory dir = postOrder.pop(); // Children are always frozen before their parent
+            VersionedNode node = VersionedNode.directory(dir.getName(), dir.getDateCreated().getTime());
+            for (FileSystemElement child : dir.snapshotChildren()) {
+                node = node.withChild(child instanceof Directory ? frozen.remove(child)
+                        : VersionedNode.file(child.getName(), child.getDateCreated().getTime()));
+            }
+            frozen.put(dir, node);
+        }
+        return frozen.get(top);
+    }
+
+    // The latest committed version; reads on it never block
+    public TreeVersion snapshot() {
+        return current.get();
+    }
+
+    public void createFile(String parentPath, String name) {
+        createFile(parentPath, name, System.currentTimeMillis());
+    }
+
+    public void createFile(String parentPath, String name, long dateCreated) {
+        VersionedNode file = VersionedNode.file(name, dateCreated);
+        commit(root -> updateDirectory(root, splitPath(parentPath), dir -> {
+            if (dir.findChild(name) != null) {
+                throw new IllegalArgumentException("File already exists.");
+            }
+            return dir.withChild(file);
+        }));
+    }
+
+    public void createDirectory(String parentPath, String name) {
+        createDirectory(parentPath, name, System.currentTimeMillis());
+    }
+
+    public void createDirectory(String parentPath, String name, long dateCreated) {
+        VersionedNode newDir = VersionedNode.directory(name, dateCreated);
+        commit(root -> updateDirectory(root, splitPath(parentPath), dir -> {
+            if (dir.findChild(name) != null) {
+                throw new IllegalArgumentException("Directory already exists.");
+            }
+            return dir.withChild(newDir);
+        }));
+    }
+
+    // Delete the element at path and everything below it; deleting "/" empties the root
+    public void deleteFileOrDirectory(String path) {
+        String[] parts = splitPath(path);
+        if (parts.length == 0) {
+            commit(root -> VersionedNode.directory(root.getName(), root.getDateCreated()));
+            return;
+        }
+        String name = parts[parts.length - 1];
+        String[] parentParts = Arrays.copyOf(parts, parts.length - 1);
+        commit(root -> updateDirectory(root, parentParts, dir -> {
+            if (dir.findChild(name) == null) {
+                throw new IllegalArgumentException("File or directory does not exist.");
+            }
+            return dir.withoutChild(name);
+        }));
+    }
+
+    // Move the element at path into the directory at newParentPath
+    public void moveFileOrDirectory(String path, String newParentPath) {
+        String[] parts = splitPath(path);
+        String[] newParentParts = splitPath(newParentPath);
+        if (parts.length == 0) {
+            throw new IllegalArgumentException("Cannot move the root directory.");
+        }
+        if (isPrefix(parts, newParentParts)) {
+            throw new IllegalArgumentException("Cannot move a directory inside itself or its subdirectories.");
+        }
+        String name = parts[parts.length - 1];
+        String[] parentParts = Arrays.copyOf(parts, parts.length - 1);
+        commit(root -> {
+            VersionedNode[] moved = new VersionedNode[1];
+            VersionedNode detached = updateDirectory(root, parentParts, dir -> {
+                moved[0] = dir.findChild(name);
+                if (moved[0] == null) {
+                    throw new IllegalArgumentException("The file/directory to move does not exist.");
+                }
+                return dir.withoutChild(name);
+            });
+            return updateDirectory(detached, newParentParts, dir -> {
+                if (dir.findChild(name) != null) {
+                    throw new IllegalArgumentException(
+                            "An element with the same name already exists in the target directory.");
+                }
+                return dir.withChild(moved[0]);
+            });
+        });
+    }
+
+    // Copy the element at path into the directory at newParentPath. The copy shares
+    // every node with the original, so it costs one path copy whatever its size.
+    public void copyFileOrDirectory(String path, String newParentPath) {
+        String[] parts = splitPath(path);
+        String[] newParentParts = splitPath(newParentPath);
+        if (isPrefix(parts, newParentParts)) {
+            throw new IllegalArgumentException("Cannot copy a directory inside itself or its subdirectories.");
+        }
+        commit(root -> {
+            VersionedNode source = root;
+            for (String part : parts) {
+                source = source.findChild(part);
+                if (source == null) {
+                    throw new IllegalArgumentException("The file/directory to copy does not exist.");
+                }
+            }
+            return withNewChild(root, newParentParts, source);
+        });
+    }
+
+    // Add an already frozen element (see freeze) to the directory at parentPath
+    void link(String parentPath, VersionedNode element) {
+        String[] parentParts = splitPath(parentPath);
+        commit(root -> withNewChild(root, parentParts, element));
+    }
+
+    private static VersionedNode withNewChild(VersionedNode root, String[] parentParts, VersionedNode child) {
+        return updateDirectory(root, parentParts, dir -> {
+            if (dir.findChild(child.getName()) != null) {
+                throw new IllegalArgumentException("An element with the same name already exists in the target directory.");
+            }
+            return dir.withChild(child);
+        });
+    }
+
+    // Number of committed changes and of commits that lost a race and were retried
+    public long getCommitCount() {
+        return commits.sum();
+    }
+
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    // Apply change to the latest root and publish the result, retrying on conflicts.
+    // change must be free of side effects because it may run more than once.
+    private void commit(UnaryOperator<VersionedNode> change) {
+        while (true) {
+            TreeVersion base = current.get();
+            VersionedNode newRoot = change.apply(base.getRoot());
+            if (current.compareAndSet(base, new TreeVersion(newRoot, base.getVersion() + 1))) {
+                commits.increment();
+                return;
+            }
+            retries.increment();
+        }
+    }
+
+    // Path-copy: apply change to the directory at parts and rebuild its ancestors
+    private static VersionedNode updateDirectory(VersionedNode root, String[] parts,
+            UnaryOperator<VersionedNode> change) {
+        VersionedNode[] chain = new VersionedNode[parts.length + 1];
+        chain[0] = root;
+        for (int i = 0; i < parts.length; i++) {
+            VersionedNode next = chain[i].findChild(parts[i]);
+            if (next == null || !next.isDirectory()) {
+                throw new IllegalArgumentException("Directory not found.");
+            }
+            chain[i + 1] = next;
+        }
+        VersionedNode updated = change.apply(chain[parts.length]);
+        for (int i = parts.length - 1; i >= 0; i--) {
+            updated = chain[i].withChild(updated);
+        }
+        return updated;
+    }
+
+    private static boolean isPrefix(String[] prefix, String[] parts) {
+        if (prefix.length > parts.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (!prefix[i].equals(parts[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // "/a//b/" -> ["a", "b"]
+    static String[] splitPath(String path) {
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= path.length(); i++) {
+            if (i == path.length() || path.charAt(i) == '/') {
+                if (i > start) {
+                    parts.add(path.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        return parts.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,52 @@
+// Immutable file or directory used by VersionedFileSystem. Nodes have no parent
+// pointer, so an unchanged subtree can be shared by any number of tree versions.
+public final class VersionedNode {
+    private final String name;
+    private final long dateCreated;
+    private final PersistentSortedMap<VersionedNode> children; // null for files
+
+    private VersionedNode(String name, long dateCreated, PersistentSortedMap<VersionedNode> children) {
+        this.name = name;
+        this.dateCreated = dateCreated;
+        this.children = children;
+    }
+
+    public static VersionedNode file(String name, long dateCreated) {
+        return new VersionedNode(name, dateCreated, null);
+    }
+
+    public static VersionedNode directory(String name, long dateCreated) {
+        return new VersionedNode(name, dateCreated, PersistentSortedMap.empty());
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getDateCreated() {
+        return dateCreated;
+    }
+
+    public boolean isDirectory() {
+        return children != null;
+    }
+
+    // Children ordered by name (empty for files)
+    public PersistentSortedMap<VersionedNode> getChildren() {
+        return children != null ? children : PersistentSortedMap.empty();
+    }
+
+    public VersionedNode findChild(String childName) {
+        return children != null ? children.get(childName) : null;
+    }
+
+    // Copy of this directory with child added or replaced
+    public VersionedNode withChild(VersionedNode child) {
+        return new VersionedNode(name, dateCreated, children.put(child.getName(), child));
+    }
+
+    // Copy of this directory without the named child
+    public VersionedNode withoutChild(String childName) {
+        return new VersionedNode(name, dateCreated, children.remove(childName));
+    }
+}
@@ -0,0 +1,258 @@
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// One watch on a path (and optionally everything below it), created by
+// FileSystem.watch. Matching events are queued in an EventRing by the thread that
+// made the change and handed to the listener in batches by the watch's own daemon
+// thread. What happens when the listener falls behind and the ring fills up is the
+// watch's Backpressure policy.
+public class WatchSubscription implements Closeable {
+    public enum Backpressure {
+        // Discard the event and count it; the listener later gets one OVERFLOW event
+        // and should re-read the watched subtree. Writers never wait.
+        DROP,
+        // Make the writer wait until the listener catches up. Writers on the watched
+        // paths run at the listener's pace; use only for listeners that must see
+        // every event.
+        BLOCK,
+        // Keep only the latest state per path until the listener catches up, so
+        // repeated changes to one path collapse into one. Writers never wait. Such
+        // events describe end states: a MOVE arrives as DELETE of the old path plus
+        // CREATE of the new one, a deleted directory swallows the pending events
+        // below it, and a CREATE of a directory means "re-read this subtree".
+        COALESCE
+    }
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final EventHub hub;
+    private final String path;
+    private final String prefix; // path + "/", what paths below the watched one start with
+    private final boolean recursive;
+    private final Backpressure policy;
+    private final int batchSize;
+    private final FileSystemListener listener;
+    private final EventRing<FileSystemEvent> ring;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final Thread deliveryThread;
+    private volatile boolean closed;
+    private volatile boolean consumerParked;
+
+    // COALESCE only: events that did not fit in the ring, latest per path, in first-seen order
+    private LinkedHashMap<String, FileSystemEvent> overflow = new LinkedHashMap<>();
+    private volatile boolean overflowing;
+
+    WatchSubscription(EventHub hub, String path, boolean recursive, FileSystemListener listener,
+            Backpressure policy, int capacity, int batchSize) {
+        if (capacity < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("capacity and batchSize must be positive.");
+        }
+        this.hub = hub;
+        this.path = path;
+        this.prefix = path.equals("/") ? "/" : path + "/";
+        this.recursive = recursive;
+        this.listener = listener;
+        this.policy = policy;
+        this.batchSize = batchSize;
+        this.ring = new EventRing<>(capacity);
+        this.deliveryThread = new Thread(this::deliverLoop, "watch " + path);
+        deliveryThread.setDaemon(true);
+    }
+
+    void start() {
+        deliveryThread.start();
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isRecursive() {
+        return recursive;
+    }
+
+    public Backpressure getPolicy() {
+        return policy;
+    }
+
+    // Events lost to DROP, or folded into a later event by COALESCE
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public long getDeliveredCount() {
+        return delivered.sum();
+    }
+
+    // Events queued but not yet handed to the listener
+    public int getPendingCount() {
+        int pending = ring.size();
+        if (overflowing) {
+            synchronized (this) {
+                pending += overflow.size();
+            }
+        }
+        return pending;
+    }
+
+    // Stop the watch; events still queued are discarded
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        hub.remove(this);
+        LockSupport.unpark(deliveryThread);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Whether an event at eventPath is inside this watch
+    boolean matches(String eventPath) {
+        if (eventPath.equals(path)) {
+            return true;
+        }
+        if (!eventPath.startsWith(prefix)) {
+            return false;
+        }
+        return recursive || eventPath.indexOf('/', prefix.length()) < 0;
+    }
+
+    // Called by the thread making the change, with the changed directory locked
+    void publish(FileSystemEvent event) {
+        if (closed) {
+            return;
+        }
+        if (overflowing && coalesce(event, false)) {
+            return; // Keep order: nothing may overtake the events already set aside
+        }
+        if (!ring.offer(event)) {
+            switch (policy) {
+                case DROP:
+                    dropped.increment();
+                    break;
+                case BLOCK:
+                    awaitSpace(event);
+                    break;
+                case COALESCE:
+                    coalesce(event, true);
+                    break;
+            }
+        }
+        if (consumerParked) {
+            LockSupport.unpark(deliveryThread);
+        }
+    }
+
+    // Set event aside in the overflow map; unless force, only if the map is already in use
+    private synchronized boolean coalesce(FileSystemEvent event, boolean force) {
+        if (!force && overflow.isEmpty()) {
+            return false;
+        }
+        if (event.getType() == FileSystemEvent.Type.MOVE) {
+            putLatest(new FileSystemEvent(FileSystemEvent.Type.DELETE, event.getOldPath(), null,
+                    event.isDirectory(), event.getSequence()));
+            putLatest(new FileSystemEvent(FileSystemEvent.Type.CREATE, event.getPath(), null,
+                    event.isDirectory(), event.getSequence()));
+        } else {
+            putLatest(event);
+        }
+        overflowing = true;
+        return true;
+    }
+
+    private void putLatest(FileSystemEvent event) {
+        String key = event.getPath();
+        FileSystemEvent pending = overflow.get(key);
+        if (pending != null && pending.getType() == FileSystemEvent.Type.CREATE
+                && event.getType() == FileSystemEvent.Type.REORDER) {
+            dropped.increment(); // Reading the new directory covers its order too
+            return;
+        }
+        if (event.getType() == FileSystemEvent.Type.DELETE && event.isDirectory()) {
+            String below = key + "/";
+            int before = overflow.size();
+            overflow.keySet().removeIf(p -> p.startsWith(below));
+            dropped.add(before - overflow.size());
+        }
+        if (overflow.remove(key) != null) {
+            dropped.increment();
+        }
+        overflow.put(key, event); // (Re-)inserted last, as the newest state of the path
+    }
+
+    private synchronized List<FileSystemEvent> takeOverflow() {
+        if (overflow.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<FileSystemEvent> events = new ArrayList<>(overflow.values());
+        overflow = new LinkedHashMap<>();
+        overflowing = false;
+        return events;
+    }
+
+    private void awaitSpace(FileSystemEvent event) {
+        int spins = 0;
+        while (!closed && !ring.offer(event)) {
+            LockSupport.unpark(deliveryThread);
+            if (++spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(50_000);
+            }
+        }
+    }
+
+    private void deliverLoop() {
+        List<FileSystemEvent> batch = new ArrayList<>(batchSize);
+        long reportedDrops = 0;
+        while (!closed) {
+            FileSystemEvent event;
+            while (batch.size() < batchSize && (event = ring.poll()) != null) {
+                batch.add(event);
+            }
+            if (batch.isEmpty() && overflowing) {
+                batch.addAll(takeOverflow()); // The ring is drained, so these are next in order
+            }
+            if (policy == Backpressure.DROP && batch.size() < batchSize) {
+                long drops = dropped.sum();
+                if (drops != reportedDrops) {
+                    reportedDrops = drops;
+                    batch.add(new FileSystemEvent(FileSystemEvent.Type.OVERFLOW, path, null, true,
+                            hub.currentSequence()));
+                }
+            }
+            if (batch.isEmpty()) {
+                park();
+                continue;
+            }
+            try {
+                listener.onEvents(Collections.unmodifiableList(new ArrayList<>(batch)));
+            } catch (RuntimeException e) {
+                // A failing listener must not end the watch; it simply misses this batch
+            }
+            delivered.add(batch.size());
+            batch.clear();
+        }
+    }
+
+    // Sleep until a producer signals; the re-check after setting the flag closes the
+    // window in which a producer could have queued without seeing it
+    private void park() {
+        consumerParked = true;
+        if (ring.isEmpty() && !overflowing && !closed) {
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        consumerParked = false;
+    }
+}
@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Side-by-side benchmarks of the locking FileSystem, the copy-on-write
+// VersionedFileSystem and the array-backed CompactFileSystem on the same generated
+// tree. To compare against an older storage engine, run "make bench" on both commits
+// with JMH_ARGS="-rf json". main reports the memory each engine takes per node
+// ("make footprint").
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineBenchmark {
+    @Param({ "1000", "100000" })
+    public int size;
+
+    @Param({ "10", "100" })
+    public int fanOut;
+
+    private TreeGenerator tree;
+    private FileSystem fs;
+    private VersionedFileSystem versioned;
+    private CompactFileSystem compact;
+    private Directory target;
+    private String targetPath;
+    private String deepestPath;
+    private Timestamp now;
+    private long counter;
+
+    @Setup(Level.Iteration)
+    public void buildTrees() {
+        tree = new TreeGenerator(TreeGenerator.Shape.BALANCED, size, fanOut, 42);
+        fs = tree.getFileSystem();
+        versioned = VersionedFileSystem.fromDirectory(fs.getRoot());
+        compact = CompactFileSystem.fromDirectory(fs.getRoot());
+        target = tree.widestDirectory();
+        targetPath = fs.getAbsolutePath(target);
+        deepestPath = fs.getAbsolutePath(tree.deepestDirectory());
+        now = new Timestamp(System.currentTimeMillis());
+        counter = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeTrees() throws IOException {
+        fs.close();
+    }
+
+    @Benchmark
+    public File fileSystemCreateFile() {
+        return fs.createFile(target, "new" + counter++, now);
+    }
+
+    @Benchmark
+    public void versionedCreateFile() {
+        versioned.createFile(targetPath, "new" + counter++);
+    }
+
+    @Benchmark
+    public int compactCreateFile() {
+        return compact.createFile(targetPath, "new" + counter++);
+    }
+
+    @Benchmark
+    public Directory fileSystemLookup() {
+        return fs.changeDirectory(deepestPath);
+    }
+
+    @Benchmark
+    public VersionedNode versionedLookup() {
+        return versioned.snapshot().lookup(deepestPath);
+    }
+
+    @Benchmark
+    public int compactLookup() {
+        return compact.resolvePath(deepestPath);
+    }
+
+    @Benchmark
+    public String fileSystemSearch() {
+        return fs.searchFileOrDirectory(tree.randomFileName());
+    }
+
+    @Benchmark
+    public String versionedSearch() {
+        return versioned.snapshot().searchFileOrDirectory(tree.randomFileName());
+    }
+
+    @Benchmark
+    public String compactSearch() {
+        return compact.searchFileOrDirectory(tree.randomFileName());
+    }
+
+    // Heap retained per node by FileSystem and by CompactFileSystem holding the same
+    // balanced tree, measured after a full collection; args are size and fanOut.
+    // The compact store's own count of its arrays is printed next to the measurement.
+    public static void main(String[] args) throws IOException {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int fanOut = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        long before = usedHeap();
+        FileSystem fs = new TreeGenerator(TreeGenerator.Shape.BALANCED, size, fanOut, 42).getFileSystem();
+        long fileSystemBytes = usedHeap() - before;
+
+        before = usedHeap();
+        CompactFileSystem compact = CompactFileSystem.fromDirectory(fs.getRoot());
+        long compactBytes = usedHeap() - before;
+
+        long nodes = compact.getAllocatedNodeCount(); // Root included, as in the FileSystem figure
+        System.out.printf("%d nodes, fan-out %d%n", nodes, fanOut);
+        System.out.printf("FileSystem         %6.1f bytes/node%n", (double) fileSystemBytes / nodes);
+        System.out.printf("CompactFileSystem  %6.1f bytes/node (arrays: %.1f)%n",
+                (double) compactBytes / nodes, (double) compact.getStore().memoryBytes() / nodes);
+        Reference.reachabilityFence(fs); // fs must not be collected before compact is measured
+        fs.close();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
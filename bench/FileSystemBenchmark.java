@@ -0,0 +1,159 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// JMH benchmarks for every FileSystem operation on generated trees.
+// Run with "make bench JMH_CP=..." (see the Makefile), which enables -prof gc.
+//
+// Only the original public API is used (the name-based calls that work on the
+// current directory, and the System.out printers), so this file and TreeGenerator
+// also compile against the first LinkedList-based FileSystem. To compare engines, run
+// "make bench JMH_ARGS='FileSystemBenchmark -rf json'" on each commit and compare the
+// two result files. Anything newer is benchmarked in EngineBenchmark.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileSystemBenchmark {
+    @Param({ "WIDE", "DEEP", "BALANCED" })
+    public TreeGenerator.Shape shape;
+
+    @Param({ "1000", "100000" })
+    public int size;
+
+    @Param({ "10", "100" })
+    public int fanOut;
+
+    private TreeGenerator tree;
+    private FileSystem fs;
+    private Directory target;      // Directory that create/move/sort benchmarks work in
+    private String targetPath;
+    private Directory otherTarget; // Second directory for moves
+    private String otherTargetPath;
+    private Directory deepest;
+    private String deepestPath;
+    private PrintStream standardOutput;
+    private long counter;
+
+    // Rebuilt every iteration so creates and deletes do not skew later iterations.
+    // The printers write to System.out, which is swallowed while the iteration runs.
+    @Setup(Level.Iteration)
+    public void buildTree() {
+        tree = new TreeGenerator(shape, size, fanOut, 42);
+        fs = tree.getFileSystem();
+        fs.createDirectory("other");
+        otherTarget = (Directory) fs.getRoot().findElement("other");
+        otherTargetPath = "/other";
+        target = tree.widestDirectory();
+        targetPath = tree.widestDirectoryPath();
+        deepest = tree.deepestDirectory();
+        deepestPath = tree.deepestDirectoryPath();
+        fs.setCurrentDirectory(target);
+        fs.createFile("mover");
+        fs.createFile("victim");
+        counter = 0;
+        standardOutput = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Iteration)
+    public void restoreOutput() throws IOException {
+        System.setOut(standardOutput);
+        if (fs instanceof Closeable) { // Through the interface: the original FileSystem has no close()
+            ((Closeable) fs).close();
+        }
+    }
+
+    @Benchmark
+    public void createFile() {
+        fs.createFile("new" + counter++);
+    }
+
+    @Benchmark
+    public void createDirectory() {
+        fs.createDirectory("newdir" + counter++);
+    }
+
+    @Benchmark
+    public Directory changeDirectoryDeepest() {
+        return fs.changeDirectory(deepestPath);
+    }
+
+    @Benchmark
+    public Directory changeDirectoryRandom() {
+        return fs.changeDirectory(tree.randomDirectoryPath());
+    }
+
+    @Benchmark
+    public String searchFileOrDirectory() {
+        return fs.searchFileOrDirectory(tree.randomFileName());
+    }
+
+    @Benchmark
+    public String searchMissing() {
+        return fs.searchFileOrDirectory("does-not-exist");
+    }
+
+    // Delete alone would empty the tree, so each call deletes and recreates one file
+    @Benchmark
+    public void deleteAndRecreateFile() {
+        fs.deleteFileOrDirectory("victim");
+        fs.createFile("victim");
+    }
+
+    // Moves one file back and forth between two directories
+    @Benchmark
+    public void moveFileOrDirectory() {
+        if (target.findElement("mover") != null) {
+            fs.setCurrentDirectory(target);
+            fs.moveFileOrDirectory("mover", otherTargetPath);
+        } else {
+            fs.setCurrentDirectory(otherTarget);
+            fs.moveFileOrDirectory("mover", targetPath);
+        }
+    }
+
+    @Benchmark
+    public void sortContentsByDate() {
+        fs.sortContentsByDate(target);
+    }
+
+    @Benchmark
+    public String getCurrentPath() {
+        return fs.getCurrentPath(deepest);
+    }
+
+    @Benchmark
+    public void listDirectoryContents() {
+        fs.listDirectoryContents();
+    }
+
+    @Benchmark
+    public void printWholeTree() {
+        fs.printWholeTree();
+    }
+
+    @Benchmark
+    public void printTree() {
+        fs.setCurrentDirectory(deepest);
+        fs.printTree();
+    }
+}
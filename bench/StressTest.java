@@ -0,0 +1,257 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Concurrency stress check for FileSystem, not a benchmark: N threads create, move,
+// copy (full and copy-on-write), resize and delete at random for a while, then the
+// tree is walked and checked against everything FileSystem keeps on the side:
+//   - every child's parent link points at the directory it was listed in, and no
+//     element is reachable twice
+//   - file, directory and size totals and the max depth of every directory match
+//     the walk
+//   - the name index finds exactly the walked paths for every name, no more
+// Exits with status 1 and lists the first problems if anything is off.
+//
+// Usage: java StressTest [threads] [seconds] [seed] [spillFile]
+// A spill file turns on tiered storage with a small heap budget, so evictions and
+// fault-ins run alongside everything else.
+public class StressTest {
+    private static final int MAX_FILES = 100_000; // Copies stop once the tree is this large
+    private static final int MAX_PROBLEMS = 10;
+
+    private final FileSystem fs;
+    private final Timestamp now = new Timestamp(System.currentTimeMillis());
+    private final AtomicLong counter = new AtomicLong();
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong(); // IllegalArgumentException, expected under races
+    private final List<String> problems = Collections.synchronizedList(new ArrayList<>());
+
+    private StressTest(FileSystem fs) {
+        this.fs = fs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        Path spillFile = args.length > 3 ? Path.of(args[3]) : null;
+
+        FileSystem fs = new FileSystem();
+        StressTest test = new StressTest(fs);
+        test.populate();
+        if (spillFile != null) {
+            Files.deleteIfExists(spillFile);
+            fs.enableTiering(spillFile, 1 << 20);
+        }
+
+        System.out.println("Running " + threads + " threads for " + seconds + " s, seed " + seed
+                + (spillFile != null ? ", tiered storage on" : ""));
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Random random = new Random(seed + i);
+            workers.add(pool.submit(() -> test.work(random, end)));
+        }
+        for (Future<?> worker : workers) {
+            try {
+                worker.get();
+            } catch (ExecutionException e) {
+                test.problems.add("Worker died: " + e.getCause());
+            }
+        }
+        pool.shutdown();
+        System.out.println(test.operations + " operations, " + test.rejected + " rejected by races");
+
+        if (test.problems.isEmpty()) {
+            fs.awaitReclamation();
+            if (fs.getTiering() != null) {
+                fs.getTiering().close(); // Reads everything back and stops evicting under the walk
+            }
+            test.verify();
+        }
+        if (!test.problems.isEmpty()) {
+            System.out.println("FAILED, " + test.problems.size() + " problem(s):");
+            for (String problem : test.problems.subList(0, Math.min(MAX_PROBLEMS, test.problems.size()))) {
+                System.out.println("  " + problem);
+            }
+            System.exit(1);
+        }
+        System.out.println("OK: " + fs.getRoot().getFileCount() + " files, " + fs.getRoot().getDirectoryCount()
+                + " directories checked");
+        fs.close();
+        System.exit(0);
+    }
+
+    // Eight top-level directories of 20 subdirectories with 50 files each
+    private void populate() {
+        for (int i = 0; i < 8; i++) {
+            Directory top = fs.createDirectory(fs.getRoot(), "top" + i, now);
+            for (int j = 0; j < 20; j++) {
+                Directory dir = fs.createDirectory(top, "d" + j, now);
+                for (int k = 0; k < 50; k++) {
+                    fs.setFileSize(fs.createFile(dir, "f" + k, now), k);
+                }
+            }
+        }
+    }
+
+    private void work(Random random, long end) {
+        FileSystemSession session = new FileSystemSession(fs);
+        while (System.currentTimeMillis() < end) {
+            try {
+                Directory dir = randomDirectory(random);
+                int op = random.nextInt(100);
+                if (op < 25) {
+                    fs.setFileSize(fs.createFile(dir, "n" + counter.incrementAndGet(), now), random.nextInt(1000));
+                } else if (op < 35) {
+                    fs.createDirectory(dir, "m" + counter.incrementAndGet(), now);
+                } else if (op < 45) {
+                    FileSystemElement child = randomChild(dir, random);
+                    if (child != null && random.nextInt(4) == 0) {
+                        fs.deleteElement(child);
+                    }
+                } else if (op < 60) {
+                    FileSystemElement child = randomChild(dir, random);
+                    if (child != null) {
+                        fs.moveElement(child, randomDirectory(random));
+                    }
+                } else if (op < 68) {
+                    FileSystemElement child = randomChild(dir, random);
+                    if (child != null && fs.getRoot().getFileCount() < MAX_FILES) {
+                        Directory target = fs.createDirectory(randomDirectory(random),
+                                "c" + counter.incrementAndGet(), now);
+                        fs.copyElement(child, target, random.nextBoolean());
+                    }
+                } else if (op < 78) {
+                    FileSystemElement child = randomChild(dir, random);
+                    if (child instanceof File) {
+                        fs.setFileSize((File) child, random.nextInt(1000));
+                    }
+                } else if (op < 88) {
+                    fs.searchAllFilesOrDirectories("f" + random.nextInt(50));
+                } else if (op < 94) {
+                    if (session.changeDirectory(fs.getAbsolutePath(dir))) {
+                        FileSystemElement child = randomChild(session.getCurrentDirectory(), random);
+                        if (child != null && random.nextInt(4) == 0) {
+                            session.deleteFileOrDirectory(child.getName());
+                        }
+                    }
+                } else {
+                    fs.listDirectoryPage(dir, null, 16);
+                    dir.getMaxDepth();
+                }
+                operations.incrementAndGet();
+            } catch (IllegalArgumentException e) {
+                rejected.incrementAndGet(); // Lost a race with another thread, that is fine
+            } catch (RuntimeException e) {
+                problems.add("Operation threw " + e);
+            }
+        }
+    }
+
+    private Directory randomDirectory(Random random) {
+        Directory dir = fs.getRoot();
+        int depth = random.nextInt(5);
+        for (int i = 0; i < depth; i++) {
+            List<Directory> subdirectories = new ArrayList<>();
+            for (FileSystemElement child : dir.listPage(null, 64).getEntries()) {
+                if (child instanceof Directory) {
+                    subdirectories.add((Directory) child);
+                }
+            }
+            if (subdirectories.isEmpty()) {
+                break;
+            }
+            dir = subdirectories.get(random.nextInt(subdirectories.size()));
+        }
+        return dir;
+    }
+
+    private FileSystemElement randomChild(Directory dir, Random random) {
+        List<FileSystemElement> children = dir.listPage(null, 64).getEntries();
+        return children.isEmpty() ? null : children.get(random.nextInt(children.size()));
+    }
+
+    private void verify() {
+        // Walk everything; listing a copy-on-write copy builds it, so nothing is virtual afterwards
+        Map<FileSystemElement, Boolean> seen = new IdentityHashMap<>();
+        Map<String, Set<String>> pathsByName = new HashMap<>();
+        List<Directory> order = new ArrayList<>(); // Pre-order; walked backwards it is post-order
+        order.add(fs.getRoot());
+        seen.put(fs.getRoot(), true);
+        for (int i = 0; i < order.size(); i++) {
+            Directory dir = order.get(i);
+            for (FileSystemElement child : dir.snapshotChildren()) {
+                if (seen.put(child, true) != null) {
+                    problems.add("Reachable twice: " + fs.getAbsolutePath(child));
+                    continue;
+                }
+                if (child.getParent() != dir) {
+                    problems.add("Parent link of " + child.getName() + " in " + fs.getAbsolutePath(dir)
+                            + " points at " + (child.getParent() == null ? "null" : fs.getAbsolutePath(child.getParent())));
+                    continue;
+                }
+                if (!fs.isLive(child)) {
+                    problems.add("Listed but not live: " + fs.getAbsolutePath(child));
+                }
+                pathsByName.computeIfAbsent(child.getName(), name -> new HashSet<>()).add(fs.getAbsolutePath(child));
+                if (child instanceof Directory) {
+                    order.add((Directory) child);
+                }
+            }
+        }
+
+        // Aggregates, bottom-up from the walk
+        Map<Directory, long[]> walked = new IdentityHashMap<>(); // files, directories, size, depth
+        for (int i = order.size() - 1; i >= 0; i--) {
+            Directory dir = order.get(i);
+            long[] totals = new long[4];
+            for (FileSystemElement child : dir.snapshotChildren()) {
+                long[] sub = walked.get(child);
+                if (sub != null) {
+                    totals[0] += sub[0];
+                    totals[1] += sub[1] + 1;
+                    totals[2] += sub[2];
+                    totals[3] = Math.max(totals[3], sub[3] + 1);
+                } else if (child instanceof File) {
+                    totals[0]++;
+                    totals[2] += ((File) child).getSize();
+                    totals[3] = Math.max(totals[3], 1);
+                }
+            }
+            walked.put(dir, totals);
+            if (dir.getFileCount() != totals[0] || dir.getDirectoryCount() != totals[1]
+                    || dir.getTotalSize() != totals[2] || dir.getMaxDepth() != totals[3]) {
+                problems.add("Aggregates of " + fs.getAbsolutePath(dir) + " are " + dir.getFileCount() + "/"
+                        + dir.getDirectoryCount() + "/" + dir.getTotalSize() + "/" + dir.getMaxDepth()
+                        + ", the walk gives " + totals[0] + "/" + totals[1] + "/" + totals[2] + "/" + totals[3]);
+            }
+        }
+
+        // Name index: each name finds exactly the walked paths
+        for (Map.Entry<String, Set<String>> entry : pathsByName.entrySet()) {
+            Set<String> found = new HashSet<>(fs.searchAllFilesOrDirectories(entry.getKey()));
+            if (!found.equals(entry.getValue())) {
+                Set<String> missing = new HashSet<>(entry.getValue());
+                missing.removeAll(found);
+                found.removeAll(entry.getValue());
+                problems.add("Name index for \"" + entry.getKey() + "\" misses " + missing + " and has extra " + found);
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Builds FileSystem trees of a given shape for the benchmarks and remembers the
+// directories and names it created so benchmarks can pick random targets. Builds
+// through the original name-based API only (setCurrentDirectory, createFile(String),
+// createDirectory(String)), so it compiles against every version of FileSystem;
+// every element is stamped with the time it was created.
+public class TreeGenerator {
+    public enum Shape {
+        WIDE,     // every file directly under one directory below root
+        DEEP,     // a single chain of directories, files spread along it
+        BALANCED  // directories with fanOut subdirectories each, files at every level
+    }
+
+    private final FileSystem fs = new FileSystem();
+    private final List<Directory> directories = new ArrayList<>();
+    private final List<String> directoryPaths = new ArrayList<>(); // "/a/b", same order as directories
+    private final List<String> fileNames = new ArrayList<>();
+    private final Random random;
+
+    public TreeGenerator(Shape shape, int size, int fanOut, long seed) {
+        this.random = new Random(seed);
+        directories.add(fs.getRoot());
+        directoryPaths.add("/");
+        switch (shape) {
+            case WIDE: {
+                int dir = addDirectory(0, "wide");
+                for (int i = 0; i < size; i++) {
+                    addFile(dir, i);
+                }
+                break;
+            }
+            case DEEP: {
+                int dir = 0;
+                int levels = Math.max(1, size / Math.max(1, fanOut));
+                for (int level = 0; level < levels && fileNames.size() < size; level++) {
+                    dir = addDirectory(dir, "level" + level);
+                    for (int i = 0; i < fanOut - 1 && fileNames.size() < size; i++) {
+                        addFile(dir, fileNames.size());
+                    }
+                }
+                break;
+            }
+            case BALANCED: {
+                // Breadth-first: each directory gets fanOut children, half of them directories
+                int created = 0;
+                for (int next = 0; created < size && next < directories.size(); next++) {
+                    for (int i = 0; i < fanOut && created < size; i++, created++) {
+                        if (i % 2 == 0) {
+                            addDirectory(next, "dir" + created);
+                        } else {
+                            addFile(next, created);
+                        }
+                    }
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+        fs.setCurrentDirectory(fs.getRoot());
+    }
+
+    // Create a directory under the parent-th directory; returns the new one's index
+    private int addDirectory(int parent, String name) {
+        Directory parentDir = directories.get(parent);
+        fs.setCurrentDirectory(parentDir);
+        fs.createDirectory(name);
+        directories.add((Directory) parentDir.findElement(name));
+        String parentPath = directoryPaths.get(parent);
+        directoryPaths.add(parentPath.equals("/") ? "/" + name : parentPath + "/" + name);
+        return directories.size() - 1;
+    }
+
+    private void addFile(int dir, int i) {
+        String name = "file" + i;
+        fs.setCurrentDirectory(directories.get(dir));
+        fs.createFile(name);
+        fileNames.add(name);
+    }
+
+    public FileSystem getFileSystem() {
+        return fs;
+    }
+
+    public List<Directory> getDirectories() {
+        return directories;
+    }
+
+    public Directory randomDirectory() {
+        return directories.get(random.nextInt(directories.size()));
+    }
+
+    public String randomDirectoryPath() {
+        return directoryPaths.get(random.nextInt(directoryPaths.size()));
+    }
+
+    // The directory with the most direct children
+    public Directory widestDirectory() {
+        return directories.get(widestIndex());
+    }
+
+    public String widestDirectoryPath() {
+        return directoryPaths.get(widestIndex());
+    }
+
+    private int widestIndex() {
+        int widest = 0;
+        for (int i = 1; i < directories.size(); i++) {
+            if (directories.get(i).getChildren().size() > directories.get(widest).getChildren().size()) {
+                widest = i;
+            }
+        }
+        return widest;
+    }
+
+    // The directory furthest from root
+    public Directory deepestDirectory() {
+        return directories.get(directories.size() - 1);
+    }
+
+    public String deepestDirectoryPath() {
+        return directoryPaths.get(directoryPaths.size() - 1);
+    }
+
+    public String randomFileName() {
+        return fileNames.isEmpty() ? "missing" : fileNames.get(random.nextInt(fileNames.size()));
+    }
+}
@@ -0,0 +1,55 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+
+// Checks that FileSystem.close stops every thread the file system started. Exits
+// with status 1 on the first failure.
+public class FileSystemCloseTest {
+    private static final String[] THREADS = { "subtree-reclaimer", "journal-flusher", "tiered-store" };
+
+    public static void main(String[] args) throws Exception {
+        closeStopsBackgroundThreads();
+        System.out.println("FileSystemCloseTest OK");
+    }
+
+    private static void closeStopsBackgroundThreads() throws Exception {
+        Path dir = Files.createTempDirectory("close-test");
+        FileSystem fs = Journal.recover(dir.resolve("fs.snapshot"), dir.resolve("fs.journal"), 1024, 5);
+        fs.enableTiering(dir.resolve("fs.spill"), 1 << 20);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        Directory gone = fs.createDirectory(fs.getRoot(), "gone", now);
+        fs.createFile(gone, "f", now);
+        fs.deleteElement(gone); // Starts the reclaimer
+        for (String name : THREADS) {
+            check(isRunning(name), name + " is not running before close");
+        }
+
+        fs.close();
+        for (String name : THREADS) {
+            check(!isRunning(name), name + " is still running after close");
+        }
+        check(fs.searchFileOrDirectory("f").isEmpty(), "the deleted subtree was not reclaimed");
+        fs.close(); // A second close does nothing
+
+        FileSystem plain = new FileSystem();
+        plain.close();
+        plain.deleteElement(plain.createDirectory(plain.getRoot(), "late", now)); // Reclaimed on this thread
+        check(!isRunning("subtree-reclaimer"), "a delete after close started the reclaimer again");
+    }
+
+    private static boolean isRunning(String threadName) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(threadName) && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void check(boolean ok, String failure) {
+        if (!ok) {
+            System.out.println("FAILED: " + failure);
+            System.exit(1);
+        }
+    }
+}
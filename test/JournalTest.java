@@ -0,0 +1,74 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+
+// Checks for Journal's group commit and what recovery restores. Exits with status 1
+// on the first failure.
+public class JournalTest {
+    private static final Timestamp NOW = new Timestamp(System.currentTimeMillis());
+
+    public static void main(String[] args) throws Exception {
+        partialBatchIsWrittenAfterMaxDelay();
+        fileSizesSurviveRecovery();
+        System.out.println("JournalTest OK");
+    }
+
+    // Fewer records than batchSize reach the file once maxDelayMillis has passed, with
+    // no sync(), close() or compact(), and a recovery that never saw a clean shutdown
+    // (as after kill -9) finds them
+    private static void partialBatchIsWrittenAfterMaxDelay() throws Exception {
+        Path dir = Files.createTempDirectory("journal-test");
+        Path snapshot = dir.resolve("fs.snapshot");
+        Path journal = dir.resolve("fs.journal");
+        FileSystem fs = Journal.recover(snapshot, journal, 1024, 5);
+        fs.createDirectory(fs.getRoot(), "a", NOW);
+        fs.createFile(fs.getRoot(), "b", NOW);
+        Thread.sleep(500);
+        check(Files.size(journal) > 0, "journal is still empty 500 ms after 2 records");
+
+        Path crashed = journal.resolveSibling("crashed.journal"); // The file as a crash now would leave it
+        Files.copy(journal, crashed);
+        FileSystem recovered = Journal.recover(snapshot, crashed, 1024, 5);
+        check(recovered.resolvePath("/a") instanceof Directory && recovered.resolvePath("/b") instanceof File,
+                "recovery from the journal as written so far lost records");
+
+        recovered.close();
+        fs.close();
+    }
+
+    // Sizes come back from the journal alone, and from a snapshot written by compact()
+    // plus the journal after it, with the total size of every directory to match
+    private static void fileSizesSurviveRecovery() throws Exception {
+        Path dir = Files.createTempDirectory("journal-test");
+        Path snapshot = dir.resolve("fs.snapshot");
+        Path journal = dir.resolve("fs.journal");
+        FileSystem fs = Journal.recover(snapshot, journal, 1024, 5);
+        Directory a = fs.createDirectory(fs.getRoot(), "a", NOW);
+        fs.setFileSize(fs.createFile(a, "f", NOW), 100);
+        fs.setFileSize(fs.createFile(fs.getRoot(), "g", NOW), 7);
+        fs.close();
+
+        fs = Journal.recover(snapshot, journal, 1024, 5);
+        checkSizes(fs, "recovery from the journal");
+        fs.getJournal().compact(fs, snapshot);
+        fs.setFileSize((File) fs.resolvePath("/g"), 20);
+        fs.close();
+
+        fs = Journal.recover(snapshot, journal, 1024, 5);
+        checkSizes(fs, "recovery from the snapshot");
+        check(fs.getRoot().getTotalSize() == 120, "total size after the snapshot is " + fs.getRoot().getTotalSize());
+        fs.close();
+    }
+
+    private static void checkSizes(FileSystem fs, String how) {
+        check(((File) fs.resolvePath("/a/f")).getSize() == 100, how + " lost the size of /a/f");
+        check(((Directory) fs.resolvePath("/a")).getTotalSize() == 100, how + " lost the total size of /a");
+    }
+
+    private static void check(boolean ok, String failure) {
+        if (!ok) {
+            System.out.println("FAILED: " + failure);
+            System.exit(1);
+        }
+    }
+}
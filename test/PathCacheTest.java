@@ -0,0 +1,52 @@
+import java.io.IOException;
+import java.sql.Timestamp;
+
+// Checks that moving or deleting a directory only outdates the cached paths below it.
+// Exits with status 1 on the first failure.
+public class PathCacheTest {
+    public static void main(String[] args) throws IOException {
+        changesOnlyOutdateTheirSubtree();
+        System.out.println("PathCacheTest OK");
+    }
+
+    private static void changesOnlyOutdateTheirSubtree() throws IOException {
+        FileSystem fs = new FileSystem();
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        Directory a = fs.createDirectory(fs.getRoot(), "a", now);
+        Directory ax = fs.createDirectory(a, "x", now);
+        Directory b = fs.createDirectory(fs.getRoot(), "b", now);
+        Directory by = fs.createDirectory(b, "y", now);
+        Directory c = fs.createDirectory(fs.getRoot(), "c", now);
+        Directory cz = fs.createDirectory(c, "z", now);
+        for (String path : new String[] { "/a/x", "/b/y", "/c/z" }) {
+            check(fs.changeDirectory(path) != null, path + " not found");
+            fs.getAbsolutePath(fs.changeDirectory(path));
+        }
+
+        fs.deleteElement(b);
+        fs.moveElement(c, a);
+        check(isCached(ax), "/a/x was dropped by changes elsewhere");
+        check(!isCached(by), "/b/y is still cached after /b was deleted");
+        check(!isCached(cz), "/c/z is still cached after /c was moved");
+
+        check(fs.changeDirectory("/a/x") == ax, "/a/x resolves wrong");
+        check(fs.changeDirectory("/b/y") == null, "/b/y still resolves");
+        check(fs.changeDirectory("/c/z") == null, "/c/z still resolves");
+        check(fs.changeDirectory("/a/c/z") == cz, "/a/c/z resolves wrong");
+        check(fs.getAbsolutePath(cz).equals("/a/c/z"), "path of z is " + fs.getAbsolutePath(cz));
+        check(isCached(cz), "/a/c/z was not cached again");
+        fs.close();
+    }
+
+    private static boolean isCached(Directory dir) {
+        PathCache.Entry entry = dir.getCachedPath();
+        return entry != null && entry.epoch >= PathCache.newestStamp(dir);
+    }
+
+    private static void check(boolean ok, String failure) {
+        if (!ok) {
+            System.out.println("FAILED: " + failure);
+            System.exit(1);
+        }
+    }
+}
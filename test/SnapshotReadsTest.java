@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+// Checks that the copy behind FileSystem.enableSnapshotReads follows every kind of
+// change, alone and under concurrent writers. Exits with status 1 on the first failure.
+public class SnapshotReadsTest {
+    public static void main(String[] args) throws Exception {
+        followsEachKindOfChange();
+        followsConcurrentWriters();
+        System.out.println("SnapshotReadsTest OK");
+    }
+
+    private static void followsEachKindOfChange() throws IOException {
+        FileSystem fs = new FileSystem();
+        CommandRunner runner = new CommandRunner(new FileSystemSession(fs));
+        run(runner, "mkdir /a");
+        fs.enableSnapshotReads(); // After the first change, so the initial copy is used too
+        run(runner, "mkdir /a/b");
+        run(runner, "touch /a/b/f");
+        run(runner, "mkdir /c");
+        run(runner, "cp /a /c");
+        run(runner, "cp --cow /a/b /c");
+        run(runner, "touch /a/b/h");
+        run(runner, "mv /a/b/h /c/b");
+        run(runner, "rm /c/a/b");
+        run(runner, "touch /g");
+        checkSame(fs);
+
+        check(fs.searchFileOrDirectory("h").equals("/c/b/h"), "search gave " + fs.searchFileOrDirectory("h"));
+        StringWriter tree = new StringWriter();
+        fs.printWholeTree(tree, fs.changeDirectory("/c"), fs.changeDirectory("/c/b"));
+        check(tree.toString().equals("* c/\n    * a/\n    * b/ (Current Directory)\n        f\n        h\n"),
+                "tree of /c was\n" + tree);
+
+        fs.deleteElement(fs.getRoot()); // Empties the root
+        checkSame(fs);
+        fs.close();
+    }
+
+    // Writers race over a small namespace; once they stop, the copy must hold exactly
+    // the paths of the tree
+    private static void followsConcurrentWriters() throws Exception {
+        FileSystem fs = new FileSystem();
+        fs.enableSnapshotReads();
+        String[] commands = { "mkdir", "mkdir", "touch", "touch", "mv", "cp", "cp --cow", "rm" };
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            long seed = t;
+            writers.add(new Thread(() -> {
+                Random random = new Random(seed);
+                CommandRunner runner = new CommandRunner(new FileSystemSession(fs));
+                Writer ignored = Writer.nullWriter();
+                try {
+                    for (int i = 0; i < 20000; i++) {
+                        String command = commands[random.nextInt(commands.length)];
+                        String line = command + " " + randomPath(random);
+                        if (command.equals("mv") || command.startsWith("cp")) {
+                            line += " " + randomPath(random);
+                        }
+                        runner.execute(line, ignored);
+                        if (i % 1000 == 0) {
+                            fs.printWholeTree(ignored, TreeRenderer.UNLIMITED_DEPTH, TreeRenderer.UNLIMITED_NODES);
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        checkSame(fs);
+        fs.close();
+    }
+
+    // Up to three levels of five names each, so changes keep hitting the same paths
+    private static String randomPath(Random random) {
+        StringBuilder path = new StringBuilder();
+        int depth = 1 + random.nextInt(3);
+        for (int i = 0; i < depth; i++) {
+            path.append("/n").append(random.nextInt(5));
+        }
+        return path.toString();
+    }
+
+    private static void run(CommandRunner runner, String line) throws IOException {
+        StringWriter out = new StringWriter();
+        check(runner.execute(line, out), line + ": " + out);
+    }
+
+    private static void checkSame(FileSystem fs) {
+        TreeSet<String> tree = new TreeSet<>();
+        addPaths(fs.getRoot(), "", tree);
+        TreeSet<String> snapshot = new TreeSet<>();
+        addPaths(fs.getSnapshot().getRoot(), "", snapshot);
+        check(tree.equals(snapshot), "tree has " + tree + ", snapshot has " + snapshot);
+    }
+
+    private static void addPaths(Directory dir, String path, TreeSet<String> paths) {
+        for (FileSystemElement child : dir.getChildren()) {
+            String childPath = path + "/" + child.getName();
+            paths.add(childPath + (child instanceof Directory ? "/" : ""));
+            if (child instanceof Directory) {
+                addPaths((Directory) child, childPath, paths);
+            }
+        }
+    }
+
+    private static void addPaths(VersionedNode dir, String path, TreeSet<String> paths) {
+        for (VersionedNode child : dir.getChildren()) {
+            String childPath = path + "/" + child.getName();
+            paths.add(childPath + (child.isDirectory() ? "/" : ""));
+            if (child.isDirectory()) {
+                addPaths(child, childPath, paths);
+            }
+        }
+    }
+
+    private static void check(boolean ok, String failure) {
+        if (!ok) {
+            System.out.println("FAILED: " + failure);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+// Checks for the sorted child views behind Directory.listSorted and
+// listCreatedBetween. Exits with status 1 on the first failure.
+public class SortedChildViewsTest {
+    public static void main(String[] args) throws IOException {
+        createdBetweenPagesThroughTheRange();
+        System.out.println("SortedChildViewsTest OK");
+    }
+
+    // Twenty children one second apart; [t3, t15) read 4 at a time gives f3..f14 in
+    // order over 3 pages, each page continuing after the last element of the one before
+    private static void createdBetweenPagesThroughTheRange() throws IOException {
+        FileSystem fs = new FileSystem();
+        Directory dir = fs.createDirectory(fs.getRoot(), "dir", null);
+        for (int i = 19; i >= 0; i--) { // Newest first, so creation order is not listing order
+            fs.createFile(dir, "f" + i, time(i));
+        }
+
+        List<String> names = new ArrayList<>();
+        int pages = 0;
+        FileSystemElement after = null;
+        while (true) {
+            List<FileSystemElement> page = dir.listCreatedBetween(time(3), time(15), after, 4);
+            if (page.isEmpty()) {
+                break;
+            }
+            for (FileSystemElement element : page) {
+                names.add(element.getName());
+            }
+            after = page.get(page.size() - 1);
+            pages++;
+        }
+        List<String> expected = new ArrayList<>();
+        for (int i = 3; i < 15; i++) {
+            expected.add("f" + i);
+        }
+        check(names.equals(expected), "pages gave " + names + ", expected " + expected);
+        check(pages == 3, pages + " pages instead of 3");
+
+        check(dir.listCreatedBetween(time(3), time(15), dir.findElement("f1"), 2).size() == 2,
+                "a cursor before from did not start at from");
+        check(dir.listCreatedBetween(time(3), time(15), dir.findElement("f17"), 2).isEmpty(),
+                "a cursor past to still returned children");
+        check(dir.listCreatedBetween(null, null, dir.findElement("f18"), 5).size() == 1,
+                "an unbounded range after the cursor did not end at the newest child");
+        fs.close();
+    }
+
+    private static Timestamp time(int seconds) {
+        return new Timestamp(1_000_000_000_000L + seconds * 1000L);
+    }
+
+    private static void check(boolean ok, String failure) {
+        if (!ok) {
+            System.out.println("FAILED: " + failure);
+            System.exit(1);
+        }
+    }
+}